@@ -18,6 +18,9 @@
  */
 package dk.dbc.pgqueue.common;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import javax.sql.DataSource;
 import org.flywaydb.core.Flyway;
 import org.flywaydb.core.api.MigrationInfo;
@@ -44,4 +47,53 @@ public class DatabaseMigrator {
         }
         flyway.migrate();
     }
+
+    /**
+     * Partition the queue table by consumer, and ensure that there's a
+     * partition for each of the given consumers
+     * <p>
+     * The first time, the queue table is rewritten, this should be done while
+     * no suppliers or consumers are running. Consumers that don't have a
+     * partition are put into queue_default. Adding a partition later moves the
+     * consumers rows out of queue_default.
+     *
+     * @param dataSource database with a migrated queue
+     * @param consumers  names of consumers to make partitions for
+     * @throws SQLException if the table cannot be partitioned
+     */
+    public static void partitionQueue(DataSource dataSource, String... consumers) throws SQLException {
+        try (Connection connection = dataSource.getConnection() ;
+             PreparedStatement stmt = connection.prepareStatement("SELECT pgqueue_admin_partition_queue(VARIADIC ?)")) {
+            stmt.setArray(1, connection.createArrayOf("text", consumers));
+            stmt.execute();
+            if (!connection.getAutoCommit())
+                connection.commit();
+            log.info("queue partitioned, consumers with own partition: {}", String.join(", ", consumers));
+        }
+    }
+
+    /**
+     * Partition the queue_error table by failedAt
+     * <p>
+     * The queue_error table is rewritten, this should be done while no
+     * consumers are running. Partitions are made from the oldest error, until
+     * 2 intervals into the future. Old partitions are dropped (and new ones
+     * made) by consumers with an errorRetention.
+     * <p>
+     * If queue_error is already partitioned, this does nothing.
+     *
+     * @param dataSource database with a migrated queue
+     * @param interval   number of milliseconds each partition covers
+     * @throws SQLException if the table cannot be partitioned
+     */
+    public static void partitionQueueError(DataSource dataSource, long interval) throws SQLException {
+        try (Connection connection = dataSource.getConnection() ;
+             PreparedStatement stmt = connection.prepareStatement("SELECT pgqueue_admin_partition_queue_error(? * INTERVAL '1 millisecond')")) {
+            stmt.setLong(1, interval);
+            stmt.execute();
+            if (!connection.getAutoCommit())
+                connection.commit();
+            log.info("queue_error partitioned, interval: {}ms", interval);
+        }
+    }
 }
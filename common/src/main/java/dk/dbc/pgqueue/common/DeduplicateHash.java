@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-common
+ *
+ * pg-queue-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.common;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+/**
+ * The dedup_hash column, a hash of the values from a
+ * {@link DeduplicateAbstraction}
+ * <p>
+ * The hash is calculated by the database, from the values the abstraction
+ * binds, so suppliers and consumers agree on it, as long as they bind the
+ * values the same way.
+ * <p>
+ * The values are converted to the types of the queue columns, and the typed
+ * values are hashed, so the hash doesn't depend on session settings, like
+ * TimeZone, DateStyle or extra_float_digits. The column types need a hash
+ * function (json doesn't have one, jsonb does).
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public final class DeduplicateHash {
+
+    public static final String COLUMN = "dedup_hash";
+
+    private DeduplicateHash() {
+    }
+
+    /**
+     * SQL expression, that takes the duplicate values as positional arguments
+     * <p>
+     * Bind them with
+     * {@link DeduplicateAbstraction#duplicateValues(java.lang.Object, java.sql.PreparedStatement, int)}
+     *
+     * @param deduplicateAbstraction definition of what a duplicate job is
+     * @return SQL expression with a placeholder for every duplicate column
+     */
+    public static String expression(DeduplicateAbstraction<?> deduplicateAbstraction) {
+        // COALESCE with a NULL of the column type gives the placeholder that type
+        return "hash_record_extended(ROW(" +
+               Arrays.stream(deduplicateAbstraction.duplicateDeleteColumnList())
+                       .map(column -> "COALESCE(?, (NULL::queue)." + column + ")")
+                       .collect(Collectors.joining(", ")) +
+               "), 0)";
+    }
+}
@@ -0,0 +1,149 @@
+-- Optional layout, where queue_error is partitioned by failedAt, so old
+-- errors can be removed by dropping whole partitions, instead of deleting
+-- (and vacuuming) row by row.
+--
+-- Convert (while no consumers are running), with one partition per day:
+--   SELECT pgqueue_admin_partition_queue_error('1 day');
+-- Make future partitions and drop partitions older than a week:
+--   SELECT pgqueue_admin_maintain_queue_error('7 days');
+-- Errors outside the partitions go into queue_error_default.
+
+-- Errors are appended in failedAt order, a BRIN index is tiny and good enough
+CREATE INDEX queue_error_failedat ON queue_error USING BRIN (failedAt);
+
+-- Requeue/discard as a single statement, instead of a cursor, this works
+-- whether queue_error is partitioned or not
+
+CREATE OR REPLACE FUNCTION pgqueue_admin_requeue(like_expr TEXT) RETURNS SETOF queue_error AS $$
+  DECLARE
+    columns TEXT;
+  BEGIN
+    SELECT STRING_AGG(QUOTE_IDENT(q.column_name), ', ') INTO columns FROM information_schema.columns q JOIN information_schema.columns e ON e.table_schema=q.table_schema AND e.table_name='queue_error' AND e.column_name=q.column_name WHERE q.table_schema='public' AND q.table_name='queue' AND q.column_name NOT IN ('queued', 'dequeueafter', 'tries');
+    RETURN QUERY EXECUTE FORMAT('WITH moved AS (DELETE FROM queue_error WHERE diag LIKE $1 RETURNING *), requeued AS (INSERT INTO queue(%s) SELECT %s FROM moved) SELECT * FROM moved', columns, columns) USING like_expr;
+  END
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION pgqueue_admin_requeue(consumer TEXT, like_expr TEXT) RETURNS SETOF queue_error AS $$
+  DECLARE
+    columns TEXT;
+  BEGIN
+    SELECT STRING_AGG(QUOTE_IDENT(q.column_name), ', ') INTO columns FROM information_schema.columns q JOIN information_schema.columns e ON e.table_schema=q.table_schema AND e.table_name='queue_error' AND e.column_name=q.column_name WHERE q.table_schema='public' AND q.table_name='queue' AND q.column_name NOT IN ('queued', 'dequeueafter', 'tries');
+    RETURN QUERY EXECUTE FORMAT('WITH moved AS (DELETE FROM queue_error WHERE consumer = $1 AND diag LIKE $2 RETURNING *), requeued AS (INSERT INTO queue(%s) SELECT %s FROM moved) SELECT * FROM moved', columns, columns) USING consumer, like_expr;
+  END
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION pgqueue_admin_discard(like_expr TEXT) RETURNS SETOF queue_error AS $$
+  BEGIN
+    RETURN QUERY EXECUTE 'DELETE FROM queue_error WHERE diag LIKE $1 RETURNING *' USING like_expr;
+  END
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION pgqueue_admin_discard(consumer TEXT, like_expr TEXT) RETURNS SETOF queue_error AS $$
+  BEGIN
+    RETURN QUERY EXECUTE 'DELETE FROM queue_error WHERE consumer = $1 AND diag LIKE $2 RETURNING *' USING consumer, like_expr;
+  END
+$$ LANGUAGE plpgsql;
+
+-- The time partitions (not the default partition), with their bounds
+
+CREATE OR REPLACE FUNCTION pgqueue_admin_queue_error_partitions() RETURNS TABLE(partition REGCLASS, lower_bound TIMESTAMPTZ, upper_bound TIMESTAMPTZ) AS $$
+  SELECT c.oid::REGCLASS, b[1]::TIMESTAMPTZ, b[2]::TIMESTAMPTZ FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+    CROSS JOIN LATERAL REGEXP_MATCH(pg_get_expr(c.relpartbound, c.oid), '^FOR VALUES FROM \(''([^'']*)''\) TO \(''([^'']*)''\)$') AS b
+    WHERE i.inhparent = 'queue_error'::REGCLASS AND b IS NOT NULL;
+$$ LANGUAGE sql STABLE;
+
+CREATE OR REPLACE FUNCTION pgqueue_admin_add_queue_error_partition(lower_bound TIMESTAMPTZ, upper_bound TIMESTAMPTZ) RETURNS REGCLASS AS $$
+  DECLARE
+    name TEXT := 'queue_error_' || TO_CHAR(lower_bound AT TIME ZONE 'UTC', 'YYYYMMDD"_"HH24MISS');
+    options TEXT[];
+  BEGIN
+    EXECUTE FORMAT('CREATE TABLE %I (LIKE queue_error INCLUDING DEFAULTS INCLUDING CONSTRAINTS INCLUDING STORAGE)', name);
+    -- Partitioned tables have no storage parameters, take them from queue_error_default
+    SELECT reloptions INTO options FROM pg_class WHERE oid = 'queue_error_default'::REGCLASS;
+    IF options IS NOT NULL THEN
+      EXECUTE FORMAT('ALTER TABLE %I SET (%s)', name, ARRAY_TO_STRING(options, ', '));
+    END IF;
+    EXECUTE FORMAT('WITH moved AS (DELETE FROM queue_error_default WHERE failedAt >= %L AND failedAt < %L RETURNING *) INSERT INTO %I SELECT * FROM moved', lower_bound, upper_bound, name);
+    EXECUTE FORMAT('ALTER TABLE queue_error ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)', name, lower_bound, upper_bound);
+    RETURN QUOTE_IDENT(name)::REGCLASS;
+  END
+$$ LANGUAGE plpgsql;
+
+-- Ensure partitions exist 2 intervals into the future, and drop those that are
+-- entirely older than retention. Returns the number of dropped partitions,
+-- or NULL if queue_error isn't partitioned.
+
+CREATE OR REPLACE FUNCTION pgqueue_admin_maintain_queue_error(retention INTERVAL) RETURNS INTEGER AS $$
+  DECLARE
+    part_interval INTERVAL;
+    last_upper TIMESTAMPTZ;
+    partition REGCLASS;
+    dropped INTEGER := 0;
+  BEGIN
+    IF (SELECT relkind FROM pg_class WHERE oid = 'queue_error'::REGCLASS) <> 'p' THEN
+      RETURN NULL;
+    END IF;
+    SELECT EXTRACT(EPOCH FROM p.upper_bound - p.lower_bound) * INTERVAL '1 second', p.upper_bound INTO part_interval, last_upper
+      FROM pgqueue_admin_queue_error_partitions() AS p ORDER BY p.upper_bound DESC LIMIT 1;
+    IF last_upper IS NULL THEN
+      RAISE EXCEPTION 'queue_error has no time partitions';
+    END IF;
+    WHILE last_upper < CLOCK_TIMESTAMP() + 2 * part_interval LOOP
+      PERFORM pgqueue_admin_add_queue_error_partition(last_upper, last_upper + part_interval);
+      last_upper := last_upper + part_interval;
+    END LOOP;
+    FOR partition IN SELECT p.partition FROM pgqueue_admin_queue_error_partitions() AS p WHERE p.upper_bound <= CLOCK_TIMESTAMP() - retention LOOP
+      EXECUTE FORMAT('DROP TABLE %s', partition);
+      dropped := dropped + 1;
+    END LOOP;
+    DELETE FROM queue_error_default WHERE failedAt < CLOCK_TIMESTAMP() - retention;
+    RETURN dropped;
+  END
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION pgqueue_admin_partition_queue_error(part_interval INTERVAL) RETURNS VOID AS $$
+  DECLARE
+    step INTERVAL := EXTRACT(EPOCH FROM part_interval) * INTERVAL '1 second';
+    options TEXT[];
+    index_defs TEXT[];
+    function_defs TEXT[];
+    def TEXT;
+    lower_bound TIMESTAMPTZ;
+  BEGIN
+    IF (SELECT relkind FROM pg_class WHERE oid = 'queue_error'::REGCLASS) = 'p' THEN
+      RETURN;
+    END IF;
+    IF step <= INTERVAL '0' THEN
+      RAISE EXCEPTION 'Partition interval should be positive: %', part_interval;
+    END IF;
+    LOCK TABLE queue_error IN ACCESS EXCLUSIVE MODE;
+    SELECT reloptions INTO options FROM pg_class WHERE oid = 'queue_error'::REGCLASS;
+    SELECT ARRAY_AGG(PG_GET_INDEXDEF(indexrelid)) INTO index_defs FROM pg_index WHERE indrelid = 'queue_error'::REGCLASS AND NOT indisprimary;
+    -- The admin functions return the table type, they're recreated for the new table
+    SELECT ARRAY_AGG(PG_GET_FUNCTIONDEF(oid)) INTO function_defs FROM pg_proc WHERE prorettype = 'queue_error'::REGTYPE;
+    FOR def IN SELECT oid::REGPROCEDURE FROM pg_proc WHERE prorettype = 'queue_error'::REGTYPE LOOP
+      EXECUTE FORMAT('DROP FUNCTION %s', def);
+    END LOOP;
+    EXECUTE 'ALTER TABLE queue_error RENAME TO queue_error_unpartitioned';
+    EXECUTE 'CREATE TABLE queue_error (LIKE queue_error_unpartitioned INCLUDING DEFAULTS INCLUDING CONSTRAINTS INCLUDING STORAGE INCLUDING COMMENTS) PARTITION BY RANGE (failedAt)';
+    EXECUTE 'CREATE TABLE queue_error_default PARTITION OF queue_error DEFAULT';
+    IF options IS NOT NULL THEN
+      EXECUTE FORMAT('ALTER TABLE queue_error_default SET (%s)', ARRAY_TO_STRING(options, ', '));
+    END IF;
+    SELECT DATE_BIN(step, COALESCE(MIN(failedAt), CLOCK_TIMESTAMP()), TIMESTAMPTZ '2000-01-01 00:00:00+00') INTO lower_bound FROM queue_error_unpartitioned;
+    LOOP
+      PERFORM pgqueue_admin_add_queue_error_partition(lower_bound, lower_bound + step);
+      lower_bound := lower_bound + step;
+      EXIT WHEN lower_bound >= CLOCK_TIMESTAMP() + 2 * step;
+    END LOOP;
+    EXECUTE 'INSERT INTO queue_error SELECT * FROM queue_error_unpartitioned';
+    EXECUTE 'DROP TABLE queue_error_unpartitioned';
+    FOREACH def IN ARRAY COALESCE(index_defs, '{}') LOOP
+      EXECUTE def; -- Unique indexes has to include failedAt
+    END LOOP;
+    EXECUTE 'ALTER TABLE queue_error ADD PRIMARY KEY (pk, failedAt)';
+    FOREACH def IN ARRAY COALESCE(function_defs, '{}') LOOP
+      EXECUTE def;
+    END LOOP;
+  END
+$$ LANGUAGE plpgsql;
@@ -0,0 +1,15 @@
+
+-- Optional hash of the duplicate columns, set by suppliers configured with
+-- QueueSupplier.withDeduplicateHash(...), and used by consumers configured
+-- with deduplicateHash(), so finding duplicates is an index lookup, instead
+-- of a scan of the consumer's jobs.
+-- Rows without a hash are never found as duplicates this way.
+
+ALTER TABLE queue ADD COLUMN dedup_hash BIGINT;
+
+CREATE INDEX queue_dedup_hash ON queue(consumer, dedup_hash) WHERE dedup_hash IS NOT NULL;
+
+-- Consumers configured with deduplicateHash() keep the hash of failed jobs,
+-- so it is there when they are requeued
+
+ALTER TABLE queue_error ADD COLUMN dedup_hash BIGINT;
@@ -0,0 +1,17 @@
+
+CREATE OR REPLACE FUNCTION pgqueue_notify() RETURNS TRIGGER AS $$
+  DECLARE
+    name TEXT;
+  BEGIN
+    FOR name IN SELECT DISTINCT consumer FROM new_rows LOOP
+      PERFORM pg_notify('pgqueue_' || name, '');
+    END LOOP;
+    RETURN NULL;
+  END
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER queue_notify AFTER INSERT ON queue REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE FUNCTION pgqueue_notify();
+
+-- Notifications serializes committing transactions, enable with:
+--   ALTER TABLE queue ENABLE TRIGGER queue_notify;
+ALTER TABLE queue DISABLE TRIGGER queue_notify;
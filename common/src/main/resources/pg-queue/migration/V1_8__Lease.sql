@@ -0,0 +1,37 @@
+
+ALTER TABLE queue ADD COLUMN leasedUntil TIMESTAMP WITH TIME ZONE;
+ALTER TABLE queue ADD COLUMN leaseOwner TEXT;
+
+CREATE INDEX queue_lease ON queue (leasedUntil) WHERE leasedUntil IS NOT NULL;
+
+-- Requeue only columns present in both tables (queue has lease columns that queue_error hasn't)
+
+CREATE OR REPLACE FUNCTION pgqueue_admin_requeue(like_expr TEXT) RETURNS SETOF queue_error AS $$
+  DECLARE
+    columns1 TEXT;
+    columns2 TEXT;
+    func TEXT;
+  BEGIN
+    SELECT STRING_AGG(q.column_name, ', '), STRING_AGG('q.' || q.column_name, ', ') INTO columns1, columns2 FROM information_schema.columns q JOIN information_schema.columns e ON e.table_schema=q.table_schema AND e.table_name='queue_error' AND e.column_name=q.column_name WHERE q.table_schema='public' AND q.table_name='queue' AND q.column_name NOT IN ('queued', 'dequeueafter', 'tries');
+    func := 'CREATE FUNCTION pg_temp.pgqueue_admin_requeue_impl(like_expr TEXT) RETURNS SETOF queue_error AS $' || '$ DECLARE q queue_error; c CURSOR FOR SELECT * FROM queue_error WHERE diag LIKE like_expr; BEGIN FOR q IN c LOOP INSERT INTO queue(' || columns1 || ') VALUES(' || columns2 || '); DELETE FROM queue_error WHERE CURRENT OF c; RETURN NEXT q; END LOOP; END $' || '$ LANGUAGE plpgsql;';
+    --RAISE NOTICE 'sql: %', func;
+    EXECUTE func;
+    RETURN QUERY SELECT * FROM pg_temp.pgqueue_admin_requeue_impl(like_expr);
+    EXECUTE 'DROP FUNCTION pg_temp.pgqueue_admin_requeue_impl(like_expr TEXT)';
+  END
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION pgqueue_admin_requeue(consumer TEXT, like_expr TEXT) RETURNS SETOF queue_error AS $$
+  DECLARE
+    columns1 TEXT;
+    columns2 TEXT;
+    func TEXT;
+  BEGIN
+    SELECT STRING_AGG(q.column_name, ', '), STRING_AGG('q.' || q.column_name, ', ') INTO columns1, columns2 FROM information_schema.columns q JOIN information_schema.columns e ON e.table_schema=q.table_schema AND e.table_name='queue_error' AND e.column_name=q.column_name WHERE q.table_schema='public' AND q.table_name='queue' AND q.column_name NOT IN ('queued', 'dequeueafter', 'tries');
+    func := 'CREATE FUNCTION pg_temp.pgqueue_admin_requeue_impl(consumer_expr TEXT, like_expr TEXT) RETURNS SETOF queue_error AS $' || '$ DECLARE q queue_error; c CURSOR FOR SELECT * FROM queue_error WHERE consumer = consumer_expr AND  diag LIKE like_expr; BEGIN FOR q IN c LOOP INSERT INTO queue('  || columns1 || ') VALUES(' || columns2 || '); DELETE FROM queue_error WHERE CURRENT OF c; RETURN NEXT q; END LOOP; END $' || '$ LANGUAGE plpgsql;';
+    --RAISE NOTICE 'sql: %', func;
+    EXECUTE func;
+    RETURN QUERY SELECT * FROM pg_temp.pgqueue_admin_requeue_impl(consumer, like_expr);
+    EXECUTE 'DROP FUNCTION pg_temp.pgqueue_admin_requeue_impl(consumer_expr TEXT, like_expr TEXT)';
+  END
+$$ LANGUAGE plpgsql;
@@ -0,0 +1,91 @@
+
+-- Optional layout, where queue is partitioned by consumer, so a backlog for
+-- one consumer doesn't bloat the indexes for all, autovacuum is per
+-- partition, and a backlog can be removed with:
+--   SELECT pgqueue_admin_truncate_queue('consumer');
+--
+-- Convert (while no suppliers/consumers are running), and/or add partitions:
+--   SELECT pgqueue_admin_partition_queue('consumer1', 'consumer2');
+-- Consumers without a partition go into queue_default.
+
+CREATE OR REPLACE FUNCTION pgqueue_admin_queue_partition(consumer_name TEXT) RETURNS REGCLASS AS $$
+  SELECT c.oid::REGCLASS FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+    WHERE i.inhparent = 'queue'::REGCLASS AND pg_get_expr(c.relpartbound, c.oid) = FORMAT('FOR VALUES IN (%L)', consumer_name);
+$$ LANGUAGE sql STABLE;
+
+CREATE OR REPLACE FUNCTION pgqueue_admin_add_queue_partition(consumer_name TEXT) RETURNS REGCLASS AS $$
+  DECLARE
+    base TEXT := 'queue_' || REGEXP_REPLACE(LOWER(consumer_name), '[^a-z0-9_]', '_', 'g');
+    name TEXT := base;
+    n INTEGER := 0;
+    options TEXT[];
+  BEGIN
+    IF pgqueue_admin_queue_partition(consumer_name) IS NOT NULL THEN
+      RETURN pgqueue_admin_queue_partition(consumer_name);
+    END IF;
+    WHILE TO_REGCLASS(name) IS NOT NULL LOOP
+      n := n + 1;
+      name := base || '_' || n;
+    END LOOP;
+    EXECUTE FORMAT('CREATE TABLE %I (LIKE queue INCLUDING DEFAULTS INCLUDING CONSTRAINTS INCLUDING STORAGE)', name);
+    -- Partitioned tables have no storage parameters, take them from queue_default
+    SELECT reloptions INTO options FROM pg_class WHERE oid = 'queue_default'::REGCLASS;
+    IF options IS NOT NULL THEN
+      EXECUTE FORMAT('ALTER TABLE %I SET (%s)', name, ARRAY_TO_STRING(options, ', '));
+    END IF;
+    EXECUTE FORMAT('WITH moved AS (DELETE FROM queue_default WHERE consumer = %L RETURNING *) INSERT INTO %I SELECT * FROM moved', consumer_name, name);
+    EXECUTE FORMAT('ALTER TABLE queue ATTACH PARTITION %I FOR VALUES IN (%L)', name, consumer_name);
+    RETURN name::REGCLASS;
+  END
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION pgqueue_admin_partition_queue(VARIADIC consumer_names TEXT[]) RETURNS VOID AS $$
+  DECLARE
+    options TEXT[];
+    notify "char";
+    index_defs TEXT[];
+    index_def TEXT;
+    consumer_name TEXT;
+  BEGIN
+    IF (SELECT relkind FROM pg_class WHERE oid = 'queue'::REGCLASS) <> 'p' THEN
+      LOCK TABLE queue IN ACCESS EXCLUSIVE MODE;
+      SELECT reloptions INTO options FROM pg_class WHERE oid = 'queue'::REGCLASS;
+      SELECT tgenabled INTO notify FROM pg_trigger WHERE tgrelid = 'queue'::REGCLASS AND tgname = 'queue_notify';
+      SELECT ARRAY_AGG(PG_GET_INDEXDEF(indexrelid)) INTO index_defs FROM pg_index WHERE indrelid = 'queue'::REGCLASS AND NOT indisprimary;
+      EXECUTE 'ALTER TABLE queue RENAME TO queue_unpartitioned';
+      EXECUTE 'CREATE TABLE queue (LIKE queue_unpartitioned INCLUDING DEFAULTS INCLUDING CONSTRAINTS INCLUDING STORAGE INCLUDING COMMENTS) PARTITION BY LIST (consumer)';
+      EXECUTE 'CREATE TABLE queue_default PARTITION OF queue DEFAULT';
+      IF options IS NOT NULL THEN
+        EXECUTE FORMAT('ALTER TABLE queue_default SET (%s)', ARRAY_TO_STRING(options, ', '));
+      END IF;
+      FOREACH consumer_name IN ARRAY consumer_names LOOP
+        PERFORM pgqueue_admin_add_queue_partition(consumer_name);
+      END LOOP;
+      EXECUTE 'INSERT INTO queue SELECT * FROM queue_unpartitioned';
+      EXECUTE 'DROP TABLE queue_unpartitioned';
+      FOREACH index_def IN ARRAY COALESCE(index_defs, '{}') LOOP
+        EXECUTE index_def; -- Unique indexes has to include consumer
+      END LOOP;
+      EXECUTE 'ALTER TABLE queue ADD PRIMARY KEY (pk, consumer)';
+      EXECUTE 'CREATE TRIGGER queue_notify AFTER INSERT ON queue REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE FUNCTION pgqueue_notify()';
+      IF notify IS DISTINCT FROM 'O' THEN
+        EXECUTE 'ALTER TABLE queue DISABLE TRIGGER queue_notify';
+      END IF;
+    ELSE
+      FOREACH consumer_name IN ARRAY consumer_names LOOP
+        PERFORM pgqueue_admin_add_queue_partition(consumer_name);
+      END LOOP;
+    END IF;
+  END
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION pgqueue_admin_truncate_queue(consumer_name TEXT) RETURNS VOID AS $$
+  DECLARE
+    partition REGCLASS := pgqueue_admin_queue_partition(consumer_name);
+  BEGIN
+    IF partition IS NULL THEN
+      RAISE EXCEPTION 'No queue partition for consumer: %', consumer_name;
+    END IF;
+    EXECUTE FORMAT('TRUNCATE %s', partition);
+  END
+$$ LANGUAGE plpgsql;
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-consumer
+ *
+ * pg-queue-consumer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-consumer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.consumer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive limit for how many {@link JobWorker}s can claim and process jobs
+ * at the same time
+ * <p>
+ * Additive increase, multiplicative decrease: every job that completes
+ * within the target latency, while the limit is fully used, raises the limit
+ * by 1/limit (1 per limit jobs). A job that fails or is slower than the
+ * target lowers it by {@value #BACKOFF_RATIO}, at most once for the jobs
+ * that were started before the last decrease.
+ * <p>
+ * Uses a {@link ReentrantLock} rather than synchronized/wait, so a virtual
+ * thread waiting for a permit doesn't pin its carrier thread
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+class ConcurrencyLimit {
+
+    static final double BACKOFF_RATIO = 0.9;
+    private static final long POLL_MS = 100;
+
+    private final boolean enabled;
+    private final long target;
+    private final int min;
+    private final int max;
+    private final ReentrantLock lock;
+    private final Condition available;
+    private double limit;
+    private int inFlight;
+    private long lastDecrease;
+    private MetricAbstraction.Gauge gauge;
+
+    /**
+     * No limit
+     */
+    ConcurrencyLimit() {
+        this(false, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Adaptive limit
+     *
+     * @param target max milliseconds a job should take
+     * @param min    lower bound for the limit
+     * @param max    upper bound (and initial value) for the limit
+     */
+    ConcurrencyLimit(long target, int min, int max) {
+        this(true, TimeUnit.MILLISECONDS.toNanos(target), min, max);
+    }
+
+    private ConcurrencyLimit(boolean enabled, long target, int min, int max) {
+        if (min < 1 || max < min)
+            throw new IllegalArgumentException("Concurrency limit should be 1 <= min <= max, got: " + min + "/" + max);
+        this.enabled = enabled;
+        this.target = target;
+        this.min = min;
+        this.max = max;
+        this.lock = new ReentrantLock();
+        this.available = lock.newCondition();
+        this.limit = max;
+        this.inFlight = 0;
+        this.lastDecrease = nanoTime();
+        this.gauge = value -> {
+        };
+    }
+
+    /**
+     * Report the current limit
+     *
+     * @param gauge where to report the limit
+     */
+    void metrics(MetricAbstraction.Gauge gauge) {
+        this.gauge = gauge;
+        if (enabled)
+            gauge.set(limit());
+    }
+
+    /**
+     * Take a permit before claiming jobs
+     *
+     * @return if a permit has been taken, false if timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean acquire() throws InterruptedException {
+        if (!enabled)
+            return true;
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(POLL_MS);
+            while (inFlight >= (int) limit) {
+                if (nanos <= 0)
+                    return false;
+                nanos = available.awaitNanos(nanos);
+            }
+            inFlight++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return a permit, when the claimed jobs are done, or if no job could be
+     * claimed
+     */
+    void release() {
+        if (!enabled)
+            return;
+        lock.lock();
+        try {
+            inFlight--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adjust the limit by the outcome of a job
+     *
+     * @param start   when the job was handed to the consumer
+     *                ({@link System#nanoTime()})
+     * @param success if the job succeeded
+     */
+    void sample(long start, boolean success) {
+        if (!enabled)
+            return;
+        long now = nanoTime();
+        lock.lock();
+        try {
+            int before = (int) limit;
+            if (!success || now - start > target) {
+                if (start - lastDecrease <= 0)
+                    return; // Already backed off for this job
+                limit = Double.max(min, limit * BACKOFF_RATIO);
+                lastDecrease = now;
+            } else if (inFlight >= before) { // Only grow when the limit is the bottleneck
+                limit = Double.min(max, limit + 1.0 / limit);
+                if ((int) limit > before)
+                    available.signal();
+            }
+            if ((int) limit != before)
+                gauge.set((int) limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int limit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long nanoTime() {
+        return System.nanoTime();
+    }
+}
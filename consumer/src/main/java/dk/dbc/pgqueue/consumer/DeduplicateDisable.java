@@ -18,37 +18,139 @@
  */
 package dk.dbc.pgqueue.consumer;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 /**
+ * Turn off deduplication, when the delete duplicate statement is slow
+ * <p>
+ * The 95th percentile of the last {@value #WINDOW} durations is tracked. When
+ * it exceeds the limit, deduplication is disabled for a period, after which
+ * only 1 in n jobs are deduplicated (probing). If the probes are fast (the
+ * percentile is below 3/4 of the limit) deduplication is enabled again, if
+ * they're slow it is disabled for another period.
+ * <p>
+ * Lock free, so it can be called from virtual threads
  *
  * @author Morten Bøgeskov (mb@dbc.dk)
  */
 class DeduplicateDisable {
 
+    static final int WINDOW = 100;
+    static final int MIN_SAMPLES = 20;
+    static final int DEFAULT_PROBE_EVERY = 10;
+
+    static final int ENABLED = 0;
+    static final int PROBING = 1;
+    static final int DISABLED = 2;
+
     private final long limit;
+    private final long enableBelow;
     private final long disablePeriod;
-    private long disableUntil;
+    private final int probeEvery;
+    private final AtomicInteger state;
+    private final AtomicLong disableUntil;
+    private final AtomicLong calls;
+    private final AtomicLong count;
+    private final AtomicLongArray samples;
+    private MetricAbstraction.Gauge stateGauge;
+    private MetricAbstraction.Gauge percentileGauge;
 
     public DeduplicateDisable() {
-        limit = Long.MAX_VALUE;
-        disablePeriod = 0;
-        disableUntil = 0;
+        this(Long.MAX_VALUE, 0);
     }
 
     public DeduplicateDisable(long limit, long disablePeriod) {
+        this(limit, disablePeriod, DEFAULT_PROBE_EVERY);
+    }
+
+    public DeduplicateDisable(long limit, long disablePeriod, int probeEvery) {
+        if (probeEvery < 1)
+            throw new IllegalArgumentException("probeEvery should be positive");
         this.limit = limit;
+        this.enableBelow = limit - limit / 4;
         this.disablePeriod = disablePeriod;
-        disableUntil = 0;
+        this.probeEvery = probeEvery;
+        this.state = new AtomicInteger(ENABLED);
+        this.disableUntil = new AtomicLong();
+        this.calls = new AtomicLong();
+        this.count = new AtomicLong();
+        this.samples = new AtomicLongArray(WINDOW);
+        this.stateGauge = value -> {
+        };
+        this.percentileGauge = value -> {
+        };
     }
 
-    synchronized boolean canDeduplicate() {
-        return time() > disableUntil;
+    /**
+     * Report state (0=enabled, 1=probing, 2=disabled) and the 95th percentile
+     * in milliseconds
+     *
+     * @param stateGauge      where to report state
+     * @param percentileGauge where to report the percentile
+     */
+    void metrics(MetricAbstraction.Gauge stateGauge, MetricAbstraction.Gauge percentileGauge) {
+        this.stateGauge = stateGauge;
+        this.percentileGauge = percentileGauge;
+        stateGauge.set(state.get());
     }
 
-    synchronized private void registerDuration(long ms) {
+    boolean canDeduplicate() {
+        switch (state.get()) {
+            case ENABLED:
+                return true;
+            case DISABLED:
+                if (time() <= disableUntil.get())
+                    return false;
+                if (state.compareAndSet(DISABLED, PROBING)) {
+                    count.set(0); // Only judge by the probes
+                    stateGauge.set(PROBING);
+                }
+                return probe();
+            default:
+                return probe();
+        }
+    }
+
+    int state() {
+        return state.get();
+    }
+
+    private boolean probe() {
+        return calls.getAndIncrement() % probeEvery == 0;
+    }
+
+    private void registerDuration(long start) {
+        if (limit == Long.MAX_VALUE)
+            return;
         long now = time();
-        long duration = now - ms;
-        if (duration > limit)
-            disableUntil = now + disablePeriod;
+        long n = count.getAndIncrement();
+        samples.set((int) ( n % WINDOW ), now - start);
+        if (n + 1 < MIN_SAMPLES)
+            return;
+        long percentile = percentile((int) Math.min(n + 1, WINDOW));
+        percentileGauge.set(percentile);
+        int current = state.get();
+        if (percentile > limit && current != DISABLED) {
+            if (state.compareAndSet(current, DISABLED)) {
+                disableUntil.set(now + disablePeriod);
+                stateGauge.set(DISABLED);
+            }
+        } else if (current == PROBING && percentile <= enableBelow) {
+            if (state.compareAndSet(PROBING, ENABLED))
+                stateGauge.set(ENABLED);
+        }
+    }
+
+    private long percentile(int size) {
+        long[] values = new long[size];
+        for (int i = 0 ; i < size ; i++) {
+            values[i] = samples.get(i);
+        }
+        Arrays.sort(values);
+        return values[( size * 95 + 99 ) / 100 - 1];
     }
 
     long time() {
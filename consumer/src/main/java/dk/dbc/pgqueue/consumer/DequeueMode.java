@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-consumer
+ *
+ * pg-queue-consumer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-consumer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.consumer;
+
+/**
+ * How a worker takes a job out of the queue
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public enum DequeueMode {
+
+    /**
+     * Delete the row, and keep the transaction open while the job is
+     * processed (default)
+     * <p>
+     * A job that fails, is returned to the queue by rolling back, and
+     * re-inserting it
+     */
+    DELETE,
+    /**
+     * Lease the row (update leasedUntil/leaseOwner), and commit before the
+     * job is processed
+     * <p>
+     * The row is deleted in the transaction the job is processed in, or
+     * updated in place when it is retried or postponed. If a worker dies, the
+     * job is taken again when the lease expires. No transaction is open, while
+     * the consumer waits for anything but the database
+     */
+    LEASE,
+    /**
+     * Lock the row, and keep the transaction open while the job is processed
+     * <p>
+     * The row is deleted when the job succeeds. A job that fails, is updated
+     * in place (tries and dequeueAfter), which doesn't copy the job columns,
+     * and can be a HOT update, if there's room in the page (see fillfactor).
+     * A job that has been merged with its duplicates is re-inserted as in
+     * {@link #DELETE} mode
+     */
+    IN_PLACE
+}
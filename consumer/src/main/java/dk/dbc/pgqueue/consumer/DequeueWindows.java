@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-consumer
+ *
+ * pg-queue-consumer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-consumer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.consumer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongUnaryOperator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adaptive dequeue window per consumer name
+ * <p>
+ * The window is how far behind the watermark the dequeue looks, to catch jobs
+ * from transactions that committed late. It is kept between the configured
+ * window and a max window:
+ * <pre>
+ * - widened, when a rescan finds jobs behind the watermark, further back than
+ *   the window (these jobs would only be found by rescans). Jobs in flight
+ *   are not counted
+ * - narrowed, when a dequeue is slow (index scan too wide)
+ * - slowly narrowed, when a rescan finds nothing behind the window
+ * </pre>
+ * If max equals min, the window is fixed.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+class DequeueWindows {
+
+    private static final Logger log = LoggerFactory.getLogger(DequeueWindows.class);
+
+    private final long min;
+    private final long max;
+    private final Map<String, AtomicLong> windows;
+    private final Map<String, MetricAbstraction.Gauge> gauges;
+
+    DequeueWindows(List<String> consumerNames, long min, long max, MetricAbstraction metricAbstraction) {
+        this.min = min;
+        this.max = Long.max(min, max);
+        HashMap<String, AtomicLong> windowMap = new HashMap<>();
+        HashMap<String, MetricAbstraction.Gauge> gaugeMap = new HashMap<>();
+        for (String consumerName : consumerNames) {
+            windowMap.put(consumerName, new AtomicLong(min));
+            MetricAbstraction.Gauge gauge = metricAbstraction.gauge(Harvester.class, "window." + consumerName.replaceAll("[^0-9a-zA-Z_]", "_"));
+            gauge.set(min);
+            gaugeMap.put(consumerName, gauge);
+        }
+        this.windows = windowMap; // Never modified after construction
+        this.gauges = gaugeMap;
+    }
+
+    /**
+     * Current window
+     *
+     * @param queue consumer name
+     * @return window in milliseconds
+     */
+    long get(String queue) {
+        AtomicLong window = windows.get(queue);
+        return window == null ? min : window.get();
+    }
+
+    /**
+     * A rescan has moved the watermark back
+     *
+     * @param queue consumer name
+     * @param lag   how many milliseconds the earliest job was behind the
+     *              watermark
+     */
+    void rescanned(String queue, long lag) {
+        long window = get(queue);
+        if (lag > window) {
+            update(queue, w -> Long.min(max, Long.max(w * 2, lag)));
+        } else {
+            update(queue, w -> w - Long.max(1, ( w - min ) / 4));
+        }
+    }
+
+    /**
+     * A dequeue has exceeded the max query time
+     *
+     * @param queue consumer name
+     */
+    void slow(String queue) {
+        update(queue, w -> w / 2);
+    }
+
+    private void update(String queue, LongUnaryOperator op) {
+        AtomicLong window = windows.get(queue);
+        if (window == null || min == max)
+            return;
+        long before = window.get();
+        long after = window.updateAndGet(w -> Long.min(max, Long.max(min, op.applyAsLong(w))));
+        if (before != after) {
+            log.debug("Window for {} changed from {}ms to {}ms", queue, before, after);
+            gauges.get(queue).set(window.get());
+        }
+    }
+}
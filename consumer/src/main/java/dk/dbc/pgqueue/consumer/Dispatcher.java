@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-consumer
+ *
+ * pg-queue-consumer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-consumer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.consumer;
+
+import java.sql.Connection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hand-off between fetching {@link JobWorker}s, that claim jobs from the
+ * queue, and processing {@link JobWorker}s, that run the
+ * {@link JobConsumer}
+ * <p>
+ * A fetcher takes a slot before claiming, so there's never more claimed
+ * jobs (open transactions) than there are processors to take them
+ *
+ * @author DBC {@literal <dbc.dk>}
+ * @param <T> Job type
+ */
+class Dispatcher<T> {
+
+    private static final long POLL_MS = 100;
+
+    /**
+     * Jobs claimed in a transaction, and the connection holding the
+     * transaction
+     *
+     * @param <T> Job type
+     */
+    static class Handoff<T> {
+
+        final Connection connection;
+        final List<JobWithMetaData<T>> jobs;
+
+        Handoff(Connection connection, List<JobWithMetaData<T>> jobs) {
+            this.connection = connection;
+            this.jobs = jobs;
+        }
+    }
+
+    private final ArrayBlockingQueue<Handoff<T>> queue;
+    private final Semaphore slots;
+    private final AtomicInteger fetchers;
+
+    Dispatcher(int processors, int fetchers) {
+        this.queue = new ArrayBlockingQueue<>(processors);
+        this.slots = new Semaphore(processors);
+        this.fetchers = new AtomicInteger(fetchers);
+    }
+
+    /**
+     * Reserve a processor for jobs that are about to be claimed
+     *
+     * @return if a slot has been reserved, false if timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean acquireSlot() throws InterruptedException {
+        return slots.tryAcquire(POLL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Return a reserved slot, when a processor is done, or if no job could be
+     * claimed
+     */
+    void releaseSlot() {
+        slots.release();
+    }
+
+    /**
+     * Pass claimed jobs to the processors
+     * <p>
+     * Never blocks, since the queue is as large as the number of slots
+     *
+     * @param handoff connection and jobs
+     */
+    void handOff(Handoff<T> handoff) {
+        if (!queue.offer(handoff))
+            throw new IllegalStateException("Dispatch queue is full - this should not happen");
+    }
+
+    /**
+     * Get claimed jobs for processing
+     *
+     * @return jobs or null if none has arrived within a short period
+     * @throws InterruptedException if interrupted while waiting
+     */
+    Handoff<T> take() throws InterruptedException {
+        return queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Register that a fetcher has stopped
+     */
+    void fetcherDone() {
+        fetchers.decrementAndGet();
+    }
+
+    /**
+     * Is there any more work coming
+     *
+     * @return true if all fetchers has stopped and everything has been taken
+     */
+    boolean isDrained() {
+        return fetchers.get() <= 0 && queue.isEmpty();
+    }
+}
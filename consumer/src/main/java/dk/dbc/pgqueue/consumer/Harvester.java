@@ -18,17 +18,26 @@
  */
 package dk.dbc.pgqueue.consumer;
 
+import dk.dbc.pgqueue.common.DeduplicateHash;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -41,35 +50,212 @@ import java.util.stream.Collectors;
 class Harvester<T> implements QueueWorker {
 
     private static final Logger log = LoggerFactory.getLogger(Harvester.class);
+    private static final MetricAbstraction.Timer NULL_TIMER = new MetricAbstractionNull().timer(Harvester.class, "null");
+    private static final long ERROR_MAINTENANCE_EVERY = TimeUnit.HOURS.toMillis(1);
 
     static class SqlQueueTimestamp {
 
+        // Jobs in flight are skipped, they cannot be dequeued, and would make
+        // the window grow with job duration. In lease mode they are postponed
+        // until the lease expires, so they aren't ready
         static final String SQL = "SELECT dequeueAfter FROM queue WHERE consumer=?" +
                                   " AND dequeueAfter<=clock_timestamp()" +
                                   " ORDER BY consumer, dequeueAfter" + // hit existing index
                                   " LIMIT 1";
+        // Otherwise they are locked by the transaction processing them, and
+        // only trying to lock a row tells if it is. The lock is taken in a
+        // savepoint, that is rolled back right after the read, so no row is
+        // kept from other workers
+        static final String SQL_SKIP_LOCKED = "SELECT dequeueAfter FROM queue WHERE consumer=?" +
+                                              " AND dequeueAfter<=clock_timestamp()" +
+                                              " ORDER BY consumer, dequeueAfter" + // hit existing index
+                                              " FOR UPDATE SKIP LOCKED" +
+                                              " LIMIT 1";
         static final int CONSUMER_POS = 1;
     }
 
     static class SqlCurrentTimestamp {
 
-        static final String SQL = "SELECT clock_timestamp() - 500 * INTERVAL '1 MILLISECONDS'";
+        static final String SQL = "SELECT clock_timestamp() - ? * INTERVAL '1 MILLISECONDS'";
+        static final int WINDOW_POS = 1;
     }
 
     static class SqlSelect {
 
         private static final String SQL = "DELETE" +
                                           " FROM queue" +
-                                          " WHERE ctid = (SELECT ctid FROM queue WHERE consumer=?" +
+                                          " WHERE consumer=?" + // prune partitions (ctid isn't unique across them)
+                                          " AND ctid = (SELECT ctid FROM queue WHERE consumer=?" +
                                           " AND dequeueAfter<=clock_timestamp()" +
-                                          " AND dequeueAfter>=?::TIMESTAMP - INTERVAL '%d MILLISECONDS'" +
+                                          " AND dequeueAfter>=?::TIMESTAMP - ? * INTERVAL '1 MILLISECONDS'" +
                                           " ORDER BY consumer, dequeueAfter" + // hit existing index
                                           " FOR UPDATE SKIP LOCKED" +
                                           " LIMIT 1)" +
                                           " RETURNING " + JobMetaData.COLUMNS + ", %s";
+        static final int PARTITION_POS = 1;
+        static final int CONSUMER_POS = 2;
+        static final int TIMESTAMP_POS = 3;
+        static final int WINDOW_POS = 4;
+        static final int HINT_CONSUMERS_POS = 5;
+
+    }
+
+    static class SqlSelectBatch {
+
+        private static final String SQL = "DELETE" +
+                                          " FROM queue" +
+                                          " WHERE consumer=?" + // prune partitions (ctid isn't unique across them)
+                                          " AND ctid = ANY(ARRAY(SELECT ctid FROM queue WHERE consumer=?" +
+                                          " AND dequeueAfter<=clock_timestamp()" +
+                                          " AND dequeueAfter>=?::TIMESTAMP - ? * INTERVAL '1 MILLISECONDS'" +
+                                          " ORDER BY consumer, dequeueAfter" + // hit existing index
+                                          " FOR UPDATE SKIP LOCKED" +
+                                          " LIMIT ?))" +
+                                          " RETURNING " + JobMetaData.COLUMNS + ", %s";
+        static final int PARTITION_POS = 1;
+        static final int CONSUMER_POS = 2;
+        static final int TIMESTAMP_POS = 3;
+        static final int WINDOW_POS = 4;
+        static final int LIMIT_POS = 5;
+        static final int HINT_CONSUMERS_POS = 6;
+
+    }
+
+    /**
+     * The duplicate hint column comes before the where clause, when it takes
+     * the consumer names the other positions are one higher
+     */
+    static class SqlSelectInPlace {
+
+        private static final String SQL = "SELECT " + JobMetaData.COLUMNS + ", %s, ctid" +
+                                          " FROM queue WHERE consumer=?" +
+                                          " AND dequeueAfter<=clock_timestamp()" +
+                                          " AND dequeueAfter>=?::TIMESTAMP - ? * INTERVAL '1 MILLISECONDS'" +
+                                          " ORDER BY consumer, dequeueAfter" + // hit existing index
+                                          " FOR UPDATE SKIP LOCKED" +
+                                          " LIMIT ?";
+        static final int HINT_CONSUMERS_POS = 1;
         static final int CONSUMER_POS = 1;
         static final int TIMESTAMP_POS = 2;
+        static final int WINDOW_POS = 3;
+        static final int LIMIT_POS = 4;
+
+    }
+
+    static class SqlDeleteInPlace {
+
+        static final String SQL = "DELETE FROM queue WHERE consumer=? AND ctid=?::tid";
+        static final int PARTITION_POS = 1;
+        static final int CTID_POS = 2;
+
+    }
+
+    static class SqlRetryInPlace {
+
+        static final String SQL = "UPDATE queue SET tries=? WHERE consumer=? AND ctid=?::tid";
+        static final int TRIES_POS = 1;
+        static final int PARTITION_POS = 2;
+        static final int CTID_POS = 3;
+
+    }
+
+    static class SqlPostponeInPlace {
+
+        static final String SQL = "UPDATE queue SET tries=?, dequeueAfter=clock_timestamp() + ? * INTERVAL '1 MILLISECONDS'" +
+                                  " WHERE consumer=? AND ctid=?::tid";
+        static final int TRIES_POS = 1;
+        static final int POSTPONE_POS = 2;
+        static final int PARTITION_POS = 3;
+        static final int CTID_POS = 4;
+
+    }
+
+    static class SqlLeaseClaim {
+
+        private static final String SQL = "WITH claimed AS (SELECT pk AS claimedPk, dequeueAfter AS claimedDequeueAfter," +
+                                          " clock_timestamp() + ? * INTERVAL '1 MILLISECONDS' AS claimedUntil" +
+                                          " FROM queue WHERE consumer=?" +
+                                          " AND dequeueAfter<=clock_timestamp()" +
+                                          " AND dequeueAfter>=?::TIMESTAMP - ? * INTERVAL '1 MILLISECONDS'" +
+                                          " ORDER BY consumer, dequeueAfter" + // hit existing index
+                                          " FOR UPDATE SKIP LOCKED" +
+                                          " LIMIT ?)" +
+                                          " UPDATE queue SET leasedUntil=claimedUntil, leaseOwner=?," +
+                                          " dequeueAfter=claimedUntil," + // out of reach until the lease expires
+                                          " tries=tries + 1" + // counts even if the worker dies
+                                          " FROM claimed WHERE consumer=? AND pk=claimedPk" +
+                                          " RETURNING consumer, queued, claimedDequeueAfter, tries - 1, %s, pk";
+        static final int LEASE_POS = 1;
+        static final int CONSUMER_POS = 2;
+        static final int TIMESTAMP_POS = 3;
+        static final int WINDOW_POS = 4;
+        static final int LIMIT_POS = 5;
+        static final int OWNER_POS = 6;
+        static final int PARTITION_POS = 7;
+        static final int HINT_CONSUMERS_POS = 8;
+
+    }
+
+    static class SqlLeaseDelete {
+
+        static final String SQL = "DELETE FROM queue WHERE consumer=? AND pk=? AND leaseOwner=?";
+        static final int PARTITION_POS = 1;
+        static final int PK_POS = 2;
+        static final int OWNER_POS = 3;
+
+    }
+
+    static class SqlLeaseRetry {
+
+        private static final String SQL = "UPDATE queue SET leasedUntil=NULL, leaseOwner=NULL, dequeueAfter=?, %s" +
+                                          " WHERE consumer=? AND pk=? AND leaseOwner=?";
+        static final int DEQUEUE_AFTER_POS = 1;
+        static final int NEXT_POS = 2;
+
+    }
+
+    static class SqlLeasePostpone {
+
+        private static final String SQL = "UPDATE queue SET leasedUntil=NULL, leaseOwner=NULL, dequeueAfter=clock_timestamp() + ? * INTERVAL '1 MILLISECONDS', %s" +
+                                          " WHERE consumer=? AND pk=? AND leaseOwner=?";
+        static final int POSTPONE_POS = 1;
+        static final int NEXT_POS = 2;
+
+    }
+
+    static class SqlLeaseStore {
+
+        private static final String SQL = "UPDATE queue SET %s WHERE consumer=? AND pk=? AND leaseOwner=?";
+        static final int NEXT_POS = 1;
+
+    }
+
+    static class SqlLeaseExpire {
+
+        static final String SQL = "UPDATE queue SET leasedUntil=NULL, leaseOwner=NULL, dequeueAfter=clock_timestamp()" +
+                                  " WHERE leasedUntil<clock_timestamp()";
+    }
 
+    static class SqlMaintainErrors {
+
+        static final String LOCK_TIMEOUT = "SET LOCAL lock_timeout = '1s'";
+        static final String SQL = "SELECT pgqueue_admin_maintain_queue_error(? * INTERVAL '1 millisecond')";
+        static final int RETENTION_POS = 1;
+    }
+
+    static class SqlQueueSample {
+
+        // The time is computed once, so it can be used in the index condition
+        // of queue_take, and the counts are index (only) scans with a limit
+        static final String SQL = "SELECT c.consumer," +
+                                  " (SELECT COUNT(*) FROM (SELECT 1 FROM queue WHERE consumer=c.consumer AND dequeueAfter<=t.now ORDER BY consumer, dequeueAfter LIMIT ?) AS r)," +
+                                  " (SELECT COUNT(*) FROM (SELECT 1 FROM queue WHERE consumer=c.consumer AND dequeueAfter>t.now ORDER BY consumer, dequeueAfter LIMIT ?) AS p)," +
+                                  " (SELECT EXTRACT(EPOCH FROM t.now - dequeueAfter) * 1000 FROM queue WHERE consumer=c.consumer AND dequeueAfter<=t.now ORDER BY consumer, dequeueAfter LIMIT 1)::BIGINT" +
+                                  " FROM UNNEST(?::TEXT[]) AS c(consumer) CROSS JOIN (SELECT clock_timestamp() AS now) AS t";
+        static final int READY_LIMIT_POS = 1;
+        static final int POSTPONED_LIMIT_POS = 2;
+        static final int CONSUMERS_POS = 3;
+        static final int MAX_COUNT = 10_000;
     }
 
     static class SqlDeleteDuplicate {
@@ -93,12 +279,47 @@ class Harvester<T> implements QueueWorker {
                 " RETURNING " + JobMetaData.COLUMNS + ", %s";
     }
 
+    static class SqlDeleteDuplicateAllConsumers {
+
+        private static final String SQL = "DELETE" +
+                " FROM queue" +
+                " WHERE consumer=ANY(?)" +
+                " AND dequeueAfter<=clock_timestamp()" +
+                " AND (tableoid, ctid) IN (SELECT tableoid, ctid FROM queue WHERE consumer = ANY(?) AND %s FOR UPDATE SKIP LOCKED)" +
+                " AND %s" +
+                " RETURNING " + JobMetaData.COLUMNS + ", %s";
+    }
+
+    static class SqlDeleteDuplicateAllConsumersIncludePostponed {
+
+        private static final String SQL = "DELETE" +
+                " FROM queue" +
+                " WHERE consumer=ANY(?)" +
+                " AND (tableoid, ctid) IN (SELECT tableoid, ctid FROM queue WHERE consumer = ANY(?) AND %s FOR UPDATE SKIP LOCKED)" +
+                " AND %s" +
+                " RETURNING " + JobMetaData.COLUMNS + ", %s";
+    }
+
+    /**
+     * Positions in the delete duplicate statements, with all consumers the
+     * consumer positions are arrays
+     */
     static class SqlDeleteDuplicatePositions {
         static final int CONSUMER_POS_1 = 1;
         static final int CONSUMER_POS_2 = 2;
         static final int DUPLICATE_POS = 3;
     }
 
+    /**
+     * Extra column for the claim statements, if the claimed row has
+     * duplicates, so the delete duplicate statement can be skipped when it
+     * hasn't
+     */
+    static class SqlDuplicateHint {
+
+        private static final String SQL = "EXISTS(SELECT 1 FROM queue d WHERE %s AND d.pk<>queue.pk)";
+    }
+
     private static class SqlInsert {
 
         private static final String SQL = "INSERT INTO queue (" +
@@ -119,43 +340,121 @@ class Harvester<T> implements QueueWorker {
     final Settings<T> settings;
     private final DataSource dataSource;
     private final List<JobWorker<T>> workers;
+    private final Supplier<JobConsumer<T>> consumerSupplier;
+    private final int minWorkers;
+    private final int maxWorkers;
+    private final AtomicInteger workerCount;
+    private final AtomicLong nextScaleUp;
+    private final AtomicLong nextScaleDown;
+    final QueueListener listener;
 
     private final String selectSql;
+    private final String selectBatchSql;
     private final String retrySql;
     private final String postponeSql;
     private final String failedSql;
     private final String deleteDuplicateSql;
+    private final String selectInPlaceSql;
+    private final String leaseClaimSql;
+    private final String leaseRetrySql;
+    private final String leasePostponeSql;
+    private final String leaseStoreSql;
     private final int duplicateDeleteColumnsCount;
 
     final MetricAbstraction.Timer databaseconnectTimer;
     final MetricAbstraction.Timer dequeueTimer;
     final MetricAbstraction.Timer deleteDuplicateTimer;
+    final MetricAbstraction.Timer deduplicateTimer;
     final MetricAbstraction.Timer retryTimer;
     final MetricAbstraction.Timer postponeTimer;
     final MetricAbstraction.Timer failureTimer;
     final MetricAbstraction.Timer timestampTimer;
     final MetricAbstraction.Counter rescanCounter;
     final MetricAbstraction.Counter recalcPreparedStatementCounter;
+    final MetricAbstraction.Counter notificationCounter;
+    final MetricAbstraction.Counter watermarkHitCounter;
+    final MetricAbstraction.Counter watermarkMissCounter;
+    final MetricAbstraction.Counter leaseExpiredCounter;
+    final MetricAbstraction.Counter leaseLostCounter;
+    final MetricAbstraction.Counter errorPartitionsDroppedCounter;
+    final MetricAbstraction.Counter duplicateHintSkipCounter;
+    final MetricAbstraction.Counter duplicateHintMissCounter;
+    final MetricAbstraction.Counter workerSpawnedCounter;
+    final MetricAbstraction.Counter workerRetiredCounter;
+    final MetricAbstraction.Gauge workersGauge;
+    final Watermarks watermarks;
+    final DequeueWindows windows;
+    final Map<String, MetricAbstraction.Timer> processTimers;
+    private final Map<String, AtomicInteger> inFlight;
+
+    private final AtomicLong nextErrorMaintenance;
+    private final AtomicLong nextSample;
+    private final Map<String, MetricAbstraction.Gauge> readyGauges;
+    private final Map<String, MetricAbstraction.Gauge> postponedGauges;
+    private final Map<String, MetricAbstraction.Gauge> oldestAgeGauges;
 
     private volatile boolean running;
 
-    Harvester(Settings<T> config, DataSource dataSource, Collection<JobConsumer<T>> consumers) {
+    /**
+     * Construct a harvester
+     *
+     * @param config           settings
+     * @param dataSource       where to connect to
+     * @param consumers        the consumers to start with
+     * @param consumerSupplier where to get more consumers from, or null for a
+     *                         fixed number of workers
+     * @param maxWorkers       max number of workers (elastic)
+     */
+    Harvester(Settings<T> config, DataSource dataSource, Collection<JobConsumer<T>> consumers, Supplier<JobConsumer<T>> consumerSupplier, int maxWorkers) {
         this.settings = config;
         this.dataSource = dataSource;
         this.running = false;
         String jobColumns = String.join(", ", config.storageAbstraction.columnList());
-        selectSql = String.format(SqlSelect.SQL, config.window, jobColumns);
-        this.workers = consumers.stream()
-                .map(c -> new JobWorker<>(c, this, config.health))
-                .collect(Collectors.toList());
+        String claimColumns = config.duplicateHint ? jobColumns + ", " + duplicateHintColumn(config) : jobColumns;
+        selectSql = String.format(SqlSelect.SQL, claimColumns);
+        selectBatchSql = String.format(SqlSelectBatch.SQL, claimColumns);
+        selectInPlaceSql = String.format(SqlSelectInPlace.SQL, claimColumns);
+        if (config.fetchers > 0) {
+            Dispatcher<T> dispatcher = new Dispatcher<>(consumers.size(), config.fetchers);
+            this.workers = new ArrayList<>();
+            for (int i = 0 ; i < config.fetchers ; i++) {
+                workers.add(new JobWorker<>(null, this, config.health, dispatcher));
+            }
+            consumers.forEach(c -> workers.add(new JobWorker<>(c, this, config.health, dispatcher)));
+        } else {
+            this.workers = consumers.stream()
+                    .map(c -> new JobWorker<>(c, this, config.health))
+                    .collect(Collectors.toCollection(CopyOnWriteArrayList::new));
+        }
+        this.consumerSupplier = consumerSupplier;
+        this.minWorkers = consumers.size();
+        this.maxWorkers = maxWorkers;
+        this.workerCount = new AtomicInteger(consumers.size());
+        this.nextScaleUp = new AtomicLong();
+        this.nextScaleDown = new AtomicLong();
         int positionalArgumentsCount = config.storageAbstraction.columnList().length;
         String jobSqlPlaceholders = String.join(
                 ", ",
                 Collections.nCopies(positionalArgumentsCount, "?"));
 
-        this.retrySql = String.format(SqlInsert.SQL, jobColumns, JobMetaData.RETRY_PLACEHOLDER, jobSqlPlaceholders);
-        this.postponeSql = String.format(SqlInsert.SQL, jobColumns, JobMetaData.POSTPONED_PLACEHOLDER, jobSqlPlaceholders);
-        this.failedSql = String.format(SqlFailed.SQL, jobColumns, jobSqlPlaceholders);
+        if (config.deduplicateHash) { // Requeued jobs keep their hash
+            String insertColumns = jobColumns + ", " + DeduplicateHash.COLUMN;
+            String insertPlaceholders = jobSqlPlaceholders + ", " + DeduplicateHash.expression(config.deduplicateAbstraction);
+            this.retrySql = String.format(SqlInsert.SQL, insertColumns, JobMetaData.RETRY_PLACEHOLDER, insertPlaceholders);
+            this.postponeSql = String.format(SqlInsert.SQL, insertColumns, JobMetaData.POSTPONED_PLACEHOLDER, insertPlaceholders);
+            this.failedSql = String.format(SqlFailed.SQL, insertColumns, insertPlaceholders); // Kept when requeued
+        } else {
+            this.retrySql = String.format(SqlInsert.SQL, jobColumns, JobMetaData.RETRY_PLACEHOLDER, jobSqlPlaceholders);
+            this.postponeSql = String.format(SqlInsert.SQL, jobColumns, JobMetaData.POSTPONED_PLACEHOLDER, jobSqlPlaceholders);
+            this.failedSql = String.format(SqlFailed.SQL, jobColumns, jobSqlPlaceholders);
+        }
+        String jobAssignments = Arrays.stream(config.storageAbstraction.columnList())
+                .map(s -> s + "=?")
+                .collect(Collectors.joining(", "));
+        this.leaseClaimSql = String.format(SqlLeaseClaim.SQL, claimColumns);
+        this.leaseRetrySql = String.format(SqlLeaseRetry.SQL, jobAssignments);
+        this.leasePostponeSql = String.format(SqlLeasePostpone.SQL, jobAssignments);
+        this.leaseStoreSql = String.format(SqlLeaseStore.SQL, jobAssignments);
         if (config.deduplicateAbstraction == null) {
             this.deleteDuplicateSql = null;
             this.duplicateDeleteColumnsCount = 0;
@@ -165,19 +464,99 @@ class Harvester<T> implements QueueWorker {
             String whereClause = Arrays.stream(duplicateDeleteColumns)
                     .map(s -> s + "=?")
                     .collect(Collectors.joining(" AND "));
-            this.deleteDuplicateSql = config.includePostponedInDeduplication
-                ? String.format(SqlDeleteDuplicateIncludePostponed.SQL, whereClause, whereClause, jobColumns)
-                : String.format(SqlDeleteDuplicate.SQL, whereClause, whereClause, jobColumns);
+            if (config.deduplicateHash) // Index lookup, the columns guard against collisions
+                whereClause = DeduplicateHash.COLUMN + "=" + DeduplicateHash.expression(config.deduplicateAbstraction) + " AND " + whereClause;
+            if (config.dequeueMode == DequeueMode.LEASE)
+                whereClause += " AND leasedUntil IS NULL"; // Not the job itself, nor jobs other workers are processing
+            if (config.dequeueMode == DequeueMode.IN_PLACE && config.deduplicateFromAllConsumers)
+                whereClause += " AND consumer || ctid::TEXT <> ALL(?::TEXT[])"; // Not the rows this worker has locked (ctid is per partition)
+            else if (config.dequeueMode == DequeueMode.IN_PLACE)
+                whereClause += " AND ctid <> ALL(?::TEXT[]::TID[])"; // Not the rows this worker has locked
+            String sql;
+            if (config.deduplicateFromAllConsumers) {
+                sql = config.includePostponedInDeduplication ? SqlDeleteDuplicateAllConsumersIncludePostponed.SQL : SqlDeleteDuplicateAllConsumers.SQL;
+            } else {
+                sql = config.includePostponedInDeduplication ? SqlDeleteDuplicateIncludePostponed.SQL : SqlDeleteDuplicate.SQL;
+            }
+            this.deleteDuplicateSql = String.format(sql, whereClause, whereClause, jobColumns);
         }
         this.databaseconnectTimer = makeTimer("databaseconnect");
         this.dequeueTimer = makeTimer("dequeue");
         this.deleteDuplicateTimer = makeTimer("deleteDuplicate");
+        this.deduplicateTimer = makeTimer("deduplicate");
         this.retryTimer = makeTimer("retry");
         this.postponeTimer = makeTimer("postpone");
         this.failureTimer = makeTimer("failure");
         this.timestampTimer = makeTimer("timestamp");
         this.rescanCounter = makeCounter("rescan");
         this.recalcPreparedStatementCounter = makeCounter("recalcPreparedStatement");
+        this.notificationCounter = makeCounter("notification");
+        this.watermarkHitCounter = makeCounter("watermarkHit");
+        this.watermarkMissCounter = makeCounter("watermarkMiss");
+        this.leaseExpiredCounter = makeCounter("leaseExpired");
+        this.leaseLostCounter = makeCounter("leaseLost");
+        this.errorPartitionsDroppedCounter = makeCounter("errorPartitionsDropped");
+        this.duplicateHintSkipCounter = makeCounter("duplicateHintSkip");
+        this.duplicateHintMissCounter = makeCounter("duplicateHintMiss");
+        this.workerSpawnedCounter = makeCounter("workerSpawned");
+        this.workerRetiredCounter = makeCounter("workerRetired");
+        this.workersGauge = settings.metricAbstraction.gauge(Harvester.class, "workers");
+        workersGauge.set(workers.size());
+        config.deduplicateDisable.metrics(settings.metricAbstraction.gauge(Harvester.class, "deduplicateState"),
+                                          settings.metricAbstraction.gauge(Harvester.class, "deduplicateP95"));
+        config.concurrencyLimit.metrics(settings.metricAbstraction.gauge(Harvester.class, "concurrencyLimit"));
+        this.nextErrorMaintenance = new AtomicLong(config.errorRetention > 0 ? 0 : Long.MAX_VALUE);
+        this.windows = new DequeueWindows(config.consumerNames, config.window, config.maxWindow, config.metricAbstraction);
+        this.watermarks = new Watermarks(config.consumerNames, config.fullScanEvery, watermarkHitCounter, watermarkMissCounter,
+                                         (queue, before, after) -> windows.rescanned(queue, before.getTime() - after.getTime()));
+        this.processTimers = new HashMap<>();
+        for (String consumerName : config.consumerNames) {
+            processTimers.put(consumerName, makeTimer("process." + consumerName.replaceAll("[^0-9a-zA-Z_]", "_")));
+        }
+        this.nextSample = new AtomicLong(config.sampleInterval > 0 ? 0 : Long.MAX_VALUE);
+        this.readyGauges = new HashMap<>();
+        this.postponedGauges = new HashMap<>();
+        this.oldestAgeGauges = new HashMap<>();
+        if (config.sampleInterval > 0) {
+            for (String consumerName : config.consumerNames) {
+                String suffix = "." + consumerName.replaceAll("[^0-9a-zA-Z_]", "_");
+                readyGauges.put(consumerName, settings.metricAbstraction.gauge(Harvester.class, "queueReady" + suffix));
+                postponedGauges.put(consumerName, settings.metricAbstraction.gauge(Harvester.class, "queuePostponed" + suffix));
+                oldestAgeGauges.put(consumerName, settings.metricAbstraction.gauge(Harvester.class, "queueOldestAge" + suffix));
+            }
+        }
+        this.inFlight = new HashMap<>();
+        config.maxConcurrency.keySet().forEach(name -> inFlight.put(name, new AtomicInteger()));
+        this.listener = config.listen ? new QueueListener(this, dataSource, notificationCounter) : null;
+    }
+
+    /**
+     * Build the duplicate hint column, it matches rows like the delete
+     * duplicate statement does, except for the rows locked by the worker
+     * (which only makes the hint true more often). With all consumers the
+     * consumer names are bound as an array, at the HINT_CONSUMERS_POS of the
+     * claim statement
+     *
+     * @param config settings with deduplication
+     * @return SQL expression for the claim statements
+     */
+    private static String duplicateHintColumn(Settings<?> config) {
+        StringBuilder where = new StringBuilder();
+        if (config.deduplicateFromAllConsumers) {
+            where.append("d.consumer=ANY(?)");
+        } else {
+            where.append("d.consumer=queue.consumer");
+        }
+        if (config.deduplicateHash)
+            where.append(" AND d.").append(DeduplicateHash.COLUMN).append("=queue.").append(DeduplicateHash.COLUMN);
+        for (String column : config.deduplicateAbstraction.duplicateDeleteColumnList()) {
+            where.append(" AND d.").append(column).append("=queue.").append(column);
+        }
+        if (!config.includePostponedInDeduplication)
+            where.append(" AND d.dequeueAfter<=clock_timestamp()");
+        if (config.dequeueMode == DequeueMode.LEASE)
+            where.append(" AND d.leasedUntil IS NULL");
+        return String.format(SqlDuplicateHint.SQL, where);
     }
 
     private MetricAbstraction.Timer makeTimer(String name) {
@@ -194,6 +573,8 @@ class Harvester<T> implements QueueWorker {
             throw new IllegalStateException("Consumer has already been started");
         }
         running = true;
+        if (listener != null)
+            listener.start();
         for (JobWorker<T> worker : workers) {
             settings.executor.execute(worker);
         }
@@ -217,7 +598,10 @@ class Harvester<T> implements QueueWorker {
         }
         settings.executor.shutdown();
         try {
+            long deadline = System.currentTimeMillis() + tu.toMillis(timeout);
             boolean terminated = settings.executor.awaitTermination(timeout, tu);
+            if (listener != null)
+                listener.join(deadline - System.currentTimeMillis());
             if (!terminated) {
                 log.error("Error waiting for harvester-threads to finish: timed out");
             }
@@ -267,6 +651,15 @@ class Harvester<T> implements QueueWorker {
         return selectSql;
     }
 
+    /**
+     * Get the SQL statement for retrieving a batch of jobs from the queue
+     *
+     * @return SQL statement
+     */
+    String getSelectBatchSql() {
+        return selectBatchSql;
+    }
+
     /**
      * Get the SQL statement for retrying a job
      *
@@ -303,10 +696,173 @@ class Harvester<T> implements QueueWorker {
         return deleteDuplicateSql;
     }
 
+    /**
+     * Get the SQL statement for locking a batch of jobs in the queue
+     *
+     * @return SQL statement
+     */
+    String getSelectInPlaceSql() {
+        return selectInPlaceSql;
+    }
+
+    /**
+     * Get the SQL statement for leasing a batch of jobs from the queue
+     *
+     * @return SQL statement
+     */
+    String getLeaseClaimSql() {
+        return leaseClaimSql;
+    }
+
+    /**
+     * Get the SQL statement for returning a leased job to the queue
+     *
+     * @return SQL statement
+     */
+    String getLeaseRetrySql() {
+        return leaseRetrySql;
+    }
+
+    /**
+     * Get the SQL statement for returning a leased job to the queue with a
+     * delay
+     *
+     * @return SQL statement
+     */
+    String getLeasePostponeSql() {
+        return leasePostponeSql;
+    }
+
+    /**
+     * Get the SQL statement for updating the job of a leased row
+     *
+     * @return SQL statement
+     */
+    String getLeaseStoreSql() {
+        return leaseStoreSql;
+    }
+
     public int getDuplicateDeleteColumnsCount() {
         return duplicateDeleteColumnsCount;
     }
 
+    /**
+     * Get the timer for processing of jobs from a queue
+     * <p>
+     * The count and the total time shows the share of the work each queue
+     * received
+     *
+     * @param consumerName name of the queue
+     * @return timer
+     */
+    MetricAbstraction.Timer processTimer(String consumerName) {
+        MetricAbstraction.Timer timer = processTimers.get(consumerName);
+        if (timer == null)
+            return NULL_TIMER;
+        return timer;
+    }
+
+    /**
+     * Reserve room for jobs from a queue, that has a max concurrency
+     *
+     * @param consumerName name of the queue
+     * @param max          how many jobs are wanted
+     * @return how many jobs can be claimed (0 if the queue is at its cap)
+     */
+    int acquireInFlight(String consumerName, int max) {
+        AtomicInteger count = inFlight.get(consumerName);
+        if (count == null)
+            return max;
+        int cap = settings.maxConcurrency.get(consumerName);
+        for (;;) {
+            int current = count.get();
+            int room = Integer.min(max, cap - current);
+            if (room <= 0)
+                return 0;
+            if (count.compareAndSet(current, current + room))
+                return room;
+        }
+    }
+
+    /**
+     * Return room for jobs, when they're done or couldn't be claimed
+     *
+     * @param consumerName name of the queue
+     * @param count        number of jobs
+     */
+    void releaseInFlight(String consumerName, int count) {
+        AtomicInteger current = inFlight.get(consumerName);
+        if (current != null && count > 0)
+            current.addAndGet(-count);
+    }
+
+    /**
+     * Add a worker if jobs are claimed late, and the number of workers is
+     * elastic
+     * <p>
+     * At most one worker is added per scaleUpLag period
+     *
+     * @param lag how many milliseconds the claimed job has been due for
+     */
+    void lagging(long lag) {
+        if (consumerSupplier == null || lag < settings.scaleUpLag || !running)
+            return;
+        long now = System.currentTimeMillis();
+        long next = nextScaleUp.get();
+        if (now < next || !nextScaleUp.compareAndSet(next, now + settings.scaleUpLag))
+            return;
+        int count;
+        do {
+            count = workerCount.get();
+            if (count >= maxWorkers)
+                return;
+        } while (!workerCount.compareAndSet(count, count + 1));
+        JobWorker<T> worker = new JobWorker<>(consumerSupplier.get(), this, settings.health);
+        workers.add(worker);
+        try {
+            settings.executor.execute(worker);
+        } catch (RejectedExecutionException ex) { // Shutting down
+            workers.remove(worker);
+            workerCount.decrementAndGet();
+            return;
+        }
+        log.info("Added worker ({} of max {}), job was claimed {}ms late", count + 1, maxWorkers, lag);
+        workerSpawnedCounter.inc();
+        workersGauge.set(count + 1);
+    }
+
+    /**
+     * Remove an idle worker, if the number of workers is elastic, and there's
+     * more than the minimum
+     * <p>
+     * A worker has to have been idle for scaleUpLag, so a short pause in the
+     * queue doesn't retire workers, that are needed again right after. At
+     * most one worker is retired per scaleUpLag period
+     *
+     * @param worker the idle worker
+     * @param idle   how many milliseconds the worker has been without jobs
+     * @return if the worker should stop
+     */
+    boolean retire(JobWorker<T> worker, long idle) {
+        if (consumerSupplier == null || idle < settings.scaleUpLag)
+            return false;
+        long now = System.currentTimeMillis();
+        long next = nextScaleDown.get();
+        if (now < next || !nextScaleDown.compareAndSet(next, now + settings.scaleUpLag))
+            return false;
+        int count;
+        do {
+            count = workerCount.get();
+            if (count <= minWorkers)
+                return false;
+        } while (!workerCount.compareAndSet(count, count - 1));
+        workers.remove(worker);
+        log.info("Retired idle worker ({} of min {})", count - 1, minWorkers);
+        workerRetiredCounter.inc();
+        workersGauge.set(count - 1);
+        return true;
+    }
+
     /**
      * Is this still running or should we abort.
      *
@@ -315,4 +871,57 @@ class Harvester<T> implements QueueWorker {
     boolean isRunning() {
         return running;
     }
+
+    /**
+     * Claim the queue_error maintenance, if it is due
+     * <p>
+     * Only one worker gets true, and the next maintenance is scheduled
+     *
+     * @return if the caller should run the maintenance
+     */
+    boolean errorMaintenanceDue() {
+        long next = nextErrorMaintenance.get();
+        long now = System.currentTimeMillis();
+        return now >= next &&
+               nextErrorMaintenance.compareAndSet(next, now + ERROR_MAINTENANCE_EVERY);
+    }
+
+    /**
+     * Claim the queue sampling, if it is due
+     * <p>
+     * Only one worker gets true, and the next sample is scheduled
+     *
+     * @return if the caller should sample the queues
+     */
+    boolean sampleDue() {
+        long next = nextSample.get();
+        long now = System.currentTimeMillis();
+        return now >= next &&
+               nextSample.compareAndSet(next, now + settings.sampleInterval);
+    }
+
+    /**
+     * Publish a queue sample
+     *
+     * @param consumerName name of the queue
+     * @param ready        number of jobs that can be taken
+     * @param postponed    number of jobs that are postponed (or leased)
+     * @param oldestAge    how many ms the oldest ready job has been due for
+     */
+    void sampled(String consumerName, long ready, long postponed, long oldestAge) {
+        MetricAbstraction.Gauge gauge = readyGauges.get(consumerName);
+        if (gauge == null)
+            return;
+        gauge.set(ready);
+        postponedGauges.get(consumerName).set(postponed);
+        oldestAgeGauges.get(consumerName).set(oldestAge);
+    }
+
+    /**
+     * Stop the queue_error maintenance, it cannot be done on this database
+     */
+    void errorMaintenanceUnsupported() {
+        log.warn("errorRetention is set, but queue_error isn't partitioned - keeping all errors");
+        nextErrorMaintenance.set(Long.MAX_VALUE);
+    }
 }
@@ -34,6 +34,11 @@ import java.sql.SQLException;
 class JobWithMetaData<T> extends JobMetaData {
 
     private T job;
+    private String leaseKey;
+    private String leaseOwner;
+    private String ctid;
+    private boolean merged;
+    private boolean mayHaveDuplicates = true;
 
     /**
      * Construct a job with metadata from a database row
@@ -58,7 +63,63 @@ class JobWithMetaData<T> extends JobMetaData {
     }
 
     void setActualJob(T job) {
+        if (job != this.job)
+            merged = true;
         this.job = job;
     }
 
+    /**
+     * Has the job been replaced by merging with duplicates
+     *
+     * @return if the job columns differ from the row
+     */
+    boolean isMerged() {
+        return merged;
+    }
+
+    /**
+     * Set from the duplicate hint, when the job was dequeued
+     *
+     * @param mayHaveDuplicates if duplicates of the job were queued
+     */
+    void setMayHaveDuplicates(boolean mayHaveDuplicates) {
+        this.mayHaveDuplicates = mayHaveDuplicates;
+    }
+
+    boolean mayHaveDuplicates() {
+        return mayHaveDuplicates;
+    }
+
+    /**
+     * Set the row, when the job has been locked in in-place mode
+     *
+     * @param ctid the row id
+     */
+    void setCtid(String ctid) {
+        this.ctid = ctid;
+    }
+
+    String getCtid() {
+        return ctid;
+    }
+
+    /**
+     * Set the lease, when the job has been claimed in lease mode
+     *
+     * @param leaseKey   primary key of the row
+     * @param leaseOwner the owner the lease was taken by
+     */
+    void setLease(String leaseKey, String leaseOwner) {
+        this.leaseKey = leaseKey;
+        this.leaseOwner = leaseOwner;
+    }
+
+    String getLeaseKey() {
+        return leaseKey;
+    }
+
+    String getLeaseOwner() {
+        return leaseOwner;
+    }
+
 }
@@ -26,11 +26,15 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Savepoint;
+import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -42,29 +46,64 @@ class JobWorker<T> implements Runnable {
 
     private final JobConsumer<T> consumer;
     private final Harvester<T> harvester;
-    private final HashMap<String, Timestamp> timestamps = new HashMap<>();
+    private final ArrayDeque<JobWithMetaData<T>> pending = new ArrayDeque<>();
     private final QueueHealth health;
+    private final Dispatcher<T> dispatcher;
+    private final boolean lease;
+    private final boolean inPlace;
+    private final String leaseOwner;
+    private final int keyColumn;
+    private final int hintColumn;
+    private final boolean hintConsumers;
     private Connection connection;
     private PreparedStatement timestampStmt;
     private PreparedStatement clockStmt;
     private PreparedStatement selectStmt;
+    private PreparedStatement selectBatchStmt;
     private PreparedStatement retryStmt;
     private PreparedStatement postponeStmt;
     private PreparedStatement failedStmt;
     private PreparedStatement deleteDuplicateStmt;
-    private int fullScanCounter;
+    private PreparedStatement selectInPlaceStmt;
+    private PreparedStatement deleteInPlaceStmt;
+    private PreparedStatement retryInPlaceStmt;
+    private PreparedStatement postponeInPlaceStmt;
+    private PreparedStatement leaseClaimStmt;
+    private PreparedStatement leaseDeleteStmt;
+    private PreparedStatement leaseRetryStmt;
+    private PreparedStatement leasePostponeStmt;
+    private PreparedStatement leaseStoreStmt;
     private Thread self;
+    private volatile boolean retired;
 
     JobWorker(JobConsumer<T> consumer, Harvester<T> harvester, QueueHealth health) {
+        this(consumer, harvester, health, null);
+    }
+
+    /**
+     * Construct a worker for dispatcher mode
+     *
+     * @param consumer   the consumer, or null for a fetcher
+     * @param harvester  the owner
+     * @param health     where to report database calls
+     * @param dispatcher hand-off between fetchers and processors
+     */
+    JobWorker(JobConsumer<T> consumer, Harvester<T> harvester, QueueHealth health, Dispatcher<T> dispatcher) {
         this.consumer = consumer;
+        this.dispatcher = dispatcher;
         this.harvester = harvester;
         this.connection = null;
         this.selectStmt = null;
         this.retryStmt = null;
         this.postponeStmt = null;
         this.failedStmt = null;
-        this.fullScanCounter = harvester.settings.fullScanEvery;
         this.health = health;
+        this.lease = harvester.settings.dequeueMode == DequeueMode.LEASE;
+        this.inPlace = harvester.settings.dequeueMode == DequeueMode.IN_PLACE;
+        this.leaseOwner = UUID.randomUUID().toString();
+        this.hintColumn = harvester.settings.duplicateHint ? 1 + JobMetaData.COLUMN_COUNT + harvester.settings.storageAbstraction.columnList().length : 0;
+        this.hintConsumers = harvester.settings.duplicateHint && harvester.settings.deduplicateFromAllConsumers;
+        this.keyColumn = 1 + JobMetaData.COLUMN_COUNT + harvester.settings.storageAbstraction.columnList().length + ( hintColumn > 0 ? 1 : 0 );
     }
 
     /**
@@ -74,11 +113,35 @@ class JobWorker<T> implements Runnable {
     @Override
     public void run() {
         self = Thread.currentThread();
-        while (harvester.isRunning()) {
+        if (dispatcher == null) {
+            runStandalone();
+        } else if (consumer == null) {
+            runFetcher();
+        } else {
+            runProcessor();
+        }
+    }
+
+    /**
+     * Fetch and process jobs on the same connection
+     */
+    private void runStandalone() {
+        ConcurrencyLimit concurrencyLimit = harvester.settings.concurrencyLimit;
+        boolean permit = false;
+        while (isActive() || !pending.isEmpty()) {
+            if (!permit) { // A permit covers a claim and the rest of its batch
+                try {
+                    if (!concurrencyLimit.acquire())
+                        continue;
+                } catch (InterruptedException ex) {
+                    continue;
+                }
+                permit = true;
+            }
             try {
                 JobWithMetaData<T> job = nextJob();
                 if (job == null) {
-                    if (harvester.isRunning()) {
+                    if (isActive()) {
                         log.error("Unknown State!!! got no job, but is still running");
                     }
                 } else {
@@ -94,11 +157,123 @@ class JobWorker<T> implements Runnable {
                 log.error("Error fetching job: {}", ex.getMessage());
                 log.debug("Error fetching job:", ex);
             }
+            if (pending.isEmpty()) {
+                concurrencyLimit.release();
+                permit = false;
+            }
         }
         releasePreparedStmts();
         releaseConnection();
     }
 
+    /**
+     * Claim jobs and hand them, with the connection holding the transaction,
+     * to a processor
+     * <p>
+     * A new connection is borrowed from the DataSource for the next claim
+     */
+    private void runFetcher() {
+        ConcurrencyLimit concurrencyLimit = harvester.settings.concurrencyLimit;
+        try {
+            while (harvester.isRunning()) {
+                try {
+                    if (!dispatcher.acquireSlot())
+                        continue;
+                } catch (InterruptedException ex) {
+                    continue;
+                }
+                try {
+                    if (!concurrencyLimit.acquire()) {
+                        dispatcher.releaseSlot();
+                        continue;
+                    }
+                } catch (InterruptedException ex) {
+                    dispatcher.releaseSlot();
+                    continue;
+                }
+                boolean handedOff = false;
+                try {
+                    JobWithMetaData<T> job = nextJob();
+                    if (job != null) {
+                        ArrayList<JobWithMetaData<T>> jobs = new ArrayList<>(pending.size() + 1);
+                        jobs.add(job);
+                        jobs.addAll(pending);
+                        pending.clear();
+                        releasePreparedStmts();
+                        dispatcher.handOff(new Dispatcher.Handoff<>(connection, jobs));
+                        connection = null;
+                        handedOff = true;
+                    }
+                } catch (SQLException ex) {
+                    log.error("Error fetching job: {}", ex.getMessage());
+                    log.debug("Error fetching job:", ex);
+                    log.info("Disconnecting from database");
+                    releasePreparedStmts();
+                    releaseConnection();
+                } catch (RuntimeException ex) {
+                    log.error("Error fetching job: {}", ex.getMessage());
+                    log.debug("Error fetching job:", ex);
+                } finally {
+                    if (!handedOff) {
+                        concurrencyLimit.release();
+                        dispatcher.releaseSlot();
+                    }
+                }
+            }
+            releasePreparedStmts();
+            releaseConnection();
+        } finally {
+            dispatcher.fetcherDone();
+        }
+    }
+
+    /**
+     * Process jobs claimed by a fetcher, commit and return the connection to
+     * the DataSource
+     */
+    private void runProcessor() {
+        while (harvester.isRunning() || !dispatcher.isDrained()) {
+            Dispatcher.Handoff<T> handoff;
+            try {
+                handoff = dispatcher.take();
+            } catch (InterruptedException ex) {
+                continue;
+            }
+            if (handoff == null)
+                continue;
+            connection = handoff.connection;
+            pending.addAll(handoff.jobs);
+            try {
+                JobWithMetaData<T> job;
+                while (( job = pending.poll() ) != null) {
+                    log.debug("job = {} (dispatched)", job);
+                    process(job);
+                }
+            } catch (SQLException ex) {
+                log.error("Error processing job: {}", ex.getMessage());
+                log.debug("Error processing job:", ex);
+            } catch (RuntimeException ex) {
+                log.error("Error processing job: {}", ex.getMessage());
+                log.debug("Error processing job:", ex);
+                sql(() -> connection.rollback(), "Error rolling back");
+            } finally {
+                releasePreparedStmts();
+                releaseConnection();
+                harvester.settings.concurrencyLimit.release();
+                dispatcher.releaseSlot();
+            }
+        }
+    }
+
+    /**
+     * Should this worker keep taking jobs
+     *
+     * @return if the harvester is running, and this worker hasn't retired
+     */
+    private boolean isActive() {
+        return harvester.isRunning() && !retired;
+    }
+
     /**
      * Interrupt self
      */
@@ -118,8 +293,12 @@ class JobWorker<T> implements Runnable {
      * @throws Exception If no connection can be made.
      */
     private JobWithMetaData<T> nextJob() throws SQLException {
-        JobWithMetaData<T> job = null;
-        while (harvester.isRunning() && job == null) {
+        JobWithMetaData<T> job = pending.poll();
+        if (job != null) {
+            log.debug("job = {} (from batch)", job);
+            return job;
+        }
+        while (isActive() && job == null) {
             if (connection == null || !connection.isValid(0)) {
                 releasePreparedStmts();
                 releaseConnection();
@@ -151,72 +330,296 @@ class JobWorker<T> implements Runnable {
      * - reset into the queue with new tried count
      * - reset into the queue with new tried count and new dequeueAfter time
      * </pre>
+     * <p>
+     * The transaction is committed, when there are no more jobs left in the
+     * batch the job came from. In lease mode every job is committed by itself
      *
      * @param job The job to process
      */
     private void process(JobWithMetaData<T> job) throws SQLException {
         boolean success = false;
+        long start = System.nanoTime();
+        long acceptStart = 0;
+        MetricAbstraction.Timer.Context time = harvester.processTimer(job.getConsumer()).time();
         try {
-            Savepoint savepoint = connection.setSavepoint();
+            if (lease && !deduplicateLeased(job))
+                return; // Someone else has the job, and the duplicates
+            // In lease mode there's nothing to keep, and a savepoint would open a transaction
+            Savepoint savepoint = lease ? null : connection.setSavepoint();
             try {
-                if (harvester.settings.deduplicateAbstraction != null) {
-                    for (String consumerName : harvester.settings.deduplicateFromAllConsumers ? harvester.settings.consumerNames : Collections.singleton(job.getConsumer())) {
-                        ResultSet resultSet = timedDeleteDuplicate(job, consumerName);
-                        if (resultSet != null) {
-                            while (resultSet.next()) {
-                                JobWithMetaData<T> skippedJob = new JobWithMetaData<>(resultSet, 1, harvester.settings.storageAbstraction);
-                                T actualJob = harvester.settings.deduplicateAbstraction
-                                        .mergeJob(job.getActualJob(), skippedJob.getActualJob());
-                                job.setActualJob(actualJob);
-                                log.info("Skipping job: {}", skippedJob);
-                            }
-                        }
-                    }
-                }
+                if (!lease)
+                    deduplicate(job);
 
+                acceptStart = System.nanoTime();
                 consumer.accept(connection, job.getActualJob(), job);
-                success = true;
-                sql(() -> connection.releaseSavepoint(savepoint), "Release savepoint");
+                // A lost lease isn't a completed job, the work is rolled back
+                success = !lease || deleteLeased(job);
+                if (!success)
+                    rollback(savepoint);
+                if (inPlace)
+                    deleteInPlace(job);
+                if (savepoint != null)
+                    sql(() -> connection.releaseSavepoint(savepoint), "Release savepoint");
             } catch (FatalQueueError ex) {
                 if (!ex.shouldThrottle())
                     success = true;
                 log.warn("Fatal error: {}", getExceptionMessage(ex));
                 log.debug("Fatal error: ", ex);
-                connection.rollback(savepoint);
-                connection.commit(); // In case of failJob fails
-                failJob(job, getExceptionMessage(ex));
+                rollback(savepoint);
+                failJobIsolated(job, getExceptionMessage(ex));
             } catch (PostponedNonFatalQueueError ex) {
                 log.warn("Non Fatal error: {} (postpone ms={})", getExceptionMessage(ex), ex.getPostponedMs());
                 log.debug("Non Fatal error: ", ex);
-                connection.rollback(savepoint);
+                rollback(savepoint);
                 if (job.getTries() >= harvester.settings.maxTries) {
-                    connection.commit(); // In case of failJob fails
-                    failJob(job, getExceptionMessage(ex));
+                    failJobIsolated(job, getExceptionMessage(ex));
                 } else {
                     postponeJob(job, ex.getPostponedMs());
                 }
             } catch (NonFatalQueueError | RuntimeException ex) {
                 log.warn("Non Fatal error: {}", getExceptionMessage(ex));
                 log.debug("Non Fatal error: ", ex);
-                connection.rollback(savepoint);
+                rollback(savepoint);
                 if (job.getTries() >= harvester.settings.maxTries) {
                     String message = getExceptionMessage(ex);
-                    connection.commit(); // In case of failJob fails
-                    failJob(job, message);
+                    failJobIsolated(job, message);
                 } else {
                     retryJob(job);
                 }
             }
-            log.debug("committing");
-            connection.commit();
+            if (pending.isEmpty() || lease) {
+                log.debug("committing");
+                connection.commit();
+            }
         } catch (SQLException ex) {
             success = false; // in case a commit after a succesfull job fails
             log.error("Rolling back because of: {}", ex.getMessage());
             log.debug("Rolling back because of: ", ex);
             sql(() -> connection.rollback(), "Error rolling back");
+            clearPending();
             throw ex;
         } finally {
-            harvester.settings.failureThrottle.register(success);
+            harvester.settings.consumerFailureThrottles.getOrDefault(job.getConsumer(), harvester.settings.failureThrottle).register(success);
+            time.close();
+            if (acceptStart != 0)
+                harvester.settings.concurrencyLimit.sample(acceptStart, success);
+            harvester.releaseInFlight(job.getConsumer(), 1);
+            harvester.settings.queueSelection.processed(job.getConsumer(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Roll back what the consumer did
+     *
+     * @param savepoint where to roll back to, or null for the entire
+     *                  transaction (lease mode)
+     * @throws SQLException from database errors
+     */
+    private void rollback(Savepoint savepoint) throws SQLException {
+        if (savepoint == null)
+            connection.rollback();
+        else
+            connection.rollback(savepoint);
+    }
+
+    /**
+     * Remove duplicates of a job from the queue, merging them into the job
+     *
+     * @param job the job to find duplicates of
+     * @return if any duplicates were removed
+     * @throws SQLException from database errors
+     */
+    private boolean deduplicate(JobWithMetaData<T> job) throws SQLException {
+        boolean skipped = false;
+        if (harvester.settings.deduplicateAbstraction != null) {
+            if (!job.mayHaveDuplicates()) {
+                harvester.duplicateHintSkipCounter.inc();
+                return false;
+            }
+            try (MetricAbstraction.Timer.Context time = harvester.deduplicateTimer.time()) {
+                ResultSet resultSet = timedDeleteDuplicate(job);
+                if (resultSet != null) {
+                    while (resultSet.next()) {
+                        JobWithMetaData<T> skippedJob = new JobWithMetaData<>(resultSet, 1, harvester.settings.storageAbstraction);
+                        T actualJob = harvester.settings.deduplicateAbstraction
+                                .mergeJob(job.getActualJob(), skippedJob.getActualJob());
+                        job.setActualJob(actualJob);
+                        log.info("Skipping job: {}", skippedJob);
+                        skipped = true;
+                    }
+                    if (!skipped && harvester.settings.duplicateHint)
+                        harvester.duplicateHintMissCounter.inc();
+                }
+            }
+        }
+        return skipped;
+    }
+
+    /**
+     * Remove duplicates of a leased job, and commit before processing starts
+     * <p>
+     * The merged job is stored in the leased row, so it isn't lost if the
+     * worker dies before the job is processed
+     * <p>
+     * If the lease has been lost, the removal of the duplicates is rolled
+     * back, since the merged job cannot be stored
+     *
+     * @param job the leased job
+     * @return if the job still was leased by this worker (as far as is known)
+     * @throws SQLException from database errors
+     */
+    private boolean deduplicateLeased(JobWithMetaData<T> job) throws SQLException {
+        if (harvester.settings.deduplicateAbstraction == null)
+            return true;
+        if (deduplicate(job)) {
+            int rows;
+            try (QueueHealth.Context call = health.databaseCall()) {
+                rows = getLeaseStoreStmt(job).executeUpdate();
+            }
+            if (rows != 1) {
+                leaseLost(job);
+                connection.rollback();
+                return false;
+            }
+        }
+        connection.commit();
+        return true;
+    }
+
+    /**
+     * Remove a leased job from the queue
+     *
+     * @param job the leased job
+     * @return if the job still was leased by this worker
+     * @throws SQLException from database errors
+     */
+    private boolean deleteLeased(JobWithMetaData<T> job) throws SQLException {
+        int rows;
+        try (QueueHealth.Context call = health.databaseCall()) {
+            rows = getLeaseDeleteStmt(job).executeUpdate();
+        }
+        if (rows != 1) {
+            leaseLost(job);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remove a locked job from the queue
+     *
+     * @param job the locked job
+     * @throws SQLException from database errors
+     */
+    private void deleteInPlace(JobWithMetaData<T> job) throws SQLException {
+        int rows;
+        try (QueueHealth.Context call = health.databaseCall()) {
+            rows = getDeleteInPlaceStmt(job).executeUpdate();
+        }
+        if (rows != 1) {
+            log.warn("Strange: deleting job, modified rows = " + rows);
+        }
+    }
+
+    /**
+     * Register that a lease has expired, and the job might be processed by
+     * someone else
+     *
+     * @param job the job that was leased
+     */
+    private void leaseLost(JobWithMetaData<T> job) {
+        log.warn("Lease has expired for job: {}", job);
+        harvester.leaseLostCounter.inc();
+    }
+
+    /**
+     * Return jobs, whose leases has expired, to the queue
+     * <p>
+     * The jobs can be taken when the lease expires anyway, this puts them
+     * into the dequeue window, and makes them visible to deduplication
+     *
+     * @throws SQLException from database errors
+     */
+    private void expireLeases() throws SQLException {
+        int rows;
+        try (QueueHealth.Context call = health.databaseCall() ;
+             Statement stmt = connection.createStatement()) {
+            rows = stmt.executeUpdate(Harvester.SqlLeaseExpire.SQL);
+        }
+        connection.commit();
+        if (rows > 0) {
+            log.info("Returned {} jobs with expired leases to the queue", rows);
+            for (int i = 0 ; i < rows ; i++) {
+                harvester.leaseExpiredCounter.inc();
+            }
+        }
+    }
+
+    /**
+     * Drop old queue_error partitions, and make new ones
+     * <p>
+     * This runs with a short lock timeout, so workers that register failures
+     * aren't held up, if the lock cannot be had the maintenance is retried
+     * next time
+     */
+    private void maintainErrors() {
+        try {
+            Integer dropped = null;
+            try (QueueHealth.Context call = health.databaseCall() ;
+                 Statement lockTimeout = connection.createStatement() ;
+                 PreparedStatement stmt = connection.prepareStatement(Harvester.SqlMaintainErrors.SQL)) {
+                lockTimeout.execute(Harvester.SqlMaintainErrors.LOCK_TIMEOUT);
+                stmt.setLong(Harvester.SqlMaintainErrors.RETENTION_POS, harvester.settings.errorRetention);
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    if (resultSet.next())
+                        dropped = (Integer) resultSet.getObject(1);
+                }
+            }
+            connection.commit();
+            if (dropped == null) {
+                harvester.errorMaintenanceUnsupported();
+            } else if (dropped > 0) {
+                log.info("Dropped {} old queue_error partitions", dropped);
+                for (int i = 0 ; i < dropped ; i++) {
+                    harvester.errorPartitionsDroppedCounter.inc();
+                }
+            }
+        } catch (SQLException ex) {
+            log.error("Error maintaining queue_error partitions: {}", ex.getMessage());
+            log.debug("Error maintaining queue_error partitions:", ex);
+            try {
+                connection.rollback();
+            } catch (SQLException ex1) {
+                log.error("Error rolling back queue_error maintenance: {}", ex1.getMessage());
+                log.debug("Error rolling back queue_error maintenance:", ex1);
+            }
+        }
+    }
+
+    /**
+     * Publish how many jobs are ready/postponed, and how late the oldest is,
+     * for every consumer name
+     * <p>
+     * The counts are bounded, so a large queue doesn't make this expensive
+     */
+    private void sampleQueues() {
+        try {
+            try (QueueHealth.Context call = health.databaseCall() ;
+                 PreparedStatement stmt = connection.prepareStatement(Harvester.SqlQueueSample.SQL)) {
+                stmt.setInt(Harvester.SqlQueueSample.READY_LIMIT_POS, Harvester.SqlQueueSample.MAX_COUNT);
+                stmt.setInt(Harvester.SqlQueueSample.POSTPONED_LIMIT_POS, Harvester.SqlQueueSample.MAX_COUNT);
+                stmt.setArray(Harvester.SqlQueueSample.CONSUMERS_POS, connection.createArrayOf("text", harvester.settings.consumerNames.toArray()));
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    while (resultSet.next()) {
+                        harvester.sampled(resultSet.getString(1), resultSet.getLong(2), resultSet.getLong(3), resultSet.getLong(4));
+                    }
+                }
+            }
+            connection.rollback();
+        } catch (SQLException ex) {
+            log.error("Error sampling queues: {}", ex.getMessage());
+            log.debug("Error sampling queues:", ex);
+            sql(() -> connection.rollback(), "Error rolling back queue sample");
         }
     }
 
@@ -253,36 +656,117 @@ class JobWorker<T> implements Runnable {
     private JobWithMetaData fetchJob(boolean waitForJob) throws SQLException {
         harvester.settings.failureThrottle.throttle();
 
+        Watermarks watermarks = harvester.watermarks;
+        long seenGeneration = watermarks.generation();
         boolean hasClearedTimestamps = false;
+        boolean notified = false;
+        long idleSince = 0;
+        RateLimits rateLimits = harvester.settings.rateLimits;
         // Different value is we're in idle state
         int fullScanEvery = harvester.settings.fullScanEvery;
-        while (harvester.isRunning()) {
-            if (--fullScanCounter <= 0) {
-                log.debug("Clearing remembered timestamps 1 in a {} event",
-                          harvester.settings.fullScanEvery);
+        while (isActive()) {
+            if (harvester.errorMaintenanceDue())
+                maintainErrors();
+            if (harvester.sampleDue())
+                sampleQueues();
+            long notifications = harvester.listener == null ? 0 : harvester.listener.generation();
+            if (watermarks.tick(fullScanEvery)) {
+                log.debug("Clearing remembered timestamps 1 in a {} event", fullScanEvery);
                 harvester.rescanCounter.inc();
-                fullScanCounter = fullScanEvery;
-                timestamps.clear();
+                if (lease)
+                    expireLeases();
+            }
+            if (watermarks.generation() != seenGeneration) {
                 hasClearedTimestamps = true;
             }
-            for (String queueName : harvester.settings.consumerNames) {
-                Timestamp timestamp = getTimestampFor(queueName);
-                log.debug("Trying to poll job from: " + queueName + " newer than: " + timestamp);
-                try (ResultSet resultSet = timedSelect(queueName, timestamp)) {
-                    if (resultSet.next()) {
-                        JobWithMetaData job = new JobWithMetaData(resultSet, 1, harvester.settings.storageAbstraction);
-                        timestamps.put(queueName, job.getDequeueAfter());
-                        return job;
+            long blockedFor = Long.MAX_VALUE;
+            for (String queueName : harvester.settings.queueSelection.order()) {
+                Throttle throttle = harvester.settings.consumerFailureThrottles.get(queueName);
+                if (throttle != null) {
+                    long delay = throttle.delay();
+                    if (delay > 0) { // Serve the other queues while this one fails
+                        blockedFor = Long.min(blockedFor, TimeUnit.MILLISECONDS.toNanos(delay));
+                        continue;
+                    }
+                }
+                boolean batch = harvester.settings.batchSize > 1 || lease || inPlace;
+                int limit = harvester.acquireInFlight(queueName, batch ? harvester.settings.batchSize : 1);
+                if (limit == 0) // At its cap, the worker finishing a job from it comes back for more
+                    continue;
+                int tokens = rateLimits.acquire(queueName, limit);
+                harvester.releaseInFlight(queueName, limit - tokens);
+                limit = tokens;
+                if (limit == 0) { // Don't lock rows while waiting for a token
+                    blockedFor = Long.min(blockedFor, rateLimits.nanosUntilAvailable(queueName));
+                    continue;
+                }
+                JobWithMetaData<T> job = null;
+                int claimed = 0;
+                try {
+                    Timestamp timestamp = getTimestampFor(queueName);
+                    log.debug("Trying to poll job from: " + queueName + " newer than: " + timestamp);
+                    if (batch) {
+                        job = fetchBatch(queueName, timestamp, limit);
+                        if (job != null)
+                            claimed = 1 + pending.size();
+                    } else {
+                        try (ResultSet resultSet = timedSelect(queueName, timestamp)) {
+                            if (resultSet.next()) {
+                                job = new JobWithMetaData<>(resultSet, 1, harvester.settings.storageAbstraction);
+                                if (hintColumn > 0)
+                                    job.setMayHaveDuplicates(resultSet.getBoolean(hintColumn));
+                                watermarks.advance(queueName, job.getDequeueAfter());
+                                claimed = 1;
+                            }
+                        }
                     }
+                } finally { // Refund what wasn't claimed, also if the claim failed
+                    rateLimits.release(queueName, limit - claimed);
+                    harvester.releaseInFlight(queueName, limit - claimed);
                 }
+                if (job != null) {
+                    if (notified) // One notification can cover many jobs
+                        harvester.listener.wakeOne();
+                    harvester.lagging(System.currentTimeMillis() - job.getDequeueAfter().getTime());
+                    return job;
+                }
+                harvester.settings.queueSelection.empty(queueName);
             }
             connection.rollback();
             if (!waitForJob)
                 return null;
+            if (blockedFor != Long.MAX_VALUE) {
+                try {
+                    long sleep = Long.min(TimeUnit.NANOSECONDS.toMillis(blockedFor) + 1, harvester.settings.emptyQueueSleep);
+                    log.debug("Rate limited or throttled - sleeping for {}ms", sleep);
+                    Thread.sleep(sleep);
+                } catch (InterruptedException ex) {
+                    if (harvester.isRunning()) {
+                        log.error("Error waiting for rate limit or throttle: {}", ex.getMessage());
+                        log.debug("Error waiting for rate limit or throttle:", ex);
+                    }
+                }
+                continue;
+            }
             // idle state fullscan more often, and start with fullscan
             fullScanEvery = harvester.settings.idleFullScanEvery;
+            if (idleSince == 0)
+                idleSince = System.currentTimeMillis();
             if (!hasClearedTimestamps) {
-                fullScanCounter = 0;
+                // Rescan before sleeping, unless another worker has just done so
+                if (watermarks.invalidate(seenGeneration)) {
+                    log.debug("Clearing remembered timestamps before going idle");
+                    harvester.rescanCounter.inc();
+                    if (lease)
+                        expireLeases();
+                }
+                hasClearedTimestamps = true;
+            } else if (harvester.retire(this, System.currentTimeMillis() - idleSince)) {
+                log.debug("Queues are drained - retiring");
+                retired = true;
+            } else if (harvester.listener != null) {
+                log.debug("Got no job - waiting for notification up to {}ms", harvester.settings.emptyQueueSleep);
+                notified = harvester.listener.await(notifications, harvester.settings.emptyQueueSleep);
             } else {
                 try {
                     log.debug("Got no job - sleeping for {}ms", harvester.settings.emptyQueueSleep);
@@ -298,6 +782,46 @@ class JobWorker<T> implements Runnable {
         return null;
     }
 
+    /**
+     * Take a batch of jobs from a queue
+     * <p>
+     * The first job (by dequeueAfter) is returned, the rest are put into the
+     * pending list
+     * <p>
+     * In lease mode the leases are committed, before the jobs are returned
+     *
+     * @param queueName name of queue to harvest from
+     * @param timestamp How old jobs to look for
+     * @param limit     max number of jobs to take
+     * @return first job or null if none could be found
+     * @throws SQLException from database errors
+     */
+    private JobWithMetaData<T> fetchBatch(String queueName, Timestamp timestamp, int limit) throws SQLException {
+        ArrayList<JobWithMetaData<T>> jobs = new ArrayList<>(limit);
+        try (ResultSet resultSet = timedSelectBatch(queueName, timestamp, limit)) {
+            while (resultSet.next()) {
+                JobWithMetaData<T> job = new JobWithMetaData<>(resultSet, 1, harvester.settings.storageAbstraction);
+                if (hintColumn > 0)
+                    job.setMayHaveDuplicates(resultSet.getBoolean(hintColumn));
+                if (lease)
+                    job.setLease(resultSet.getString(keyColumn), leaseOwner);
+                if (inPlace)
+                    job.setCtid(resultSet.getString(keyColumn));
+                jobs.add(job);
+            }
+        }
+        if (jobs.isEmpty())
+            return null;
+        if (lease)
+            connection.commit();
+        // RETURNING has no defined order
+        jobs.sort(Comparator.comparing(JobMetaData::getDequeueAfter));
+        log.debug("Got batch of {} jobs", jobs.size());
+        harvester.watermarks.advance(queueName, jobs.get(jobs.size() - 1).getDequeueAfter());
+        pending.addAll(jobs.subList(1, jobs.size()));
+        return jobs.get(0);
+    }
+
     /**
      * Wrap a select in a timer
      *
@@ -308,22 +832,60 @@ class JobWorker<T> implements Runnable {
      */
     private ResultSet timedSelect(String queueName, Timestamp timestamp) throws SQLException {
         PreparedStatement stmt = getSelectStmt(queueName, timestamp);
+        long before = System.currentTimeMillis();
+        try (MetricAbstraction.Timer.Context time = harvester.dequeueTimer.time() ;
+             QueueHealth.Context call = health.databaseCall()) {
+            return stmt.executeQuery();
+        } finally {
+            checkDequeueTime(queueName, before);
+        }
+    }
+
+    /**
+     * Wrap a batch select (lease claim or lock) in a timer
+     *
+     * @param queueName name of queue to harvest from
+     * @param timestamp How old jobs to look for
+     * @param limit     max number of jobs to take
+     * @return result set
+     * @throws SQLException from database errors
+     */
+    private ResultSet timedSelectBatch(String queueName, Timestamp timestamp, int limit) throws SQLException {
+        PreparedStatement stmt = lease ? getLeaseClaimStmt(queueName, timestamp, limit) :
+                                 inPlace ? getSelectInPlaceStmt(queueName, timestamp, limit) :
+                                 getSelectBatchStmt(queueName, timestamp, limit);
+        long before = System.currentTimeMillis();
         try (MetricAbstraction.Timer.Context time = harvester.dequeueTimer.time() ;
              QueueHealth.Context call = health.databaseCall()) {
             return stmt.executeQuery();
+        } finally {
+            checkDequeueTime(queueName, before);
+        }
+    }
+
+    /**
+     * Narrow the window if a dequeue took too long
+     *
+     * @param queueName name of queue that was harvested from
+     * @param before    when the dequeue started
+     */
+    private void checkDequeueTime(String queueName, long before) {
+        long elapsed = System.currentTimeMillis() - before;
+        if (elapsed >= harvester.settings.maxQueryTime) {
+            log.debug("Dequeue from {} took {}ms", queueName, elapsed);
+            harvester.windows.slow(queueName);
         }
     }
 
     /**
      * Wrap a delete duplicate in a timer and holour deduplicateDisable
      *
-     * @param job      job to delete duplicates of
-     * @param consumer which consumer to deduplicate for
+     * @param job job to delete duplicates of
      * @return result set
      * @throws SQLException from database errors
      */
-    private ResultSet timedDeleteDuplicate(JobWithMetaData<T> job, String consumer) throws SQLException {
-        PreparedStatement stmt = getDeleteDuplicateStmt(job, consumer);
+    private ResultSet timedDeleteDuplicate(JobWithMetaData<T> job) throws SQLException {
+        PreparedStatement stmt = getDeleteDuplicateStmt(job);
         if (stmt == null) {
             return null;
         }
@@ -338,6 +900,10 @@ class JobWorker<T> implements Runnable {
 
     /**
      * Update tries count
+     * <p>
+     * In lease mode the row is updated in place (the tries count was updated
+     * when the job was leased). In in-place mode only the tries count is
+     * updated, unless the job has been merged with duplicates
      *
      * @param job the job and metadata for the queue entry
      * @throws SQLException from database errors
@@ -347,15 +913,27 @@ class JobWorker<T> implements Runnable {
         int rows;
         try (MetricAbstraction.Timer.Context time = harvester.retryTimer.time() ;
              QueueHealth.Context call = health.databaseCall()) {
-            rows = getRetryStmt(job).executeUpdate();
+            if (lease) {
+                rows = getLeaseRetryStmt(job).executeUpdate();
+            } else if (inPlace && !job.isMerged()) {
+                rows = getRetryInPlaceStmt(job).executeUpdate();
+            } else {
+                if (inPlace)
+                    deleteInPlace(job);
+                rows = getRetryStmt(job).executeUpdate();
+            }
         }
-        if (rows != 1) {
+        if (lease && rows != 1) {
+            leaseLost(job);
+        } else if (rows != 1) {
             log.warn("Strange: retrying job, modified rows = " + rows);
         }
     }
 
     /**
      * Update tries count and postpone dequeue
+     * <p>
+     * In lease and in-place mode the row is updated in place
      *
      * @param job         the job and metadata for the queue entry
      * @param postponedMs number of milliseconds to postpone dequeue
@@ -366,13 +944,60 @@ class JobWorker<T> implements Runnable {
         int rows;
         try (MetricAbstraction.Timer.Context time = harvester.postponeTimer.time() ;
              QueueHealth.Context call = health.databaseCall()) {
-            rows = getPostponeStmt(job, postponedMs).executeUpdate();
+            if (lease) {
+                rows = getLeasePostponeStmt(job, postponedMs).executeUpdate();
+            } else if (inPlace && !job.isMerged()) {
+                rows = getPostponeInPlaceStmt(job, postponedMs).executeUpdate();
+            } else {
+                if (inPlace)
+                    deleteInPlace(job);
+                rows = getPostponeStmt(job, postponedMs).executeUpdate();
+            }
         }
-        if (rows != 1) {
+        if (lease && rows != 1) {
+            leaseLost(job);
+        } else if (rows != 1) {
             log.warn("Strange: postponing job, modified rows = " + rows);
         }
     }
 
+    /**
+     * Put a job into queue_error, in a way where the removal of the job from
+     * the queue is kept, even if registering the failure fails
+     * <p>
+     * If this is the last (or only) job in the transaction, the transaction is
+     * committed before registering the failure. Otherwise the rest of the
+     * batch is protected by a savepoint.
+     * <p>
+     * In lease mode the job is removed in the same transaction, if registering
+     * the failure fails, the job is taken again when the lease expires
+     *
+     * @param job     the job that failed
+     * @param message the reason it failed
+     * @throws SQLException from database errors
+     */
+    private void failJobIsolated(JobWithMetaData<T> job, String message) throws SQLException {
+        if (inPlace)
+            deleteInPlace(job);
+        if (lease) {
+            if (deleteLeased(job))
+                failJob(job, message);
+        } else if (pending.isEmpty()) {
+            connection.commit(); // In case of failJob fails
+            failJob(job, message);
+        } else {
+            Savepoint savepoint = connection.setSavepoint();
+            try {
+                failJob(job, message);
+                connection.releaseSavepoint(savepoint);
+            } catch (SQLException ex) {
+                log.error("Could not register failed job {}: {}", job, ex.getMessage());
+                log.debug("Could not register failed job {}:", job, ex);
+                connection.rollback(savepoint);
+            }
+        }
+    }
+
     /**
      * Remove queue entry, and put it into queue_error
      *
@@ -387,6 +1012,9 @@ class JobWorker<T> implements Runnable {
                 .saveJob(job.getActualJob(),
                          stmt,
                          Harvester.SqlFailed.NEXT_POS);
+        if (harvester.settings.deduplicateHash)
+            harvester.settings.deduplicateAbstraction
+                    .duplicateValues(job.getActualJob(), stmt, Harvester.SqlFailed.NEXT_POS + harvester.settings.storageAbstraction.columnList().length);
         int rows;
         try (MetricAbstraction.Timer.Context time = harvester.failureTimer.time() ;
              QueueHealth.Context call = health.databaseCall()) {
@@ -405,7 +1033,7 @@ class JobWorker<T> implements Runnable {
      */
     private Timestamp getTimestampFor(String queue) throws SQLException {
         try {
-            return timestamps.computeIfAbsent(queue, this::getTimestampFromDb);
+            return harvester.watermarks.get(queue, this::getTimestampFromDb);
         } catch (RuntimeException ex) {
             exceptionUnwrap(ex, SQLException.class);
             throw ex;
@@ -421,10 +1049,25 @@ class JobWorker<T> implements Runnable {
         connection = harvester.getConnection();
     }
 
+    /**
+     * Forget jobs from a batch, they are returned to the queue upon rollback
+     */
+    private void clearPending() {
+        pending.forEach(job -> harvester.releaseInFlight(job.getConsumer(), 1));
+        if (!pending.isEmpty() && lease) {
+            log.warn("Dropping {} unprocessed jobs from batch, they are returned to the queue when their leases expire", pending.size());
+            pending.clear();
+        } else if (!pending.isEmpty()) {
+            log.warn("Returning {} unprocessed jobs from batch to the queue", pending.size());
+            pending.clear();
+        }
+    }
+
     /**
      * Disconnect from database
      */
     private void releaseConnection() {
+        clearPending();
         if (connection != null) {
             sql(() -> connection.close(), "Error closing connection");
             connection = null;
@@ -447,6 +1090,10 @@ class JobWorker<T> implements Runnable {
             sql(() -> selectStmt.close(), "Error closing select statement");
             selectStmt = null;
         }
+        if (selectBatchStmt != null) {
+            sql(() -> selectBatchStmt.close(), "Error closing select batch statement");
+            selectBatchStmt = null;
+        }
         if (retryStmt != null) {
             sql(() -> retryStmt.close(), "Error closing retry statement");
             retryStmt = null;
@@ -463,10 +1110,46 @@ class JobWorker<T> implements Runnable {
             sql(() -> deleteDuplicateStmt.close(), "Error closing delete duplicate statement");
             deleteDuplicateStmt = null;
         }
+        if (selectInPlaceStmt != null) {
+            sql(() -> selectInPlaceStmt.close(), "Error closing select in place statement");
+            selectInPlaceStmt = null;
+        }
+        if (deleteInPlaceStmt != null) {
+            sql(() -> deleteInPlaceStmt.close(), "Error closing delete in place statement");
+            deleteInPlaceStmt = null;
+        }
+        if (retryInPlaceStmt != null) {
+            sql(() -> retryInPlaceStmt.close(), "Error closing retry in place statement");
+            retryInPlaceStmt = null;
+        }
+        if (postponeInPlaceStmt != null) {
+            sql(() -> postponeInPlaceStmt.close(), "Error closing postpone in place statement");
+            postponeInPlaceStmt = null;
+        }
+        if (leaseClaimStmt != null) {
+            sql(() -> leaseClaimStmt.close(), "Error closing lease claim statement");
+            leaseClaimStmt = null;
+        }
+        if (leaseDeleteStmt != null) {
+            sql(() -> leaseDeleteStmt.close(), "Error closing lease delete statement");
+            leaseDeleteStmt = null;
+        }
+        if (leaseRetryStmt != null) {
+            sql(() -> leaseRetryStmt.close(), "Error closing lease retry statement");
+            leaseRetryStmt = null;
+        }
+        if (leasePostponeStmt != null) {
+            sql(() -> leasePostponeStmt.close(), "Error closing lease postpone statement");
+            leasePostponeStmt = null;
+        }
+        if (leaseStoreStmt != null) {
+            sql(() -> leaseStoreStmt.close(), "Error closing lease store statement");
+            leaseStoreStmt = null;
+        }
     }
 
     /**
-     * Acquire a timestamp or a .5 second before now
+     * Acquire a timestamp or the current window before now
      *
      * @param queue name of queue toe query
      * @return oldest queue entry time
@@ -474,14 +1157,19 @@ class JobWorker<T> implements Runnable {
     private Timestamp getTimestampFromDb(String queue) {
         long before = System.currentTimeMillis();
         try (MetricAbstraction.Timer.Context time = harvester.timestampTimer.time()) {
-            try (QueueHealth.Context call = health.databaseCall() ;
-                 ResultSet resultSet = getTimestampStmt(queue).executeQuery()) {
-                if (resultSet.next()) {
-                    return resultSet.getTimestamp(1);
+            try (QueueHealth.Context call = health.databaseCall()) {
+                Savepoint savepoint = lease ? null : connection.setSavepoint();
+                try (ResultSet resultSet = getTimestampStmt(queue).executeQuery()) {
+                    if (resultSet.next()) {
+                        return resultSet.getTimestamp(1);
+                    }
+                } finally {
+                    if (savepoint != null)
+                        connection.rollback(savepoint); // Release the row lock
                 }
             }
             try (QueueHealth.Context call = health.databaseCall() ;
-                 ResultSet resultSet = getClockStmt().executeQuery()) {
+                 ResultSet resultSet = getClockStmt(queue).executeQuery()) {
                 if (resultSet.next()) {
                     return resultSet.getTimestamp(1);
                 }
@@ -510,8 +1198,9 @@ class JobWorker<T> implements Runnable {
     private PreparedStatement getTimestampStmt(String queue) throws SQLException {
         if (timestampStmt == null) {
             try (QueueHealth.Context call = health.databaseCall()) {
-                timestampStmt = connection.prepareStatement(Harvester.SqlQueueTimestamp.SQL);
-                log.debug("Prepared statement: {}", Harvester.SqlQueueTimestamp.SQL);
+                String sql = lease ? Harvester.SqlQueueTimestamp.SQL : Harvester.SqlQueueTimestamp.SQL_SKIP_LOCKED;
+                timestampStmt = connection.prepareStatement(sql);
+                log.debug("Prepared statement: {}", sql);
             }
         }
         timestampStmt.setString(Harvester.SqlQueueTimestamp.CONSUMER_POS, queue);
@@ -519,18 +1208,20 @@ class JobWorker<T> implements Runnable {
     }
 
     /**
-     * Construct a prepared statement, if needed
+     * Construct a prepared statement, if needed, and fill in data
      *
+     * @param queue queue name to get the window from
      * @return sql statement
      * @throws SQLException for database errors
      */
-    private PreparedStatement getClockStmt() throws SQLException {
+    private PreparedStatement getClockStmt(String queue) throws SQLException {
         if (clockStmt == null) {
             try (QueueHealth.Context call = health.databaseCall()) {
                 clockStmt = connection.prepareStatement(Harvester.SqlCurrentTimestamp.SQL);
                 log.debug("Prepared statement: {}", Harvester.SqlCurrentTimestamp.SQL);
             }
         }
+        clockStmt.setLong(Harvester.SqlCurrentTimestamp.WINDOW_POS, harvester.windows.get(queue));
         return clockStmt;
     }
 
@@ -549,11 +1240,262 @@ class JobWorker<T> implements Runnable {
                 log.debug("Prepared statement: {}", harvester.getSelectSql());
             }
         }
+        selectStmt.setString(Harvester.SqlSelect.PARTITION_POS, queue);
         selectStmt.setString(Harvester.SqlSelect.CONSUMER_POS, queue);
         selectStmt.setTimestamp(Harvester.SqlSelect.TIMESTAMP_POS, timestamp);
+        selectStmt.setLong(Harvester.SqlSelect.WINDOW_POS, harvester.windows.get(queue));
+        if (hintConsumers)
+            selectStmt.setArray(Harvester.SqlSelect.HINT_CONSUMERS_POS, hintConsumersArray());
         return selectStmt;
     }
 
+    /**
+     * Construct a prepared statement, if needed, and fill in data
+     *
+     * @param queue     queue name to dequeue from
+     * @param timestamp last known timestamp
+     * @param limit     max number of jobs
+     * @return sql statement
+     * @throws SQLException for database errors
+     */
+    private PreparedStatement getSelectBatchStmt(String queue, Timestamp timestamp, int limit) throws SQLException {
+        if (selectBatchStmt == null) {
+            try (QueueHealth.Context call = health.databaseCall()) {
+                selectBatchStmt = connection.prepareStatement(harvester.getSelectBatchSql());
+                log.debug("Prepared statement: {}", harvester.getSelectBatchSql());
+            }
+        }
+        selectBatchStmt.setString(Harvester.SqlSelectBatch.PARTITION_POS, queue);
+        selectBatchStmt.setString(Harvester.SqlSelectBatch.CONSUMER_POS, queue);
+        selectBatchStmt.setTimestamp(Harvester.SqlSelectBatch.TIMESTAMP_POS, timestamp);
+        selectBatchStmt.setLong(Harvester.SqlSelectBatch.WINDOW_POS, harvester.windows.get(queue));
+        selectBatchStmt.setInt(Harvester.SqlSelectBatch.LIMIT_POS, limit);
+        if (hintConsumers)
+            selectBatchStmt.setArray(Harvester.SqlSelectBatch.HINT_CONSUMERS_POS, hintConsumersArray());
+        return selectBatchStmt;
+    }
+
+    /**
+     * Construct a prepared statement, if needed, and fill in data
+     *
+     * @param queue     queue name to lock jobs in
+     * @param timestamp last known timestamp
+     * @param limit     max number of jobs
+     * @return sql statement
+     * @throws SQLException for database errors
+     */
+    private PreparedStatement getSelectInPlaceStmt(String queue, Timestamp timestamp, int limit) throws SQLException {
+        if (selectInPlaceStmt == null) {
+            try (QueueHealth.Context call = health.databaseCall()) {
+                selectInPlaceStmt = connection.prepareStatement(harvester.getSelectInPlaceSql());
+                log.debug("Prepared statement: {}", harvester.getSelectInPlaceSql());
+            }
+        }
+        int offset = 0;
+        if (hintConsumers) {
+            selectInPlaceStmt.setArray(Harvester.SqlSelectInPlace.HINT_CONSUMERS_POS, hintConsumersArray());
+            offset = 1;
+        }
+        selectInPlaceStmt.setString(Harvester.SqlSelectInPlace.CONSUMER_POS + offset, queue);
+        selectInPlaceStmt.setTimestamp(Harvester.SqlSelectInPlace.TIMESTAMP_POS + offset, timestamp);
+        selectInPlaceStmt.setLong(Harvester.SqlSelectInPlace.WINDOW_POS + offset, harvester.windows.get(queue));
+        selectInPlaceStmt.setInt(Harvester.SqlSelectInPlace.LIMIT_POS + offset, limit);
+        return selectInPlaceStmt;
+    }
+
+    /**
+     * Construct a prepared statement, if needed, and fill in data
+     *
+     * @param job the locked job
+     * @return sql statement
+     * @throws SQLException for database errors
+     */
+    private PreparedStatement getDeleteInPlaceStmt(JobWithMetaData<T> job) throws SQLException {
+        if (deleteInPlaceStmt == null) {
+            try (QueueHealth.Context call = health.databaseCall()) {
+                deleteInPlaceStmt = connection.prepareStatement(Harvester.SqlDeleteInPlace.SQL);
+                log.debug("Prepared statement: {}", Harvester.SqlDeleteInPlace.SQL);
+            }
+        }
+        deleteInPlaceStmt.setString(Harvester.SqlDeleteInPlace.PARTITION_POS, job.getConsumer());
+        deleteInPlaceStmt.setString(Harvester.SqlDeleteInPlace.CTID_POS, job.getCtid());
+        return deleteInPlaceStmt;
+    }
+
+    /**
+     * Construct a prepared statement, if needed, and fill in data
+     *
+     * @param job the locked job
+     * @return sql statement
+     * @throws SQLException for database errors
+     */
+    private PreparedStatement getRetryInPlaceStmt(JobWithMetaData<T> job) throws SQLException {
+        if (retryInPlaceStmt == null) {
+            try (QueueHealth.Context call = health.databaseCall()) {
+                retryInPlaceStmt = connection.prepareStatement(Harvester.SqlRetryInPlace.SQL);
+                log.debug("Prepared statement: {}", Harvester.SqlRetryInPlace.SQL);
+            }
+        }
+        retryInPlaceStmt.setInt(Harvester.SqlRetryInPlace.TRIES_POS, job.getTries());
+        retryInPlaceStmt.setString(Harvester.SqlRetryInPlace.PARTITION_POS, job.getConsumer());
+        retryInPlaceStmt.setString(Harvester.SqlRetryInPlace.CTID_POS, job.getCtid());
+        return retryInPlaceStmt;
+    }
+
+    /**
+     * Construct a prepared statement, if needed, and fill in data
+     *
+     * @param job          the locked job
+     * @param milliseconds how long to postpone processing
+     * @return sql statement
+     * @throws SQLException for database errors
+     */
+    private PreparedStatement getPostponeInPlaceStmt(JobWithMetaData<T> job, long milliseconds) throws SQLException {
+        if (postponeInPlaceStmt == null) {
+            try (QueueHealth.Context call = health.databaseCall()) {
+                postponeInPlaceStmt = connection.prepareStatement(Harvester.SqlPostponeInPlace.SQL);
+                log.debug("Prepared statement: {}", Harvester.SqlPostponeInPlace.SQL);
+            }
+        }
+        postponeInPlaceStmt.setInt(Harvester.SqlPostponeInPlace.TRIES_POS, job.getTries());
+        postponeInPlaceStmt.setLong(Harvester.SqlPostponeInPlace.POSTPONE_POS, milliseconds);
+        postponeInPlaceStmt.setString(Harvester.SqlPostponeInPlace.PARTITION_POS, job.getConsumer());
+        postponeInPlaceStmt.setString(Harvester.SqlPostponeInPlace.CTID_POS, job.getCtid());
+        return postponeInPlaceStmt;
+    }
+
+    /**
+     * Construct a prepared statement, if needed, and fill in data
+     *
+     * @param queue     queue name to lease from
+     * @param timestamp last known timestamp
+     * @param limit     max number of jobs
+     * @return sql statement
+     * @throws SQLException for database errors
+     */
+    private PreparedStatement getLeaseClaimStmt(String queue, Timestamp timestamp, int limit) throws SQLException {
+        if (leaseClaimStmt == null) {
+            try (QueueHealth.Context call = health.databaseCall()) {
+                leaseClaimStmt = connection.prepareStatement(harvester.getLeaseClaimSql());
+                log.debug("Prepared statement: {}", harvester.getLeaseClaimSql());
+            }
+        }
+        leaseClaimStmt.setLong(Harvester.SqlLeaseClaim.LEASE_POS, harvester.settings.leaseDuration);
+        leaseClaimStmt.setString(Harvester.SqlLeaseClaim.CONSUMER_POS, queue);
+        leaseClaimStmt.setTimestamp(Harvester.SqlLeaseClaim.TIMESTAMP_POS, timestamp);
+        leaseClaimStmt.setLong(Harvester.SqlLeaseClaim.WINDOW_POS, harvester.windows.get(queue));
+        leaseClaimStmt.setInt(Harvester.SqlLeaseClaim.LIMIT_POS, limit);
+        leaseClaimStmt.setString(Harvester.SqlLeaseClaim.OWNER_POS, leaseOwner);
+        leaseClaimStmt.setString(Harvester.SqlLeaseClaim.PARTITION_POS, queue);
+        if (hintConsumers)
+            leaseClaimStmt.setArray(Harvester.SqlLeaseClaim.HINT_CONSUMERS_POS, hintConsumersArray());
+        return leaseClaimStmt;
+    }
+
+    /**
+     * The consumer names the duplicate hint looks for duplicates in
+     *
+     * @return sql array of consumer names
+     * @throws SQLException for database errors
+     */
+    private java.sql.Array hintConsumersArray() throws SQLException {
+        return connection.createArrayOf("text", harvester.settings.consumerNames.toArray());
+    }
+
+    /**
+     * Construct a prepared statement, if needed, and fill in data
+     *
+     * @param job the leased job
+     * @return sql statement
+     * @throws SQLException for database errors
+     */
+    private PreparedStatement getLeaseDeleteStmt(JobWithMetaData<T> job) throws SQLException {
+        if (leaseDeleteStmt == null) {
+            try (QueueHealth.Context call = health.databaseCall()) {
+                leaseDeleteStmt = connection.prepareStatement(Harvester.SqlLeaseDelete.SQL);
+                log.debug("Prepared statement: {}", Harvester.SqlLeaseDelete.SQL);
+            }
+        }
+        leaseDeleteStmt.setString(Harvester.SqlLeaseDelete.PARTITION_POS, job.getConsumer());
+        leaseDeleteStmt.setString(Harvester.SqlLeaseDelete.PK_POS, job.getLeaseKey());
+        leaseDeleteStmt.setString(Harvester.SqlLeaseDelete.OWNER_POS, job.getLeaseOwner());
+        return leaseDeleteStmt;
+    }
+
+    /**
+     * Construct a prepared statement, if needed, and fill in data
+     *
+     * @param job the leased job
+     * @return sql statement
+     * @throws SQLException for database errors
+     */
+    private PreparedStatement getLeaseRetryStmt(JobWithMetaData<T> job) throws SQLException {
+        if (leaseRetryStmt == null) {
+            try (QueueHealth.Context call = health.databaseCall()) {
+                leaseRetryStmt = connection.prepareStatement(harvester.getLeaseRetrySql());
+                log.debug("Prepared statement: {}", harvester.getLeaseRetrySql());
+            }
+        }
+        leaseRetryStmt.setTimestamp(Harvester.SqlLeaseRetry.DEQUEUE_AFTER_POS, job.getDequeueAfter());
+        setLeasedJob(leaseRetryStmt, job, Harvester.SqlLeaseRetry.NEXT_POS);
+        return leaseRetryStmt;
+    }
+
+    /**
+     * Construct a prepared statement, if needed, and fill in data
+     *
+     * @param job          the leased job
+     * @param milliseconds how long to postpone processing
+     * @return sql statement
+     * @throws SQLException for database errors
+     */
+    private PreparedStatement getLeasePostponeStmt(JobWithMetaData<T> job, long milliseconds) throws SQLException {
+        if (leasePostponeStmt == null) {
+            try (QueueHealth.Context call = health.databaseCall()) {
+                leasePostponeStmt = connection.prepareStatement(harvester.getLeasePostponeSql());
+                log.debug("Prepared statement: {}", harvester.getLeasePostponeSql());
+            }
+        }
+        leasePostponeStmt.setLong(Harvester.SqlLeasePostpone.POSTPONE_POS, milliseconds);
+        setLeasedJob(leasePostponeStmt, job, Harvester.SqlLeasePostpone.NEXT_POS);
+        return leasePostponeStmt;
+    }
+
+    /**
+     * Construct a prepared statement, if needed, and fill in data
+     *
+     * @param job the leased job
+     * @return sql statement
+     * @throws SQLException for database errors
+     */
+    private PreparedStatement getLeaseStoreStmt(JobWithMetaData<T> job) throws SQLException {
+        if (leaseStoreStmt == null) {
+            try (QueueHealth.Context call = health.databaseCall()) {
+                leaseStoreStmt = connection.prepareStatement(harvester.getLeaseStoreSql());
+                log.debug("Prepared statement: {}", harvester.getLeaseStoreSql());
+            }
+        }
+        setLeasedJob(leaseStoreStmt, job, Harvester.SqlLeaseStore.NEXT_POS);
+        return leaseStoreStmt;
+    }
+
+    /**
+     * Fill in job columns followed by the consumer, lease key and owner
+     *
+     * @param stmt   the statement
+     * @param job    the leased job
+     * @param column position of the first job column
+     * @throws SQLException for database errors
+     */
+    private void setLeasedJob(PreparedStatement stmt, JobWithMetaData<T> job, int column) throws SQLException {
+        harvester.settings.storageAbstraction
+                .saveJob(job.getActualJob(), stmt, column);
+        column += harvester.settings.storageAbstraction.columnList().length;
+        stmt.setString(column++, job.getConsumer());
+        stmt.setString(column++, job.getLeaseKey());
+        stmt.setString(column, job.getLeaseOwner());
+    }
+
     /**
      * Construct a prepared statement, if needed, and fill in data
      *
@@ -572,6 +1514,9 @@ class JobWorker<T> implements Runnable {
         job.save(retryStmt, 1);
         harvester.settings.storageAbstraction
                 .saveJob(job.getActualJob(), retryStmt, 1 + JobMetaData.RETRY_PLACEHOLDER_COUNT);
+        if (harvester.settings.deduplicateHash)
+            harvester.settings.deduplicateAbstraction
+                    .duplicateValues(job.getActualJob(), retryStmt, 1 + JobMetaData.RETRY_PLACEHOLDER_COUNT + harvester.settings.storageAbstraction.columnList().length);
         return retryStmt;
     }
 
@@ -594,6 +1539,9 @@ class JobWorker<T> implements Runnable {
         job.saveDelayed(postponeStmt, 1, milliseconds);
         harvester.settings.storageAbstraction
                 .saveJob(job.getActualJob(), postponeStmt, 1 + JobMetaData.POSTPONED_PLACEHOLDER_COUNT);
+        if (harvester.settings.deduplicateHash)
+            harvester.settings.deduplicateAbstraction
+                    .duplicateValues(job.getActualJob(), postponeStmt, 1 + JobMetaData.POSTPONED_PLACEHOLDER_COUNT + harvester.settings.storageAbstraction.columnList().length);
         return postponeStmt;
     }
 
@@ -619,13 +1567,14 @@ class JobWorker<T> implements Runnable {
 
     /**
      * Delete duplicate jobs
+     * <p>
+     * Either from the job's consumer or from all consumers (in one statement)
      *
-     * @param job      job to match
-     * @param consumer which consumer to deduplicate for
+     * @param job job to match
      * @return sql statement
      * @throws SQLException for database errors
      */
-    private PreparedStatement getDeleteDuplicateStmt(JobWithMetaData<T> job, String consumer) throws SQLException {
+    private PreparedStatement getDeleteDuplicateStmt(JobWithMetaData<T> job) throws SQLException {
         if (deleteDuplicateStmt == null) {
             if (harvester.getDeleteDuplicateSql() == null) {
                 return null;
@@ -634,15 +1583,69 @@ class JobWorker<T> implements Runnable {
                 deleteDuplicateStmt = connection.prepareStatement(harvester.getDeleteDuplicateSql());
             }
         }
-        deleteDuplicateStmt.setString(Harvester.SqlDeleteDuplicatePositions.CONSUMER_POS_1, consumer);
-        deleteDuplicateStmt.setString(Harvester.SqlDeleteDuplicatePositions.CONSUMER_POS_2, consumer);
-        harvester.settings.deduplicateAbstraction
-                .duplicateValues(job.getActualJob(), deleteDuplicateStmt, Harvester.SqlDeleteDuplicatePositions.DUPLICATE_POS);
-        harvester.settings.deduplicateAbstraction
-                .duplicateValues(job.getActualJob(), deleteDuplicateStmt, Harvester.SqlDeleteDuplicatePositions.DUPLICATE_POS + harvester.getDuplicateDeleteColumnsCount());
+        boolean allConsumers = harvester.settings.deduplicateFromAllConsumers;
+        if (allConsumers) {
+            java.sql.Array consumers = connection.createArrayOf("text", harvester.settings.consumerNames.toArray());
+            deleteDuplicateStmt.setArray(Harvester.SqlDeleteDuplicatePositions.CONSUMER_POS_1, consumers);
+            deleteDuplicateStmt.setArray(Harvester.SqlDeleteDuplicatePositions.CONSUMER_POS_2, consumers);
+        } else {
+            deleteDuplicateStmt.setString(Harvester.SqlDeleteDuplicatePositions.CONSUMER_POS_1, job.getConsumer());
+            deleteDuplicateStmt.setString(Harvester.SqlDeleteDuplicatePositions.CONSUMER_POS_2, job.getConsumer());
+        }
+        int column = Harvester.SqlDeleteDuplicatePositions.DUPLICATE_POS;
+        for (int i = 0 ; i < 2 ; i++) {
+            if (harvester.settings.deduplicateHash) {
+                harvester.settings.deduplicateAbstraction
+                        .duplicateValues(job.getActualJob(), deleteDuplicateStmt, column);
+                column += harvester.getDuplicateDeleteColumnsCount();
+            }
+            harvester.settings.deduplicateAbstraction
+                    .duplicateValues(job.getActualJob(), deleteDuplicateStmt, column);
+            column += harvester.getDuplicateDeleteColumnsCount();
+            if (inPlace)
+                deleteDuplicateStmt.setArray(column++, allConsumers ? lockedRows(job) : lockedRows(job, job.getConsumer()));
+        }
         return deleteDuplicateStmt;
     }
 
+    /**
+     * Rows locked by this worker (in in-place mode)
+     * <p>
+     * Only rows from the consumer are included, since ctids are only unique
+     * within a partition
+     *
+     * @param job      the job being processed
+     * @param consumer the consumer to deduplicate for
+     * @return array of ctids
+     * @throws SQLException for database errors
+     */
+    private java.sql.Array lockedRows(JobWithMetaData<T> job, String consumer) throws SQLException {
+        ArrayList<String> ctids = new ArrayList<>(pending.size() + 1);
+        if (job.getConsumer().equals(consumer))
+            ctids.add(job.getCtid());
+        pending.stream()
+                .filter(p -> p.getConsumer().equals(consumer))
+                .forEach(p -> ctids.add(p.getCtid()));
+        return connection.createArrayOf("text", ctids.toArray());
+    }
+
+    /**
+     * Rows locked by this worker (in in-place mode), from all consumers
+     * <p>
+     * Each row is identified by consumer and ctid, since ctids are only
+     * unique within a partition
+     *
+     * @param job the job being processed
+     * @return array of consumer || ctid
+     * @throws SQLException for database errors
+     */
+    private java.sql.Array lockedRows(JobWithMetaData<T> job) throws SQLException {
+        ArrayList<String> rows = new ArrayList<>(pending.size() + 1);
+        rows.add(job.getConsumer() + job.getCtid());
+        pending.forEach(p -> rows.add(p.getConsumer() + p.getCtid()));
+        return connection.createArrayOf("text", rows.toArray());
+    }
+
     @FunctionalInterface
     private interface SQLExceptionMethod {
 
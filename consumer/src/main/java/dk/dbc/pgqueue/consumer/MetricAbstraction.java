@@ -51,6 +51,11 @@ public interface MetricAbstraction {
         void inc();
     }
 
+    interface Gauge {
+
+        void set(long value);
+    }
+
     /**
      * Create a metrics counter for a class with a given name
      *
@@ -68,4 +73,18 @@ public interface MetricAbstraction {
      * @return timer object
      */
     Timer timer(Class clazz, String name);
+
+    /**
+     * Create a metrics gauge for a class with a given name
+     * <p>
+     * Defaults to a gauge that isn't registered anywhere
+     *
+     * @param clazz class that contains the gauge
+     * @param name  name of the gauge
+     * @return gauge object
+     */
+    default Gauge gauge(Class clazz, String name) {
+        return value -> {
+        };
+    }
 }
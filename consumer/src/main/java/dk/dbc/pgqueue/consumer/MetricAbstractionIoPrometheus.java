@@ -68,6 +68,14 @@ public class MetricAbstractionIoPrometheus implements MetricAbstraction {
         };
     }
 
+    @Override
+    public Gauge gauge(Class clazz, String name) {
+        io.prometheus.metrics.core.metrics.Gauge gauge = io.prometheus.metrics.core.metrics.Gauge.builder()
+                .name(name(clazz, name))
+                .register(registry);
+        return gauge::set;
+    }
+
     private String name(Class clazz, String name) {
         return clazz.getCanonicalName() + "." + name;
     }
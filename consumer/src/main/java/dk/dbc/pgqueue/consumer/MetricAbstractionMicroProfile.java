@@ -18,6 +18,7 @@
  */
 package dk.dbc.pgqueue.consumer;
 
+import java.util.concurrent.atomic.AtomicLong;
 import org.eclipse.microprofile.metrics.MetricRegistry;
 
 /**
@@ -55,4 +56,11 @@ public class MetricAbstractionMicroProfile implements MetricAbstraction {
             };
         };
     }
+
+    @Override
+    public Gauge gauge(Class clazz, String name) {
+        AtomicLong value = new AtomicLong();
+        metricRegistry.gauge(MetricRegistry.name(clazz.getCanonicalName(), name), value, AtomicLong::get);
+        return value::set;
+    }
 }
@@ -40,4 +40,10 @@ public class MetricAbstractionNull implements MetricAbstraction {
         };
     }
 
+    @Override
+    public Gauge gauge(Class clazz, String name) {
+        return value -> {
+        };
+    }
+
 }
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-consumer
+ *
+ * pg-queue-consumer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-consumer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.consumer;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Listener for notifications from the queue table trigger (queue_notify)
+ * <p>
+ * One database connection per {@link Harvester} LISTENs for the consumer names
+ * the harvester serves. When a notification arrives an idle {@link JobWorker}
+ * is woken. Workers still wake after emptyQueueSleep, so polling is kept as a
+ * safety net, should notifications be lost or the trigger be disabled.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+class QueueListener implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(QueueListener.class);
+
+    private static final String CHANNEL_PREFIX = "pgqueue_";
+    private static final int MAX_POLL_MS = 1_000;
+
+    static class SqlTriggerEnabled {
+
+        static final String SQL = "SELECT tgenabled <> 'D' FROM pg_trigger" +
+                                  " WHERE tgname = 'queue_notify' AND tgrelid = 'queue'::regclass";
+    }
+
+    private final Harvester<?> harvester;
+    private final DataSource dataSource;
+    private final ConcurrentLinkedDeque<Thread> idle;
+    private final AtomicLong generation;
+    private final MetricAbstraction.Counter notificationCounter;
+    private Thread thread;
+
+    QueueListener(Harvester<?> harvester, DataSource dataSource, MetricAbstraction.Counter notificationCounter) {
+        this.harvester = harvester;
+        this.dataSource = dataSource;
+        this.idle = new ConcurrentLinkedDeque<>();
+        this.generation = new AtomicLong();
+        this.notificationCounter = notificationCounter;
+        this.thread = null;
+    }
+
+    /**
+     * Start listening in a thread of its own
+     */
+    void start() {
+        thread = new Thread(this, "pg-queue-listener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Wait for the listener thread to stop
+     *
+     * @param ms max number of milliseconds to wait
+     */
+    void join(long ms) {
+        if (thread != null) {
+            try {
+                thread.join(Long.max(1, ms));
+            } catch (InterruptedException ex) {
+                log.error("Error waiting for listener-thread to finish: {}", ex.getMessage());
+                log.debug("Error waiting for listener-thread to finish:", ex);
+            }
+        }
+    }
+
+    /**
+     * Snapshot of the notification count
+     * <p>
+     * Should be taken before scanning the queue, and passed to {@link #await(long, long)
+     * }, so a notification arriving during the scan isn't lost
+     *
+     * @return opaque value
+     */
+    long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Wait for a notification or a timeout
+     *
+     * @param seen value of {@link #generation()} before the queue was scanned
+     * @param ms   max number of milliseconds to wait
+     * @return if woken by a notification
+     */
+    boolean await(long seen, long ms) {
+        Thread self = Thread.currentThread();
+        idle.addLast(self);
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms);
+            for (;;) {
+                if (generation.get() != seen)
+                    return true;
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || !harvester.isRunning() || self.isInterrupted())
+                    return false;
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            idle.remove(self);
+            Thread.interrupted(); // Same as Thread.sleep() clear interrupted state
+        }
+    }
+
+    /**
+     * Wake an idle worker (if any)
+     * <p>
+     * Called by a worker that has been woken and found a job, since one
+     * notification can represent many jobs
+     */
+    void wakeOne() {
+        generation.incrementAndGet();
+        Thread worker = idle.pollFirst();
+        if (worker != null)
+            LockSupport.unpark(worker);
+    }
+
+    @Override
+    public void run() {
+        while (harvester.isRunning()) {
+            try (Connection connection = dataSource.getConnection()) {
+                if (!connection.isWrapperFor(PGConnection.class)) {
+                    log.error("Cannot listen for notifications (not a PostgreSQL connection), falling back to polling");
+                    break;
+                }
+                connection.setAutoCommit(true);
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                listen(connection);
+                // In case something was queued before LISTEN took effect
+                wakeOne();
+                int timeout = (int) Long.min(MAX_POLL_MS, harvester.settings.emptyQueueSleep);
+                while (harvester.isRunning()) {
+                    PGNotification[] notifications = pgConnection.getNotifications(timeout);
+                    if (notifications != null) {
+                        for (PGNotification notification : notifications) {
+                            log.trace("Got notification for: {}", notification.getName());
+                            notificationCounter.inc();
+                            wakeOne();
+                        }
+                    }
+                }
+            } catch (SQLException ex) {
+                if (!harvester.isRunning())
+                    break;
+                log.error("Error listening for notifications: {}", ex.getMessage());
+                log.debug("Error listening for notifications:", ex);
+                try {
+                    Thread.sleep(harvester.settings.emptyQueueSleep);
+                } catch (InterruptedException ex1) {
+                    log.debug("Interrupted while waiting to reconnect: {}", ex1.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Issue LISTEN for all consumer names
+     *
+     * @param connection database connection
+     * @throws SQLException if LISTEN fails
+     */
+    private void listen(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            try (ResultSet resultSet = stmt.executeQuery(SqlTriggerEnabled.SQL)) {
+                if (!resultSet.next() || !resultSet.getBoolean(1))
+                    log.warn("Trigger queue_notify is not enabled, falling back to polling");
+            }
+            for (String consumerName : harvester.settings.consumerNames) {
+                stmt.execute("LISTEN \"" + CHANNEL_PREFIX + consumerName.replace("\"", "\"\"") + "\"");
+            }
+        }
+        log.info("Listening for notifications on: {}", harvester.settings.consumerNames);
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-consumer
+ *
+ * pg-queue-consumer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-consumer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.consumer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The order in which to try the queues, when looking for a job
+ * <p>
+ * Shared among all workers in a {@link Harvester}, and lock free
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+abstract class QueueSelection {
+
+    final List<String> names;
+
+    private QueueSelection(List<String> names) {
+        this.names = names;
+    }
+
+    /**
+     * Make a queue selection
+     *
+     * @param policy  how to select
+     * @param names   consumer names
+     * @param weights weights of the consumer names (same order)
+     * @return queue selection
+     */
+    static QueueSelection of(QueueSelectionPolicy policy, List<String> names, List<Integer> weights) {
+        switch (policy) {
+            case ORDERED:
+                return new Ordered(names);
+            case ROUND_ROBIN:
+                return new RoundRobin(names);
+            case WEIGHTED:
+                return new Weighted(names, weights);
+            case DEFICIT_ROUND_ROBIN:
+                return new DeficitRoundRobin(names, weights);
+            default:
+                throw new IllegalStateException("INTERNAL LOGIC ERROR");
+        }
+    }
+
+    /**
+     * The queues in the order they should be tried
+     *
+     * @return list of consumer names (do not modify)
+     */
+    abstract List<String> order();
+
+    /**
+     * Register that a job from a queue has been processed
+     *
+     * @param name  consumer name
+     * @param nanos how long the processing took
+     */
+    void processed(String name, long nanos) {
+    }
+
+    /**
+     * Register that a queue had no ready jobs
+     *
+     * @param name consumer name
+     */
+    void empty(String name) {
+    }
+
+    /**
+     * All rotations of the names list, so order() doesn't need to allocate
+     *
+     * @param names consumer names
+     * @return list of lists, where list n starts with names[n]
+     */
+    private static List<List<String>> rotations(List<String> names) {
+        ArrayList<List<String>> rotations = new ArrayList<>(names.size());
+        for (int i = 0 ; i < names.size() ; i++) {
+            ArrayList<String> rotation = new ArrayList<>(names);
+            Collections.rotate(rotation, -i);
+            rotations.add(Collections.unmodifiableList(rotation));
+        }
+        return rotations;
+    }
+
+    private static class Ordered extends QueueSelection {
+
+        private Ordered(List<String> names) {
+            super(names);
+        }
+
+        @Override
+        List<String> order() {
+            return names;
+        }
+    }
+
+    private static class RoundRobin extends QueueSelection {
+
+        private final List<List<String>> rotations;
+        private final AtomicInteger next;
+
+        private RoundRobin(List<String> names) {
+            super(names);
+            this.rotations = rotations(names);
+            this.next = new AtomicInteger();
+        }
+
+        @Override
+        List<String> order() {
+            return rotations.get(Math.floorMod(next.getAndIncrement(), rotations.size()));
+        }
+    }
+
+    /**
+     * Smooth weighted round robin, the schedule is computed up front, so
+     * selection is an atomic increment
+     */
+    static class Weighted extends QueueSelection {
+
+        private final List<List<String>> rotations;
+        final int[] schedule;
+        private final AtomicInteger next;
+
+        Weighted(List<String> names, List<Integer> weights) {
+            super(names);
+            this.rotations = rotations(names);
+            this.schedule = schedule(weights);
+            this.next = new AtomicInteger();
+        }
+
+        @Override
+        List<String> order() {
+            return rotations.get(schedule[Math.floorMod(next.getAndIncrement(), schedule.length)]);
+        }
+
+        private static int[] schedule(List<Integer> weights) {
+            int gcd = weights.stream().reduce(0, Weighted::gcd);
+            int[] w = weights.stream().mapToInt(i -> i / gcd).toArray();
+            int total = Arrays.stream(w).sum();
+            int[] current = new int[w.length];
+            int[] schedule = new int[total];
+            for (int n = 0 ; n < total ; n++) {
+                int best = 0;
+                for (int i = 0 ; i < w.length ; i++) {
+                    current[i] += w[i];
+                    if (current[i] > current[best])
+                        best = i;
+                }
+                current[best] -= total;
+                schedule[n] = best;
+            }
+            return schedule;
+        }
+
+        private static int gcd(int a, int b) {
+            return b == 0 ? a : gcd(b, a % b);
+        }
+    }
+
+    /**
+     * Fair share of processing time; each queue has a virtual time, which is
+     * processing time divided by weight, and the queue with the lowest is
+     * tried first
+     */
+    static class DeficitRoundRobin extends QueueSelection {
+
+        private final int[] weights;
+        private final AtomicLongArray virtualTime;
+
+        DeficitRoundRobin(List<String> names, List<Integer> weights) {
+            super(names);
+            this.weights = weights.stream().mapToInt(i -> i).toArray();
+            this.virtualTime = new AtomicLongArray(names.size());
+        }
+
+        @Override
+        List<String> order() {
+            long[] snapshot = new long[names.size()];
+            ArrayList<Integer> indexes = new ArrayList<>(names.size());
+            for (int i = 0 ; i < snapshot.length ; i++) {
+                snapshot[i] = virtualTime.get(i);
+                indexes.add(i);
+            }
+            // Stable sort, ties are taken in list order
+            indexes.sort(Comparator.comparingLong(i -> snapshot[i]));
+            ArrayList<String> order = new ArrayList<>(names.size());
+            for (int i : indexes) {
+                order.add(names.get(i));
+            }
+            return order;
+        }
+
+        @Override
+        void processed(String name, long nanos) {
+            int i = names.indexOf(name);
+            if (i >= 0)
+                virtualTime.addAndGet(i, Long.max(1, nanos / weights[i]));
+        }
+
+        @Override
+        void empty(String name) {
+            int i = names.indexOf(name);
+            if (i < 0)
+                return;
+            // An empty queue is caught up to the slowest busy queue, so it
+            // cannot build up credit while idle
+            long min = Long.MAX_VALUE;
+            for (int j = 0 ; j < names.size() ; j++) {
+                if (j != i)
+                    min = Long.min(min, virtualTime.get(j));
+            }
+            if (min != Long.MAX_VALUE) {
+                long catchUp = min;
+                virtualTime.accumulateAndGet(i, catchUp, Long::max);
+            }
+        }
+
+        long virtualTime(String name) {
+            return virtualTime.get(names.indexOf(name));
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-consumer
+ *
+ * pg-queue-consumer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-consumer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.consumer;
+
+/**
+ * How a worker chooses which consumer name (queue) to take the next job from
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public enum QueueSelectionPolicy {
+
+    /**
+     * Drain the queues in the order they are listed (default)
+     * <p>
+     * A backlog in the first queue starves the later queues
+     */
+    ORDERED,
+    /**
+     * Start with the next queue in the list for every job
+     */
+    ROUND_ROBIN,
+    /**
+     * Start with a queue chosen by weight (name:weight), spread out evenly
+     * <p>
+     * A queue with weight 5 is tried first 5 times as often as a queue with
+     * weight 1
+     */
+    WEIGHTED,
+    /**
+     * Start with the queue that has had the least processing time (divided by
+     * weight)
+     * <p>
+     * A queue that has been empty doesn't get to save up time
+     */
+    DEFICIT_ROUND_ROBIN
+}
@@ -33,6 +33,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -79,20 +80,45 @@ public interface QueueWorker {
         private static final Logger log = LoggerFactory.getLogger(Builder.class);
 
         public static final String ENV_MAX_TRIES = "MAX_TRIES";
+        public static final String ENV_BATCH_SIZE = "BATCH_SIZE";
+        public static final String ENV_ADAPTIVE_CONCURRENCY = "ADAPTIVE_CONCURRENCY";
+        public static final String ENV_FETCHERS = "FETCHERS";
+        public static final String ENV_DEQUEUE_MODE = "DEQUEUE_MODE";
+        public static final String ENV_LEASE_DURATION = "LEASE_DURATION";
+        public static final String ENV_ERROR_RETENTION = "ERROR_RETENTION";
         public static final String ENV_QUEUE_WINDOW = "QUEUE_WINDOW";
+        public static final String ENV_QUEUE_MAX_WINDOW = "QUEUE_MAX_WINDOW";
         public static final String ENV_EMPTY_QUEUE_SLEEP = "EMPTY_QUEUE_SLEEP";
+        public static final String ENV_QUEUE_NOTIFY = "QUEUE_NOTIFY";
         public static final String ENV_MAX_QUERY_TIME = "MAX_QUERY_TIME";
         public static final String ENV_RESCAN_EVERY = "RESCAN_EVERY";
         public static final String ENV_IDLE_RESCAN_EVERY = "IDLE_RESCAN_EVERY";
         public static final String ENV_DATABASE_THROTTLE = "DATABASE_THROTTLE";
         public static final String ENV_DEDUPLICATE_DISABLE = "DEDUPLICATE_DISABLE";
+        public static final String ENV_DEDUPLICATE_HASH = "DEDUPLICATE_HASH";
+        public static final String ENV_DUPLICATE_HINT = "DUPLICATE_HINT";
         public static final String ENV_FAILURE_THROTTLE = "FAILURE_THROTTLE";
         public static final String ENV_QUEUES = "QUEUES";
+        public static final String ENV_RATE_LIMITS = "RATE_LIMITS";
+        public static final String ENV_MAX_CONCURRENCY = "MAX_CONCURRENCY";
+        public static final String ENV_SCALE_UP_LAG = "SCALE_UP_LAG";
+        public static final String ENV_QUEUE_SAMPLE_INTERVAL = "QUEUE_SAMPLE_INTERVAL";
+        public static final String ENV_QUEUE_SELECTION = "QUEUE_SELECTION";
+        public static final String ENV_VIRTUAL_THREADS = "VIRTUAL_THREADS";
 
         private static final Map<String, String> DEFAULT_ENVIRONMENT =
                 Arrays.asList(ENV_MAX_TRIES + "=3",
+                              ENV_BATCH_SIZE + "=1",
+                              ENV_FETCHERS + "=0",
+                              ENV_VIRTUAL_THREADS + "=false",
+                              ENV_DEDUPLICATE_HASH + "=false",
+                              ENV_DUPLICATE_HINT + "=false",
+                              ENV_DEQUEUE_MODE + "=delete",
+                              ENV_LEASE_DURATION + "=5m",
                               ENV_QUEUE_WINDOW + "=500ms",
                               ENV_EMPTY_QUEUE_SLEEP + "=10s",
+                              ENV_SCALE_UP_LAG + "=5s",
+                              ENV_QUEUE_NOTIFY + "=false",
                               ENV_MAX_QUERY_TIME + "=250ms",
                               ENV_RESCAN_EVERY + "=500",
                               ENV_IDLE_RESCAN_EVERY + "=5",
@@ -105,39 +131,79 @@ public interface QueueWorker {
 
         private final QueueStorageAbstraction<T> storageAbstraction;
         private Integer maxTries;
+        private Integer batchSize;
+        private String adaptiveConcurrency;
+        private Integer fetchers;
+        private DequeueMode dequeueMode;
+        private Long leaseDuration;
+        private Long errorRetention;
         private Long window;
+        private Long maxWindow;
         private Long emptyQueueSleep;
+        private Long scaleUpLag;
+        private Long sampleInterval;
+        private Boolean listen;
         private Long maxQueryTime;
         private Integer rescanEvery;
         private Integer idleRescanEvery;
         private List<String> consumerNames;
+        private final Map<String, String> rateLimits;
+        private final Map<String, String> envRateLimits;
+        private final Map<String, Integer> maxConcurrency;
+        private final Map<String, Integer> envMaxConcurrency;
+        private QueueSelectionPolicy queueSelection;
         private DataSource dataSource;
         private String databaseConnectThrottle;
         private DeduplicateDisable deduplicateDisable;
         private String failureThrottle;
+        private final Map<String, String> consumerFailureThrottles;
+        private final Map<String, String> envFailureThrottles;
         private ExecutorService executor;
+        private Boolean virtualThreads;
         private MetricAbstraction metricsAbstraction;
         private DeduplicateAbstraction<T> deduplicateAbstraction;
         private boolean includePostponedInDeduplication;
         private boolean deduplicateFromAllConsumers;
+        private Boolean deduplicateHash;
+        private Boolean duplicateHint;
         private QueueHealth health;
 
         private Builder(QueueStorageAbstraction<T> storageAbstraction) {
             this.storageAbstraction = storageAbstraction;
             this.maxTries = null;
+            this.batchSize = null;
+            this.adaptiveConcurrency = null;
+            this.fetchers = null;
+            this.dequeueMode = null;
+            this.leaseDuration = null;
+            this.errorRetention = null;
             this.window = null;
+            this.maxWindow = null;
             this.emptyQueueSleep = null;
+            this.scaleUpLag = null;
+            this.sampleInterval = null;
+            this.listen = null;
             this.maxQueryTime = null;
             this.rescanEvery = null;
             this.idleRescanEvery = null;
             this.consumerNames = null;
+            this.rateLimits = new HashMap<>();
+            this.envRateLimits = new HashMap<>();
+            this.maxConcurrency = new HashMap<>();
+            this.envMaxConcurrency = new HashMap<>();
+            this.queueSelection = null;
             this.dataSource = null;
             this.databaseConnectThrottle = null;
             this.failureThrottle = null;
+            this.consumerFailureThrottles = new HashMap<>();
+            this.envFailureThrottles = new HashMap<>();
             this.executor = null;
+            this.virtualThreads = null;
             this.metricsAbstraction = null;
             this.deduplicateAbstraction = null;
             this.includePostponedInDeduplication = false;
+            this.deduplicateHash = null;
+            this.duplicateHint = null;
             this.health = null;
         }
 
@@ -145,7 +211,13 @@ public interface QueueWorker {
          * Set which queues to consume from (required)
          * <p>
          * Consummation is done in order ie. drain queue1 first then queue2, if
-         * queue1 acquires new rows take them before continuing on queue2
+         * queue1 acquires new rows take them before continuing on queue2,
+         * unless another {@link #queueSelection(dk.dbc.pgqueue.consumer.QueueSelectionPolicy)}
+         * is set.
+         * <p>
+         * A name can have a weight ({@code name:weight}), which is used by
+         * {@link QueueSelectionPolicy#WEIGHTED} (the default policy if any
+         * weight is given) and {@link QueueSelectionPolicy#DEFICIT_ROUND_ROBIN}
          *
          * @param names list of consumer names
          * @return self
@@ -155,6 +227,53 @@ public interface QueueWorker {
             return this;
         }
 
+        /**
+         * Limit how many jobs per time unit are taken from a queue
+         * <p>
+         * The rate is {count}/[{n}]{ms|s|m|h}, ie. 200/s or 5/10m. Tokens are
+         * taken before jobs are dequeued, so no rows are locked while waiting.
+         * Up to batchSize jobs can be taken at once.
+         *
+         * @param name consumer name
+         * @param rate rate limit spec
+         * @return self
+         */
+        public Builder<T> rateLimit(String name, String rate) {
+            if (rateLimits.putIfAbsent(name, rate) != null)
+                throw new IllegalArgumentException("rateLimit(" + name + ") has already been set");
+            return this;
+        }
+
+        /**
+         * Limit how many jobs from a queue can be in flight (claimed or being
+         * processed) at the same time
+         * <p>
+         * When a queue is at its cap, workers skip it and serve the other
+         * queues, so a slow queue cannot occupy every worker.
+         *
+         * @param name consumer name
+         * @param max  max number of jobs in flight
+         * @return self
+         */
+        public Builder<T> maxConcurrency(String name, int max) {
+            if (max < 1)
+                throw new IllegalArgumentException("maxConcurrency(" + name + ") should be positive");
+            if (maxConcurrency.putIfAbsent(name, max) != null)
+                throw new IllegalArgumentException("maxConcurrency(" + name + ") has already been set");
+            return this;
+        }
+
+        /**
+         * Set how to choose which queue to take a job from
+         *
+         * @param queueSelection the policy
+         * @return self
+         */
+        public Builder<T> queueSelection(QueueSelectionPolicy queueSelection) {
+            this.queueSelection = setOrFail(this.queueSelection, queueSelection, "queueSelection");
+            return this;
+        }
+
         /**
          * Set the datasource (required)
          *
@@ -177,8 +296,131 @@ public interface QueueWorker {
             return this;
         }
 
+        /**
+         * Set how many jobs to take from the queue in one statement
+         * <p>
+         * The jobs are processed in one transaction, with a savepoint per job,
+         * and committed when the last job of the batch has been processed. If
+         * the database connection fails, the entire batch is returned to the
+         * queue, and jobs that already has been processed will be processed
+         * again.
+         * <p>
+         * Duplicates of a job within the same batch are not removed by
+         * {@link #skipDuplicateJobs(dk.dbc.pgqueue.common.DeduplicateAbstraction)}
+         *
+         * @param batchSize max number of jobs per dequeue (default 1)
+         * @return self
+         */
+        public Builder<T> batchSize(int batchSize) {
+            if (batchSize < 1)
+                throw new IllegalArgumentException("batchSize should be positive");
+            this.batchSize = setOrFail(this.batchSize, batchSize, "batchSize");
+            return this;
+        }
+
+        /**
+         * Use a dispatcher, where a few fetchers claim jobs, and hands them to
+         * the consumers through a bounded queue
+         * <p>
+         * Only the fetchers poll the queue, and consumers only hold a database
+         * connection while processing a job and committing. This needs a
+         * pooling {@link DataSource}, since a fetcher borrows a new connection
+         * whenever it has handed off a job.
+         * <p>
+         * An {@link #executor(java.util.concurrent.ExecutorService)} needs to
+         * have room for the consumers and the fetchers
+         *
+         * @param fetchers number of threads claiming jobs (0 = disabled,
+         *                 default)
+         * @return self
+         */
+        public Builder<T> dispatcher(int fetchers) {
+            if (fetchers < 0)
+                throw new IllegalArgumentException("fetchers should not be negative");
+            this.fetchers = setOrFail(this.fetchers, fetchers, "dispatcher");
+            return this;
+        }
+
+        /**
+         * Set how jobs are taken out of the queue
+         * <p>
+         * With {@link DequeueMode#LEASE} the job is claimed in a transaction of
+         * its own, and processed in another, so no transaction is kept open,
+         * while the consumer is busy. This needs the lease columns of the
+         * V1_8 migration.
+         * <p>
+         * In lease mode jobs from a batch are committed one at a time, and
+         * duplicates are removed (and the merged job stored) before processing
+         * starts
+         * <p>
+         * With {@link DequeueMode#IN_PLACE} the row is locked instead of
+         * deleted, so a failed job is updated rather than re-inserted
+         *
+         * @param dequeueMode the mode (default {@link DequeueMode#DELETE})
+         * @return self
+         */
+        public Builder<T> dequeueMode(DequeueMode dequeueMode) {
+            this.dequeueMode = setOrFail(this.dequeueMode, dequeueMode, "dequeueMode");
+            return this;
+        }
+
+        /**
+         * Set how long a lease is, before the job is given to another worker
+         * <p>
+         * This should be well above the time it takes to process a job
+         *
+         * @param leaseDuration number of milliseconds (default 5 minutes)
+         * @return self
+         */
+        public Builder<T> leaseDuration(long leaseDuration) {
+            if (leaseDuration <= 0)
+                throw new IllegalArgumentException("leaseDuration should be positive");
+            this.leaseDuration = setOrFail(this.leaseDuration, leaseDuration, "leaseDuration");
+            return this;
+        }
+
+        /**
+         * Set how long failed jobs are kept in queue_error
+         * <p>
+         * This requires queue_error to be partitioned by time (see
+         * pgqueue_admin_partition_queue_error), whole partitions older than
+         * this are dropped, and new partitions are made ahead of time. The
+         * maintenance is run by one of the workers about once an hour.
+         *
+         * @param errorRetention number of milliseconds (default 0, keep
+         *                       everything)
+         * @return self
+         */
+        public Builder<T> errorRetention(long errorRetention) {
+            if (errorRetention < 0)
+                throw new IllegalArgumentException("errorRetention cannot be negative");
+            this.errorRetention = setOrFail(this.errorRetention, errorRetention, "errorRetention");
+            return this;
+        }
+
+        /**
+         * How often to sample the queues, for the per consumer name gauges:
+         * queueReady, queuePostponed (counted up to 10000) and queueOldestAge
+         * (ms the oldest ready job has been due)
+         * <p>
+         * The sample is taken by a worker, between jobs, so an idle worker
+         * samples at most once per emptyQueueSleep. Leased jobs count as
+         * postponed.
+         *
+         * @param sampleInterval number of milliseconds (0 = disabled)
+         * @return self
+         */
+        public Builder<T> sampleInterval(long sampleInterval) {
+            if (sampleInterval < 0)
+                throw new IllegalArgumentException("sampleInterval cannot be negative");
+            this.sampleInterval = setOrFail(this.sampleInterval, sampleInterval, "sampleInterval");
+            return this;
+        }
+
         /**
          * Set window in ms for uncommitted transactions
+         * <p>
+         * This is the smallest window, if {@link #maxWindow(long)} is set
          *
          * @param window how many ms are looked back in time
          * @return self
@@ -188,6 +430,23 @@ public interface QueueWorker {
             return this;
         }
 
+        /**
+         * Make the window adaptive, up to this value
+         * <p>
+         * The window (per queue) is widened when rescans find jobs further
+         * behind than the window, and narrowed when dequeuing exceeds
+         * {@link #maxQueryTime(long)}, or rescans find nothing behind. The
+         * current value is exposed as a gauge: window.{queue}
+         *
+         * @param maxWindow how many ms can be looked back in time (default
+         *                  same as window - ie. not adaptive)
+         * @return self
+         */
+        public Builder<T> maxWindow(long maxWindow) {
+            this.maxWindow = setOrFail(this.maxWindow, maxWindow, "maxWindow");
+            return this;
+        }
+
         /**
          * Set whether deduplication of jobs should occur. Does not include postponed jobs.
          *
@@ -214,6 +473,47 @@ public interface QueueWorker {
             return this;
         }
 
+        /**
+         * Look up duplicates by the dedup_hash column
+         * <p>
+         * This makes finding duplicates an index lookup. Only jobs enqueued by
+         * a supplier configured with the same abstraction in
+         * QueueSupplier.withDeduplicateHash() have a hash, other jobs are
+         * never found as duplicates. Jobs that are retried, postponed or
+         * failed (and requeued) keep their hash.
+         * <p>
+         * Requires {@link #skipDuplicateJobs(dk.dbc.pgqueue.common.DeduplicateAbstraction)}
+         *
+         * @return self
+         */
+        public Builder<T> deduplicateHash() {
+            this.deduplicateHash = setOrFail(this.deduplicateHash, true, "deduplicateHash");
+            return this;
+        }
+
+        /**
+         * Find out if a job has duplicates when it is dequeued
+         * <p>
+         * The dequeue statement checks for duplicates of the jobs it takes,
+         * and the delete duplicate statement (a round trip per job) is only
+         * run for jobs that have any. Most jobs have no duplicates.
+         * <p>
+         * Duplicates enqueued after a job has been dequeued are not merged
+         * into it, but processed by themselves.
+         * <p>
+         * The check is part of every dequeue statement, also when
+         * deduplication is disabled, so it has to be an index lookup.
+         * <p>
+         * Requires {@link #skipDuplicateJobs(dk.dbc.pgqueue.common.DeduplicateAbstraction)}
+         * and {@link #deduplicateHash()}
+         *
+         * @return self
+         */
+        public Builder<T> duplicateHint() {
+            this.duplicateHint = setOrFail(this.duplicateHint, true, "duplicateHint");
+            return this;
+        }
+
         /**
          * How long to sleep for, when the queue is empty
          *
@@ -225,6 +525,38 @@ public interface QueueWorker {
             return this;
         }
 
+        /**
+         * How long a job can have been due, before another worker is added,
+         * when built with an elastic number of workers
+         * <p>
+         * This is also how long a worker has to be idle, before it is retired
+         *
+         * @param scaleUpLag number of milliseconds
+         * @return self
+         */
+        public Builder<T> scaleUpLag(long scaleUpLag) {
+            this.scaleUpLag = setOrFail(this.scaleUpLag, scaleUpLag, "scaleUpLag");
+            return this;
+        }
+
+        /**
+         * Wake idle workers, when jobs are queued
+         * <p>
+         * A connection per QueueWorker LISTENs for notifications from the
+         * queue_notify trigger, which is disabled by default, since
+         * notifications serializes the committing of transactions. Enable it
+         * with: {@code ALTER TABLE queue ENABLE TRIGGER queue_notify;}
+         * <p>
+         * Workers still wake after {@link #emptyQueueSleep(long)}, in case a
+         * notification is missed
+         *
+         * @return self
+         */
+        public Builder<T> listenForNotifications() {
+            this.listen = setOrFail(this.listen, true, "listenForNotifications");
+            return this;
+        }
+
         /**
          * How long a query (rescan queue for earliest timestamp) is allowed to
          * take, before re-planning prepared statements
@@ -274,10 +606,15 @@ public interface QueueWorker {
         }
 
         /**
-         * Sets a limit/period (both timespecs) if deduplicate takes more than
-         * limit it is disabled for period
+         * Sets a limit/period (both timespecs) if deduplicate (95th percentile
+         * of recent calls) takes more than limit it is disabled for period
+         * <p>
+         * After the period, 1 in n (default 10) jobs are deduplicated, until
+         * they show if deduplicate is fast again. State and percentile are
+         * exposed as gauges: deduplicateState (0=enabled, 1=probing,
+         * 2=disabled) and deduplicateP95
          *
-         * @param spec deduplicateDisable spec ({duration}/{duraion})
+         * @param spec deduplicateDisable spec ({duration}/{duraion}[/{n}])
          * @return self
          */
         public Builder<T> deduplicateDisable(String spec) {
@@ -286,10 +623,44 @@ public interface QueueWorker {
         }
 
         private DeduplicateDisable deduplicateDisableBuild(String spec) throws IllegalArgumentException {
-            String[] parts = spec.split("/", 2);
-            if (parts.length != 2)
+            String[] parts = spec.split("/", 3);
+            if (parts.length < 2)
                 throw new IllegalArgumentException("deduplicate disable spec: " + spec);
-            return new DeduplicateDisable(milliseconds(parts[0]), milliseconds(parts[1]));
+            if (parts.length == 2)
+                return new DeduplicateDisable(milliseconds(parts[0]), milliseconds(parts[1]));
+            try {
+                return new DeduplicateDisable(milliseconds(parts[0]), milliseconds(parts[1]), Integer.parseUnsignedInt(parts[2]));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("deduplicate disable spec: " + spec, ex);
+            }
+        }
+
+        /**
+         * Adapt how many workers can claim and process jobs at the same time
+         * <p>
+         * The limit starts at the number of workers, and is lowered when jobs
+         * fail or take longer than the target, and raised while they're fast.
+         * The current limit is exposed as the gauge concurrencyLimit.
+         *
+         * @param spec adaptive concurrency spec ({duration}[/{min}]), ie.
+         *             500ms/2
+         * @return self
+         */
+        public Builder<T> adaptiveConcurrency(String spec) {
+            this.adaptiveConcurrency = setOrFail(this.adaptiveConcurrency, spec, "adaptiveConcurrency");
+            return this;
+        }
+
+        private ConcurrencyLimit adaptiveConcurrencyBuild(String spec, int max) throws IllegalArgumentException {
+            if (spec == null)
+                return new ConcurrencyLimit();
+            String[] parts = spec.split("/", 2);
+            try {
+                int min = parts.length == 2 ? Integer.parseUnsignedInt(parts[1]) : 1;
+                return new ConcurrencyLimit(milliseconds(parts[0]), Integer.min(min, max), max);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("adaptive concurrency spec: " + spec, ex);
+            }
         }
 
         /**
@@ -303,11 +674,36 @@ public interface QueueWorker {
             return this;
         }
 
+        /**
+         * Throttle string, for failures in job processing for one consumer
+         * name
+         * <p>
+         * Failures of this consumer name are registered with this throttle
+         * instead of the common one, and while it is throttled workers skip
+         * this consumer name and serve the others.
+         *
+         * @param name            consumer name
+         * @param failureThrottle throttle spec
+         * @return self
+         */
+        public Builder<T> failureThrottle(String name, String failureThrottle) {
+            if (consumerFailureThrottles.putIfAbsent(name, failureThrottle) != null)
+                throw new IllegalArgumentException("failureThrottle(" + name + ") has already been set");
+            return this;
+        }
+
         /**
          * Set missing values from environment
          * <p>
          * You cannot set values after this, they might fail at runtime with
          * value has already been set
+         * <p>
+         * Per consumer name values ({@code FAILURE_THROTTLE_<name>},
+         * {@code RATE_LIMITS} and {@code MAX_CONCURRENCY}) are only used for
+         * the consumer names this consumes from. The names are matched in
+         * upper case, with other characters than letters and digits as
+         * {@code _}, ie. {@code FAILURE_THROTTLE_SLOW_EXTERNAL} is used for
+         * slow-external
          *
          * @return self
          */
@@ -353,12 +749,39 @@ public interface QueueWorker {
             if (maxTries == null && ( s = env.get(ENV_MAX_TRIES) ) != null) {
                 maxTries = Integer.max(1, Integer.parseInt(s));
             }
+            if (batchSize == null && ( s = env.get(ENV_BATCH_SIZE) ) != null) {
+                batchSize = Integer.max(1, Integer.parseInt(s));
+            }
+            if (fetchers == null && ( s = env.get(ENV_FETCHERS) ) != null) {
+                fetchers = Integer.max(0, Integer.parseInt(s));
+            }
+            if (dequeueMode == null && ( s = env.get(ENV_DEQUEUE_MODE) ) != null) {
+                dequeueMode = DequeueMode.valueOf(s.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+            }
+            if (leaseDuration == null && ( s = env.get(ENV_LEASE_DURATION) ) != null) {
+                leaseDuration = milliseconds(s);
+            }
+            if (errorRetention == null && ( s = env.get(ENV_ERROR_RETENTION) ) != null) {
+                errorRetention = milliseconds(s);
+            }
             if (window == null && ( s = env.get(ENV_QUEUE_WINDOW) ) != null) {
                 window = milliseconds(s);
             }
+            if (maxWindow == null && ( s = env.get(ENV_QUEUE_MAX_WINDOW) ) != null) {
+                maxWindow = milliseconds(s);
+            }
             if (emptyQueueSleep == null && ( s = env.get(ENV_EMPTY_QUEUE_SLEEP) ) != null) {
                 emptyQueueSleep = milliseconds(s);
             }
+            if (scaleUpLag == null && ( s = env.get(ENV_SCALE_UP_LAG) ) != null) {
+                scaleUpLag = milliseconds(s);
+            }
+            if (sampleInterval == null && ( s = env.get(ENV_QUEUE_SAMPLE_INTERVAL) ) != null) {
+                sampleInterval = s.equals("0") ? 0 : milliseconds(s);
+            }
+            if (listen == null && ( s = env.get(ENV_QUEUE_NOTIFY) ) != null) {
+                listen = Boolean.parseBoolean(s);
+            }
             if (maxQueryTime == null && ( s = env.get(ENV_MAX_QUERY_TIME) ) != null) {
                 maxQueryTime = milliseconds(s);
             }
@@ -371,6 +794,10 @@ public interface QueueWorker {
             if (failureThrottle == null && ( s = env.get(ENV_FAILURE_THROTTLE) ) != null) {
                 failureThrottle = s;
             }
+            for (Map.Entry<String, String> e : env.entrySet()) {
+                if (e.getKey().startsWith(ENV_FAILURE_THROTTLE + "_"))
+                    envFailureThrottles.putIfAbsent(envName(e.getKey().substring(ENV_FAILURE_THROTTLE.length() + 1)), e.getValue());
+            }
             if (databaseConnectThrottle == null && ( s = env.get(ENV_DATABASE_THROTTLE) ) != null) {
                 databaseConnectThrottle = s;
             }
@@ -379,9 +806,48 @@ public interface QueueWorker {
                         .filter(queue -> !queue.isEmpty())
                         .collect(Collectors.toList());
             }
+            if (( s = env.get(ENV_RATE_LIMITS) ) != null) {
+                for (String rateLimit : s.split("[,\\s]+")) {
+                    if (rateLimit.isEmpty())
+                        continue;
+                    String[] parts = rateLimit.split("=", 2);
+                    if (parts.length != 2)
+                        throw new IllegalArgumentException("Invalid rate limit (name=rate): " + rateLimit);
+                    envRateLimits.putIfAbsent(envName(parts[0]), parts[1]);
+                }
+            }
+            if (( s = env.get(ENV_MAX_CONCURRENCY) ) != null) {
+                for (String cap : s.split("[,\\s]+")) {
+                    if (cap.isEmpty())
+                        continue;
+                    String[] parts = cap.split("=", 2);
+                    try {
+                        if (parts.length != 2 || Integer.parseInt(parts[1]) < 1)
+                            throw new IllegalArgumentException("Invalid max concurrency (name=count): " + cap);
+                        envMaxConcurrency.putIfAbsent(envName(parts[0]), Integer.parseInt(parts[1]));
+                    } catch (NumberFormatException ex) {
+                        throw new IllegalArgumentException("Invalid max concurrency (name=count): " + cap, ex);
+                    }
+                }
+            }
+            if (adaptiveConcurrency == null && ( s = env.get(ENV_ADAPTIVE_CONCURRENCY) ) != null) {
+                adaptiveConcurrency = s;
+            }
             if (deduplicateDisable == null && ( s = env.get(ENV_DEDUPLICATE_DISABLE) ) != null) {
                 deduplicateDisable = deduplicateDisableBuild(s);
             }
+            if (queueSelection == null && ( s = env.get(ENV_QUEUE_SELECTION) ) != null) {
+                queueSelection = QueueSelectionPolicy.valueOf(s.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+            }
+            if (virtualThreads == null && ( s = env.get(ENV_VIRTUAL_THREADS) ) != null) {
+                virtualThreads = Boolean.parseBoolean(s);
+            }
+            if (deduplicateHash == null && ( s = env.get(ENV_DEDUPLICATE_HASH) ) != null) {
+                deduplicateHash = Boolean.parseBoolean(s);
+            }
+            if (duplicateHint == null && ( s = env.get(ENV_DUPLICATE_HINT) ) != null) {
+                duplicateHint = Boolean.parseBoolean(s);
+            }
             return this;
         }
 
@@ -389,7 +855,7 @@ public interface QueueWorker {
          * Set the executor the processing should run in.
          * <p>
          * If none is set, a fixed thread pool with matching threads number to
-         * consumer count
+         * consumer count (plus fetchers, see {@link #dispatcher(int)})
          *
          * @param executor the executor to run in
          * @return self
@@ -399,6 +865,27 @@ public interface QueueWorker {
             return this;
         }
 
+        /**
+         * Run the workers in virtual threads (requires Java 21+)
+         * <p>
+         * Workers spend most of their time waiting for the database, so with
+         * virtual threads a large number of consumers can run, without a
+         * platform thread each. The throttles, deduplicate disable and queue
+         * health, that are shared among the workers, do not use synchronized,
+         * so they do not pin the carrier thread. A {@link JobConsumer} that
+         * synchronizes around I/O will pin it.
+         * <p>
+         * The threads are named pg-queue-{n}, for {@link QueueHealth#hungThreads()}
+         * <p>
+         * Cannot be combined with {@link #executor(java.util.concurrent.ExecutorService)}
+         *
+         * @return self
+         */
+        public Builder<T> virtualThreads() {
+            this.virtualThreads = setOrFail(this.virtualThreads, true, "virtualThreads");
+            return this;
+        }
+
         /**
          * Set the health instance the database should report in.
          *
@@ -459,6 +946,35 @@ public interface QueueWorker {
             return build(consumers);
         }
 
+        /**
+         * Construct a QueueWorker with an elastic number of workers
+         * <p>
+         * Starts with min workers. When a job is claimed, that has been due
+         * for more than {@link #scaleUpLag(long)}, a worker is added (at most
+         * one per lag period), until there's max workers. A worker that has
+         * found the queues drained for a lag period retires, and releases its
+         * connection (at most one per lag period), until there's min workers. The number of workers is exposed as the gauge
+         * workers, and scaling as the counters workerSpawned/workerRetired.
+         * <p>
+         * This cannot be combined with {@link #dispatcher(int)}
+         *
+         * @param min              number of consumers to start with
+         * @param max              max number of consumers
+         * @param consumerSupplier how to construct a consumer
+         * @return queue worker
+         */
+        public QueueWorker build(int min, int max, Supplier<JobConsumer<T>> consumerSupplier) {
+            if (min < 1 || max < min)
+                throw new IllegalArgumentException("Elastic workers should be 1 <= min <= max, got: " + min + "/" + max);
+            if (or(fetchers, 0) > 0)
+                throw new IllegalArgumentException("Elastic workers cannot be combined with a dispatcher");
+            Collection<JobConsumer<T>> consumers = new ArrayList<>();
+            for (int i = 0 ; i < min ; i++) {
+                consumers.add(consumerSupplier.get());
+            }
+            return build(consumers, consumerSupplier, max);
+        }
+
         /**
          * Construct a QueueWorker
          *
@@ -487,8 +1003,23 @@ public interface QueueWorker {
          * @return queue worker
          */
         public QueueWorker build(Collection<JobConsumer<T>> consumers) {
+            return build(consumers, null, consumers.size());
+        }
+
+        private QueueWorker build(Collection<JobConsumer<T>> consumers, Supplier<JobConsumer<T>> consumerSupplier, int maxWorkers) {
+            if (or(virtualThreads, false)) {
+                if (executor != null)
+                    throw new IllegalArgumentException("virtualThreads cannot be combined with an executor");
+                executor = virtualThreadExecutor();
+            }
+            if (or(deduplicateHash, false) && deduplicateAbstraction == null)
+                throw new IllegalArgumentException("deduplicateHash requires skipDuplicateJobs");
+            if (or(duplicateHint, false) && deduplicateAbstraction == null)
+                throw new IllegalArgumentException("duplicateHint requires skipDuplicateJobs");
+            if (or(duplicateHint, false) && !or(deduplicateHash, false))
+                throw new IllegalArgumentException("duplicateHint requires deduplicateHash");
             if (executor == null) {
-                executor = Executors.newFixedThreadPool(consumers.size());
+                executor = Executors.newFixedThreadPool(maxWorkers + or(fetchers, 0));
             }
             if (health == null) {
                 health = new QueueHealth();
@@ -499,24 +1030,109 @@ public interface QueueWorker {
             if (consumers.isEmpty()) {
                 throw new IllegalArgumentException("No consumer is supplied");
             }
-            Settings config = new Settings(required(consumerNames, "queueNames should be set"),
+            required(consumerNames, "queueNames should be set");
+            List<String> names = new ArrayList<>();
+            List<Integer> weights = new ArrayList<>();
+            for (String consumerName : consumerNames) {
+                String[] parts = consumerName.split(":", 2);
+                names.add(parts[0]);
+                weights.add(parts.length == 2 ? weight(consumerName, parts[1]) : 1);
+            }
+            for (String name : rateLimits.keySet()) {
+                if (!names.contains(name))
+                    throw new IllegalArgumentException("rateLimit for unknown queue: " + name);
+            }
+            for (String name : maxConcurrency.keySet()) {
+                if (!names.contains(name))
+                    throw new IllegalArgumentException("maxConcurrency for unknown queue: " + name);
+            }
+            for (String name : consumerFailureThrottles.keySet()) {
+                if (!names.contains(name))
+                    throw new IllegalArgumentException("failureThrottle for unknown queue: " + name);
+            }
+            HashMap<String, String> rates = new HashMap<>(rateLimits);
+            HashMap<String, Integer> caps = new HashMap<>(maxConcurrency);
+            HashMap<String, String> throttles = new HashMap<>(consumerFailureThrottles);
+            for (String name : names) {
+                String envName = envName(name);
+                if (envRateLimits.containsKey(envName))
+                    rates.putIfAbsent(name, envRateLimits.get(envName));
+                if (envMaxConcurrency.containsKey(envName))
+                    caps.putIfAbsent(name, envMaxConcurrency.get(envName));
+                if (envFailureThrottles.containsKey(envName))
+                    throttles.putIfAbsent(name, envFailureThrottles.get(envName));
+            }
+            if (log.isDebugEnabled()) {
+                List<String> envNames = names.stream().map(Builder::envName).collect(Collectors.toList());
+                envRateLimits.keySet().stream().filter(n -> !envNames.contains(n))
+                        .forEach(n -> log.debug("Ignoring {} for queue not consumed: {}", ENV_RATE_LIMITS, n));
+                envMaxConcurrency.keySet().stream().filter(n -> !envNames.contains(n))
+                        .forEach(n -> log.debug("Ignoring {} for queue not consumed: {}", ENV_MAX_CONCURRENCY, n));
+                envFailureThrottles.keySet().stream().filter(n -> !envNames.contains(n))
+                        .forEach(n -> log.debug("Ignoring {}_{} for queue not consumed", ENV_FAILURE_THROTTLE, n));
+            }
+            HashMap<String, Throttle> failureThrottles = new HashMap<>();
+            throttles.forEach((name, spec) -> failureThrottles.put(name, new Throttle(spec)));
+            boolean weighted = weights.stream().anyMatch(w -> w != 1);
+            QueueSelectionPolicy policy = or(queueSelection, weighted ? QueueSelectionPolicy.WEIGHTED : QueueSelectionPolicy.ORDERED);
+            if (weighted && ( policy == QueueSelectionPolicy.ORDERED || policy == QueueSelectionPolicy.ROUND_ROBIN )) {
+                log.warn("Queue weights are ignored with queueSelection {}", policy);
+            }
+            Settings config = new Settings(names,
+                                           QueueSelection.of(policy, names, weights),
                                            storageAbstraction,
                                            deduplicateAbstraction,
                                            includePostponedInDeduplication,
                                            deduplicateFromAllConsumers,
+                                           or(deduplicateHash, false),
+                                           or(duplicateHint, false),
                                            or(maxTries, 3),
+                                           or(batchSize, 1),
+                                           or(fetchers, 0),
+                                           or(dequeueMode, DequeueMode.DELETE),
+                                           or(leaseDuration, 300_000L),
+                                           or(errorRetention, 0L),
                                            or(emptyQueueSleep, 10_000L),
+                                           or(listen, false),
                                            or(maxQueryTime, 50L),
                                            or(rescanEvery, 100),
                                            or(idleRescanEvery, 10),
                                            new Throttle(or(databaseConnectThrottle, "")),
                                            new Throttle(or(failureThrottle, "")),
+                                           failureThrottles,
                                            executor,
                                            or(metricsAbstraction, new MetricAbstractionNull()),
                                            or(window, 100L),
+                                           or(maxWindow, window, 100L),
                                            health,
-                                           or(deduplicateDisable, new DeduplicateDisable()));
-            return new Harvester(config, dataSource, consumers);
+                                           or(deduplicateDisable, new DeduplicateDisable()),
+                                           new RateLimits(rates, or(batchSize, 1)),
+                                           adaptiveConcurrencyBuild(adaptiveConcurrency, maxWorkers),
+                                           caps,
+                                           or(scaleUpLag, 5_000L),
+                                           or(sampleInterval, 0L));
+            return new Harvester(config, dataSource, consumers, consumerSupplier, maxWorkers);
+        }
+
+        /**
+         * How a consumer name is written in environment variables
+         *
+         * @param name consumer name
+         * @return upper case name, with anything but letters and digits as _
+         */
+        private static String envName(String name) {
+            return name.toUpperCase(Locale.ROOT).replaceAll("[^0-9A-Z]", "_");
+        }
+
+        private static int weight(String consumerName, String weight) {
+            try {
+                int value = Integer.parseInt(weight);
+                if (value >= 1)
+                    return value;
+            } catch (NumberFormatException ex) {
+                // Fall through
+            }
+            throw new IllegalArgumentException("Invalid weight in: " + consumerName);
         }
 
         private static <T> T setOrFail(T field, T value, String fieldName) {
@@ -542,6 +1158,26 @@ public interface QueueWorker {
             throw new IllegalArgumentException(message);
         }
 
+        /**
+         * Make an executor, that runs every task in a new virtual thread
+         * <p>
+         * This is compiled for Java 17, so the Java 21 API is looked up by
+         * reflection
+         *
+         * @return executor service
+         */
+        static ExecutorService virtualThreadExecutor() {
+            try {
+                Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = ofVirtual.getMethod("name", String.class, long.class).invoke(builder, "pg-queue-", 0L);
+                ThreadFactory factory = (ThreadFactory) ofVirtual.getMethod("factory").invoke(builder);
+                return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+            } catch (ReflectiveOperationException ex) {
+                throw new IllegalStateException("Virtual threads requires Java 21+, running: " + System.getProperty("java.version"), ex);
+            }
+        }
+
         static long milliseconds(String spec) {
             String[] split = spec.split("(?<=\\d)(?=\\D)");
             if (split.length == 2) {
@@ -555,6 +1191,8 @@ public interface QueueWorker {
                         return TimeUnit.MINUTES.toMillis(units);
                     case "h":
                         return TimeUnit.HOURS.toMillis(units);
+                    case "d":
+                        return TimeUnit.DAYS.toMillis(units);
                     default:
                         break;
                 }
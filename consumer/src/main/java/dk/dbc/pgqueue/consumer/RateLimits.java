@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-consumer
+ *
+ * pg-queue-consumer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-consumer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.consumer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Processing rate limits per consumer name
+ * <p>
+ * Every limit is a token bucket (implemented as a generic cell rate
+ * algorithm, a single {@link AtomicLong} per consumer name, so it is lock
+ * free). Tokens are taken before jobs are dequeued, so no rows are locked
+ * while waiting for a token. The bucket holds up to burst tokens, so a full
+ * batch can be dequeued at once.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+class RateLimits {
+
+    private static final Pattern SPEC_PATTERN = Pattern.compile("([1-9]\\d*)/([1-9]\\d*)?(ms|s|m|h)");
+
+    private final Map<String, Bucket> buckets;
+
+    /**
+     * Construct rate limits
+     *
+     * @param specs map of consumer name to rate ({count}/[{n}]{ms|s|m|h})
+     * @param burst how many tokens can be taken at once
+     */
+    RateLimits(Map<String, String> specs, int burst) {
+        HashMap<String, Bucket> map = new HashMap<>();
+        specs.forEach((consumer, spec) -> map.put(consumer, makeBucket(spec, burst)));
+        this.buckets = map;
+    }
+
+    /**
+     * Take up to max tokens
+     *
+     * @param consumer name of the consumer
+     * @param max      how many tokens are wanted
+     * @return how many tokens were taken (max if unlimited)
+     */
+    int acquire(String consumer, int max) {
+        Bucket bucket = buckets.get(consumer);
+        if (bucket == null)
+            return max;
+        return bucket.acquire(nanoTime(), max);
+    }
+
+    /**
+     * Return tokens, that weren't used (no jobs were dequeued)
+     *
+     * @param consumer name of the consumer
+     * @param count    number of tokens
+     */
+    void release(String consumer, int count) {
+        Bucket bucket = buckets.get(consumer);
+        if (bucket != null && count > 0)
+            bucket.release(count);
+    }
+
+    /**
+     * How long until a token can be taken
+     *
+     * @param consumer name of the consumer
+     * @return number of nanoseconds (0 if it can be taken now)
+     */
+    long nanosUntilAvailable(String consumer) {
+        Bucket bucket = buckets.get(consumer);
+        if (bucket == null)
+            return 0;
+        return bucket.nanosUntilAvailable(nanoTime());
+    }
+
+    long nanoTime() {
+        return System.nanoTime();
+    }
+
+    private static Bucket makeBucket(String spec, int burst) {
+        Matcher matcher = SPEC_PATTERN.matcher(spec.trim());
+        if (!matcher.matches())
+            throw new IllegalArgumentException("Invalid rate limit: " + spec);
+        long count = Long.parseUnsignedLong(matcher.group(1));
+        long periods = matcher.group(2) == null ? 1 : Long.parseUnsignedLong(matcher.group(2));
+        long period;
+        switch (matcher.group(3)) {
+            case "ms":
+                period = TimeUnit.MILLISECONDS.toNanos(periods);
+                break;
+            case "s":
+                period = TimeUnit.SECONDS.toNanos(periods);
+                break;
+            case "m":
+                period = TimeUnit.MINUTES.toNanos(periods);
+                break;
+            case "h":
+                period = TimeUnit.HOURS.toNanos(periods);
+                break;
+            default:
+                throw new IllegalStateException("INTERNAL LOGIC ERROR");
+        }
+        long interval = Math.max(1, period / count);
+        return new Bucket(interval, interval * ( Math.max(1, burst) - 1 ));
+    }
+
+    private static class Bucket {
+
+        private final long interval;
+        private final long tolerance;
+        private final AtomicLong theoreticalArrival;
+
+        private Bucket(long interval, long tolerance) {
+            this.interval = interval;
+            this.tolerance = tolerance;
+            this.theoreticalArrival = new AtomicLong(Long.MIN_VALUE);
+        }
+
+        private int acquire(long now, int max) {
+            for (;;) {
+                long current = theoreticalArrival.get();
+                long arrival = current == Long.MIN_VALUE || current - now < 0 ? now : current;
+                long allowedAt = arrival - tolerance;
+                if (now - allowedAt < 0)
+                    return 0;
+                int count = (int) Math.min(max, 1 + ( now - allowedAt ) / interval);
+                if (theoreticalArrival.compareAndSet(current, arrival + count * interval))
+                    return count;
+            }
+        }
+
+        private void release(int count) {
+            theoreticalArrival.addAndGet(-count * interval);
+        }
+
+        private long nanosUntilAvailable(long now) {
+            long current = theoreticalArrival.get();
+            if (current == Long.MIN_VALUE)
+                return 0;
+            return Math.max(0, current - tolerance - now);
+        }
+    }
+}
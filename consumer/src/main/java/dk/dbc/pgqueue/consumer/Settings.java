@@ -21,6 +21,7 @@ package dk.dbc.pgqueue.consumer;
 import dk.dbc.pgqueue.common.QueueStorageAbstraction;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import dk.dbc.pgqueue.common.DeduplicateAbstraction;
 
@@ -34,40 +35,72 @@ import dk.dbc.pgqueue.common.DeduplicateAbstraction;
 class Settings<T> {
 
     final List<String> consumerNames;
+    final QueueSelection queueSelection;
     final QueueStorageAbstraction<T> storageAbstraction;
     final DeduplicateAbstraction<T> deduplicateAbstraction;
     final boolean includePostponedInDeduplication;
     final boolean deduplicateFromAllConsumers;
+    final boolean deduplicateHash;
+    final boolean duplicateHint;
     final int maxTries;
+    final int batchSize;
+    final int fetchers;
+    final DequeueMode dequeueMode;
+    final long leaseDuration;
+    final long errorRetention;
     final long window;
+    final long maxWindow;
     final long emptyQueueSleep;
+    final boolean listen;
     final long maxQueryTime;
     final int fullScanEvery;
     final int idleFullScanEvery;
     final Throttle databaseConnectThrottle;
     final Throttle failureThrottle;
+    final Map<String, Throttle> consumerFailureThrottles;
     final ExecutorService executor;
     final MetricAbstraction metricAbstraction;
     final QueueHealth health;
     final DeduplicateDisable deduplicateDisable;
+    final RateLimits rateLimits;
+    final ConcurrencyLimit concurrencyLimit;
+    final Map<String, Integer> maxConcurrency;
+    final long scaleUpLag;
+    final long sampleInterval;
 
-    Settings(List<String> consumerNames, QueueStorageAbstraction<T> storageAbstraction, DeduplicateAbstraction<T> deduplicateAbstraction, boolean includePostponedInDeduplication, boolean deduplicateFromAllConsumers, int maxTries, long emptyQueueSleep, long maxQueryTime, int fullScanEvery, int idleFullScanEvery, Throttle databaseConnectThrottle, Throttle failureThrottle, ExecutorService executor, MetricAbstraction metricRegistry, long window, QueueHealth health, DeduplicateDisable deduplicateDisable) {
+    Settings(List<String> consumerNames, QueueSelection queueSelection, QueueStorageAbstraction<T> storageAbstraction, DeduplicateAbstraction<T> deduplicateAbstraction, boolean includePostponedInDeduplication, boolean deduplicateFromAllConsumers, boolean deduplicateHash, boolean duplicateHint, int maxTries, int batchSize, int fetchers, DequeueMode dequeueMode, long leaseDuration, long errorRetention, long emptyQueueSleep, boolean listen, long maxQueryTime, int fullScanEvery, int idleFullScanEvery, Throttle databaseConnectThrottle, Throttle failureThrottle, Map<String, Throttle> consumerFailureThrottles, ExecutorService executor, MetricAbstraction metricRegistry, long window, long maxWindow, QueueHealth health, DeduplicateDisable deduplicateDisable, RateLimits rateLimits, ConcurrencyLimit concurrencyLimit, Map<String, Integer> maxConcurrency, long scaleUpLag, long sampleInterval) {
         this.maxTries = maxTries;
+        this.batchSize = batchSize;
+        this.fetchers = fetchers;
+        this.dequeueMode = dequeueMode;
+        this.leaseDuration = leaseDuration;
+        this.errorRetention = errorRetention;
         this.window = window;
+        this.maxWindow = maxWindow;
         this.emptyQueueSleep = emptyQueueSleep;
+        this.listen = listen;
         this.maxQueryTime = maxQueryTime;
         this.consumerNames = Collections.unmodifiableList(consumerNames);
+        this.queueSelection = queueSelection;
         this.storageAbstraction = storageAbstraction;
         this.deduplicateAbstraction = deduplicateAbstraction;
         this.includePostponedInDeduplication = includePostponedInDeduplication;
         this.deduplicateFromAllConsumers = deduplicateFromAllConsumers;
+        this.deduplicateHash = deduplicateHash;
+        this.duplicateHint = duplicateHint;
         this.databaseConnectThrottle = databaseConnectThrottle;
         this.failureThrottle = failureThrottle;
+        this.consumerFailureThrottles = Collections.unmodifiableMap(consumerFailureThrottles);
         this.fullScanEvery = fullScanEvery;
         this.executor = executor;
         this.metricAbstraction = metricRegistry;
         this.idleFullScanEvery = idleFullScanEvery;
         this.health = health;
         this.deduplicateDisable = deduplicateDisable;
+        this.rateLimits = rateLimits;
+        this.concurrencyLimit = concurrencyLimit;
+        this.maxConcurrency = Collections.unmodifiableMap(maxConcurrency);
+        this.scaleUpLag = scaleUpLag;
+        this.sampleInterval = sampleInterval;
     }
 }
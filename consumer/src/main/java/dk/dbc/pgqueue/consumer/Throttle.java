@@ -20,6 +20,8 @@ package dk.dbc.pgqueue.consumer;
 
 import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.slf4j.Logger;
@@ -30,6 +32,9 @@ import org.slf4j.LoggerFactory;
  * <p>
  * Register an error, and the rules determine for how long you're supposed to
  * sleep, before doing anything
+ * <p>
+ * Uses a {@link ReentrantLock} rather than synchronized/wait, so a virtual
+ * thread sleeping in the throttle doesn't pin its carrier thread
  *
  * @author DBC {@literal <dbc.dk>}
  */
@@ -39,6 +44,8 @@ class Throttle {
 
     private static final Pattern RULE_PATTERN = Pattern.compile("([1-9]\\d*)/([1-9]\\d*)?(ms|s|m|h)(!?)");
     private final ArrayList<Rule> rules;
+    private final ReentrantLock lock;
+    private final Condition succeeded;
 
     /**
      *
@@ -47,6 +54,8 @@ class Throttle {
      */
     Throttle(String ruleSet) {
         this.rules = makeRules(ruleSet);
+        this.lock = new ReentrantLock();
+        this.succeeded = lock.newCondition();
     }
 
     /**
@@ -109,17 +118,44 @@ class Throttle {
      * <p>
      * This function returns when it is valid to run
      */
-    synchronized void throttle() {
-        for (;;) {
-            long sleepFor = 0;
+    void throttle() {
+        lock.lock();
+        try {
+            for (;;) {
+                long sleepFor = 0;
+                long now = timeIs();
+                for (Rule rule : rules) {
+                    sleepFor = Long.max(sleepFor, rule.delay(now));
+                }
+                sleep(sleepFor);
+                if (sleepFor == 0) {
+                    break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * How long until it is valid to run, without waiting
+     * <p>
+     * For callers that have something else to do, rather than sleeping in
+     * {@link #throttle()}
+     *
+     * @return number of milliseconds (0 if it is valid to run now)
+     */
+    long delay() {
+        lock.lock();
+        try {
+            long delay = 0;
             long now = timeIs();
             for (Rule rule : rules) {
-                sleepFor = Long.max(sleepFor, rule.delay(now));
-            }
-            sleep(sleepFor);
-            if (sleepFor == 0) {
-                break;
+                delay = Long.max(delay, rule.delay(now));
             }
+            return delay;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -128,17 +164,22 @@ class Throttle {
      *
      * @param success if this was a success
      */
-    synchronized void register(boolean success) {
-        long now = timeIs();
-        if (success) {
-            for (Rule rule : rules) {
-                rule.reset();
-            }
-            notifyAll();
-        } else {
-            for (Rule rule : rules) {
-                rule.register(now);
+    void register(boolean success) {
+        lock.lock();
+        try {
+            long now = timeIs();
+            if (success) {
+                for (Rule rule : rules) {
+                    rule.reset();
+                }
+                succeeded.signalAll();
+            } else {
+                for (Rule rule : rules) {
+                    rule.register(now);
+                }
             }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -154,7 +195,7 @@ class Throttle {
     /**
      * Actual sleep function
      * <p>
-     * this is called in synchronized context, for immediate continuation if:
+     * this is called while holding the lock, for immediate continuation if:
      * <pre>
      * - resetOnSucces is set
      * - a success is comming from another thread
@@ -165,7 +206,7 @@ class Throttle {
             return;
         }
         try {
-            wait(delay);
+            succeeded.await(delay, TimeUnit.MILLISECONDS);
         } catch (InterruptedException ex) {
             log.info("Throttle sleep interrupted");
         }
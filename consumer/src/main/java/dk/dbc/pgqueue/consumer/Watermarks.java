@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-consumer
+ *
+ * pg-queue-consumer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-consumer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.consumer;
+
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Dequeue watermarks (how old jobs to look for) per consumer name, shared by
+ * all workers in a {@link Harvester}
+ * <p>
+ * Any worker dequeuing moves the watermark forward. A rescan (every n fetches
+ * across all workers, or when idle) invalidates all watermarks, by bumping a
+ * generation number. A stale watermark is refreshed from the database by one
+ * worker, while the others keep using the stale value.
+ * <p>
+ * Everything is lock free
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+class Watermarks {
+
+    /**
+     * Notification of a watermark being refreshed by a rescan
+     */
+    @FunctionalInterface
+    interface RescanObserver {
+
+        /**
+         * A stale watermark has been refreshed
+         *
+         * @param queue  consumer name
+         * @param before the stale watermark
+         * @param after  the refreshed watermark
+         */
+        void rescanned(String queue, Timestamp before, Timestamp after);
+    }
+
+    private static class Entry {
+
+        private final Timestamp timestamp;
+        private final long generation;
+
+        private Entry(Timestamp timestamp, long generation) {
+            this.timestamp = timestamp;
+            this.generation = generation;
+        }
+    }
+
+    private static class Mark {
+
+        private final AtomicReference<Entry> entry = new AtomicReference<>();
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+    }
+
+    private final Map<String, Mark> marks;
+    private final AtomicLong generation;
+    private final AtomicInteger countdown;
+    private final MetricAbstraction.Counter hitCounter;
+    private final MetricAbstraction.Counter missCounter;
+    private final RescanObserver observer;
+
+    Watermarks(List<String> consumerNames, int fullScanEvery, MetricAbstraction.Counter hitCounter, MetricAbstraction.Counter missCounter, RescanObserver observer) {
+        HashMap<String, Mark> map = new HashMap<>();
+        consumerNames.forEach(name -> map.put(name, new Mark()));
+        this.marks = map; // Never modified after construction
+        this.generation = new AtomicLong();
+        this.countdown = new AtomicInteger(fullScanEvery);
+        this.hitCounter = hitCounter;
+        this.missCounter = missCounter;
+        this.observer = observer;
+    }
+
+    /**
+     * Current generation, compare with a later value to see if a rescan has
+     * happened
+     *
+     * @return generation number
+     */
+    long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Count down to next rescan
+     *
+     * @param every number of ticks between rescans from now on
+     * @return if this call started a rescan
+     */
+    boolean tick(int every) {
+        for (;;) {
+            int current = countdown.get();
+            if (current > 1) {
+                if (countdown.compareAndSet(current, current - 1))
+                    return false;
+            } else if (countdown.compareAndSet(current, every)) {
+                generation.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Start a rescan, unless one has happened since the generation was seen
+     *
+     * @param seen generation number when the caller started looking
+     * @return if this call started a rescan
+     */
+    boolean invalidate(long seen) {
+        return generation.compareAndSet(seen, seen + 1);
+    }
+
+    /**
+     * Get the watermark for a queue
+     *
+     * @param queue  consumer name
+     * @param loader how to compute the watermark from the database
+     * @return timestamp
+     */
+    Timestamp get(String queue, Function<String, Timestamp> loader) {
+        Mark mark = mark(queue);
+        long current = generation.get();
+        Entry entry = mark.entry.get();
+        if (entry != null && entry.generation == current) {
+            hitCounter.inc();
+            return entry.timestamp;
+        }
+        if (!mark.refreshing.compareAndSet(false, true)) {
+            // Someone else is refreshing it
+            if (entry != null) {
+                hitCounter.inc();
+                return entry.timestamp;
+            }
+            missCounter.inc();
+            return loader.apply(queue);
+        }
+        try {
+            missCounter.inc();
+            Timestamp timestamp = loader.apply(queue);
+            mark.entry.set(new Entry(timestamp, current));
+            if (entry != null)
+                observer.rescanned(queue, entry.timestamp, timestamp);
+            return timestamp;
+        } finally {
+            mark.refreshing.set(false);
+        }
+    }
+
+    /**
+     * Move the watermark forward, after a dequeue
+     *
+     * @param queue     consumer name
+     * @param timestamp dequeueAfter of the latest dequeued job
+     */
+    void advance(String queue, Timestamp timestamp) {
+        mark(queue).entry.updateAndGet(entry -> {
+            if (entry == null)
+                return new Entry(timestamp, generation.get());
+            if (entry.timestamp.before(timestamp))
+                return new Entry(timestamp, entry.generation);
+            return entry;
+        });
+    }
+
+    private Mark mark(String queue) {
+        Mark mark = marks.get(queue);
+        if (mark == null)
+            throw new IllegalArgumentException("Unknown consumer name: " + queue);
+        return mark;
+    }
+}
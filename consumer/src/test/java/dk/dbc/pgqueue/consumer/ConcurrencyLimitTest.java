@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-consumer
+ *
+ * pg-queue-consumer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-consumer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.consumer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class ConcurrencyLimitTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testAimd() throws Exception {
+        System.out.println("testAimd");
+
+        AtomicLong clock = new AtomicLong(1_000_000_000L);
+        ConcurrencyLimit obj = new ConcurrencyLimit(100, 1, 4) {
+            @Override
+            long nanoTime() {
+                return clock.get();
+            }
+        };
+
+        for (int i = 0 ; i < 4 ; i++) {
+            assertThat(obj.acquire(), is(true));
+        }
+        assertThat(obj.acquire(), is(false));
+
+        // Two slow jobs, started at the same time, only backs off once
+        long start = clock.addAndGet(MS);
+        clock.addAndGet(200 * MS);
+        obj.sample(start, true);
+        obj.release();
+        assertThat(obj.limit(), is(3));
+        obj.sample(start, true);
+        obj.release();
+        assertThat(obj.limit(), is(3));
+
+        // Failures back off
+        fail(obj, clock);
+        fail(obj, clock);
+        assertThat(obj.limit(), is(2));
+
+        // Fast jobs grow the limit, while it is fully used (2 in flight)
+        int samples = 0;
+        while (obj.limit() == 2) {
+            obj.sample(clock.addAndGet(MS), true);
+            samples++;
+        }
+        assertThat(samples, is(1)); // The limit is 2.916, a sample adds 1/2.916
+        for (int i = 0 ; i < 100 ; i++) {
+            obj.sample(clock.addAndGet(MS), true);
+        }
+        assertThat(obj.limit(), is(3));
+        assertThat(obj.acquire(), is(true));
+
+        // Never below min
+        for (int i = 0 ; i < 100 ; i++) {
+            fail(obj, clock);
+        }
+        assertThat(obj.limit(), is(1));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testUnlimited() throws Exception {
+        System.out.println("testUnlimited");
+
+        ConcurrencyLimit obj = new ConcurrencyLimit();
+        for (int i = 0 ; i < 1000 ; i++) {
+            assertThat(obj.acquire(), is(true));
+            obj.sample(0, false);
+        }
+    }
+
+    private static void fail(ConcurrencyLimit obj, AtomicLong clock) {
+        long start = clock.addAndGet(MS);
+        clock.addAndGet(MS);
+        obj.sample(start, false);
+    }
+}
@@ -18,9 +18,8 @@
  */
 package dk.dbc.pgqueue.consumer;
 
-import java.util.Arrays;
-import java.util.Iterator;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Timeout;
 
@@ -38,44 +37,83 @@ public class DeduplicateDisableTest {
     public void testTimeout() throws Exception {
         System.out.println("testTimeout");
 
-        Iterator<Long> i = Arrays.asList(
-                // CLOCK: // test action
-                1000000L, // can
-
-                1000001L, // create context
-                1000201L, // close context (disable to 1201)
-                1001200L, // can't
-                1001201L, // can't
-                1001202L, // can
-
-                1001500L, // create context
-                1001501L, // close context (no disable)
-                1001502L, // can
-
-                Long.MAX_VALUE
-        ).iterator();
-        DeduplicateDisable obj = new DeduplicateDisable(100, 1000) {
+        AtomicLong clock = new AtomicLong(1_000_000L);
+        DeduplicateDisable obj = new DeduplicateDisable(100, 1000, 4) {
             @Override
             long time() {
-                return i.next();
+                return clock.get();
             }
         };
 
         assertThat(obj.canDeduplicate(), is(true));
 
-        try (DeduplicateDisable.Context context = obj.context()) {
-            // Hit timeout
+        // A single outlier doesn't disable
+        call(obj, clock, 500);
+        for (int i = 1 ; i < DeduplicateDisable.MIN_SAMPLES ; i++) {
+            call(obj, clock, 10);
         }
+        assertThat(obj.state(), is(DeduplicateDisable.ENABLED));
+        assertThat(obj.canDeduplicate(), is(true));
+
+        // Another slow call moves the 95th percentile (of 21 calls)
+        call(obj, clock, 200);
+        assertThat(obj.state(), is(DeduplicateDisable.DISABLED));
+        assertThat(obj.canDeduplicate(), is(false));
+        clock.addAndGet(1000);
+        assertThat(obj.canDeduplicate(), is(false));
+
+        // Probing 1 in 4
+        clock.addAndGet(1);
+        assertThat(obj.canDeduplicate(), is(true));
+        assertThat(obj.state(), is(DeduplicateDisable.PROBING));
+        assertThat(obj.canDeduplicate(), is(false));
         assertThat(obj.canDeduplicate(), is(false));
         assertThat(obj.canDeduplicate(), is(false));
         assertThat(obj.canDeduplicate(), is(true));
 
-        try (DeduplicateDisable.Context context = obj.context()) {
-            // Not hit timeout
+        // Slow probes disable again
+        for (int i = 0 ; i < DeduplicateDisable.MIN_SAMPLES ; i++) {
+            call(obj, clock, 150);
         }
+        assertThat(obj.state(), is(DeduplicateDisable.DISABLED));
+
+        // Probes just below the limit doesn't enable (hysteresis)
+        clock.addAndGet(1001);
+        obj.canDeduplicate();
+        for (int i = 0 ; i < DeduplicateDisable.MIN_SAMPLES ; i++) {
+            call(obj, clock, 90);
+        }
+        assertThat(obj.state(), is(DeduplicateDisable.PROBING));
+
+        // Fast probes enable
+        for (int i = 0 ; i < DeduplicateDisable.WINDOW ; i++) {
+            call(obj, clock, 10);
+        }
+        assertThat(obj.state(), is(DeduplicateDisable.ENABLED));
         assertThat(obj.canDeduplicate(), is(true));
+    }
 
-        assertThat(i.next(), is(Long.MAX_VALUE));
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testNeverDisable() throws Exception {
+        System.out.println("testNeverDisable");
+
+        AtomicLong clock = new AtomicLong(1_000_000L);
+        DeduplicateDisable obj = new DeduplicateDisable() {
+            @Override
+            long time() {
+                return clock.get();
+            }
+        };
+        for (int i = 0 ; i < DeduplicateDisable.WINDOW ; i++) {
+            call(obj, clock, 60_000);
+        }
+        assertThat(obj.canDeduplicate(), is(true));
     }
 
+    private static void call(DeduplicateDisable obj, AtomicLong clock, long duration) {
+        try (DeduplicateDisable.Context context = obj.context()) {
+            clock.addAndGet(duration);
+        }
+    }
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-consumer
+ *
+ * pg-queue-consumer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-consumer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.consumer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class DequeueWindowsTest {
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testAdaptive() throws Exception {
+        System.out.println("testAdaptive");
+        HashMap<String, Long> gauges = new HashMap<>();
+        DequeueWindows windows = new DequeueWindows(Arrays.asList("a", "b"), 100, 1000, metrics(gauges));
+        assertThat(windows.get("a"), is(100L));
+        assertThat(gauges.get("window.a"), is(100L));
+
+        windows.rescanned("a", 150); // Jobs behind the window
+        assertThat(windows.get("a"), is(200L));
+        windows.rescanned("a", 700); // Far behind
+        assertThat(windows.get("a"), is(700L));
+        windows.rescanned("a", 5000); // Capped
+        assertThat(windows.get("a"), is(1000L));
+        assertThat(gauges.get("window.a"), is(1000L));
+        assertThat(windows.get("b"), is(100L));
+
+        windows.rescanned("a", 10); // Nothing behind
+        assertThat(windows.get("a"), is(775L));
+        windows.slow("a");
+        assertThat(windows.get("a"), is(387L));
+        windows.slow("a");
+        windows.slow("a");
+        assertThat(windows.get("a"), is(100L)); // Not below min
+        assertThat(gauges.get("window.a"), is(100L));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testFixed() throws Exception {
+        System.out.println("testFixed");
+        HashMap<String, Long> gauges = new HashMap<>();
+        DequeueWindows windows = new DequeueWindows(Arrays.asList("a"), 100, 100, metrics(gauges));
+        windows.rescanned("a", 5000);
+        assertThat(windows.get("a"), is(100L));
+        windows.slow("a");
+        assertThat(windows.get("a"), is(100L));
+    }
+
+    private static MetricAbstraction metrics(HashMap<String, Long> gauges) {
+        return new MetricAbstractionNull() {
+            @Override
+            public MetricAbstraction.Gauge gauge(Class clazz, String name) {
+                return value -> gauges.put(name, value);
+            }
+        };
+    }
+}
@@ -21,11 +21,17 @@ package dk.dbc.pgqueue.consumer;
 import dk.dbc.commons.testcontainers.postgres.DBCPostgreSQLContainer;
 import dk.dbc.pgqueue.common.DatabaseMigrator;
 import dk.dbc.pgqueue.common.DeduplicateAbstraction;
+import dk.dbc.pgqueue.common.DeduplicateHash;
 import dk.dbc.pgqueue.common.QueueStorageAbstraction;
+import io.prometheus.metrics.model.registry.PrometheusRegistry;
+import io.prometheus.metrics.model.snapshots.CounterSnapshot;
+import io.prometheus.metrics.model.snapshots.GaugeSnapshot;
 import org.hamcrest.Matchers;
 
 import javax.sql.DataSource;
 import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -33,9 +39,13 @@ import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -43,6 +53,8 @@ import org.junit.jupiter.api.Timeout;
 
 import static org.hamcrest.Matchers.*;
 import static org.hamcrest.MatcherAssert.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 /**
  *
@@ -101,6 +113,77 @@ public class HarvesterIT {
         assertThat(jobs, contains("0,1,2,3,4,5,6,7,8,9,a,b,c,d,e,f,g,h,i,j".split(",")));
     }
 
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testMultipleQueuesRoundRobin() throws Exception {
+        System.out.println("testMultipleQueuesRoundRobin");
+        ArrayList<String> jobs = new ArrayList<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            synchronized (jobs) {
+                jobs.add(job);
+                jobs.notifyAll();
+            }
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(200)
+                .maxTries(2)
+                .consume("foo:2", "bar")
+                .queueSelection(QueueSelectionPolicy.ROUND_ROBIN)
+                .build(consumer);
+
+        queue("foo", "0", "1", "2", "3", "4", "5", "6", "7");
+        queue("bar", "a", "b", "c");
+        queueWorker.start();
+        synchronized (jobs) {
+            while (jobs.size() != 11) {
+                jobs.wait();
+                System.out.println("jobs = " + jobs);
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(250, TimeUnit.MILLISECONDS);
+
+        assertThat(jobs, contains("0,a,1,b,2,c,3,4,5,6,7".split(",")));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testMultipleQueuesWeighted() throws Exception {
+        System.out.println("testMultipleQueuesWeighted");
+        ArrayList<String> jobs = new ArrayList<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            synchronized (jobs) {
+                jobs.add(job);
+                jobs.notifyAll();
+            }
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(200)
+                .maxTries(2)
+                .consume("foo:2", "bar")
+                .build(consumer);
+
+        queue("foo", "0", "1", "2", "3", "4", "5", "6", "7");
+        queue("bar", "a", "b", "c");
+        queueWorker.start();
+        synchronized (jobs) {
+            while (jobs.size() != 11) {
+                jobs.wait();
+                System.out.println("jobs = " + jobs);
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(250, TimeUnit.MILLISECONDS);
+
+        assertThat(jobs, contains("0,a,1,2,b,3,4,c,5,6,7".split(",")));
+    }
+
     @Test
     @Timeout(value = 10, unit = TimeUnit.SECONDS)
     public void testFailPostpone() throws Exception {
@@ -112,110 +195,1297 @@ public class HarvesterIT {
             synchronized (jobs) {
                 jobs.add(job);
                 jobs.notifyAll();
-                if (jobs.size() == 2) {
-                    System.out.println("ERROR on: " + job);
-                    throw new PostponedNonFatalQueueError("Error #1", 100);
-                }
+                if (jobs.size() == 2) {
+                    System.out.println("ERROR on: " + job);
+                    throw new PostponedNonFatalQueueError("Error #1", 100);
+                }
+            }
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(200)
+                .maxTries(2)
+                .consume("foo", "bar")
+                .build(consumer);
+
+        queue("foo", "0", "1", "2", "3", "4");
+        queueWorker.start();
+        synchronized (jobs) {
+            while (jobs.size() != 6) {
+                jobs.wait();
+                System.out.println("jobs = " + jobs);
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(250, TimeUnit.MILLISECONDS);
+
+        assertThat(jobs, contains("0,1,2,3,4,1".split(",")));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testMultiFail() throws Exception {
+        System.out.println("testMultiFail");
+        ArrayList<String> jobs = new ArrayList<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            synchronized (jobs) {
+                jobs.add(job);
+                jobs.notifyAll();
+                if (job.equals("0")) {
+                    System.out.println("ERROR on: " + job);
+                    throw new NonFatalQueueError("Error #1");
+                }
+            }
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(200)
+                .maxTries(2)
+                .consume("foo", "bar")
+                .build(consumer);
+
+        queue("foo", "0", "1");
+        queueWorker.start();
+        synchronized (jobs) {
+            while (jobs.size() != 3) {
+                jobs.wait();
+                System.out.println("jobs = " + jobs);
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(250, TimeUnit.MILLISECONDS);
+
+        System.out.println("failedJobs = " + failedJobs());
+        assertThat(jobs, contains("0,0,1".split(",")));
+        assertThat(failedJobs(), contains("0".split(",")));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testFatal() throws Exception {
+        System.out.println("testFatal");
+        ArrayList<String> jobs = new ArrayList<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            synchronized (jobs) {
+                jobs.add(job);
+                jobs.notifyAll();
+                if (job.equals("0")) {
+                    System.out.println("ERROR on: " + job);
+                    throw new FatalQueueError("Error #1");
+                }
+            }
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(200)
+                .maxTries(2)
+                .consume("foo", "bar")
+                .build(consumer);
+
+        queue("foo", "0", "1");
+        queueWorker.start();
+        synchronized (jobs) {
+            while (jobs.size() != 2) {
+                jobs.wait();
+                System.out.println("jobs = " + jobs);
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(250, TimeUnit.MILLISECONDS);
+
+        assertThat(jobs, contains("0,1".split(",")));
+        assertThat(failedJobs(), contains("0".split(",")));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testBatch() throws Exception {
+        System.out.println("testBatch");
+        ArrayList<String> jobs = new ArrayList<>();
+        ArrayList<Long> transactions = new ArrayList<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            synchronized (jobs) {
+                jobs.add(job);
+                transactions.add(transactionId(c));
+                jobs.notifyAll();
+                if (job.equals("3") && metaData.getTries() == 1) {
+                    System.out.println("ERROR on: " + job);
+                    throw new NonFatalQueueError("Error #1");
+                }
+                if (job.equals("6")) {
+                    System.out.println("ERROR on: " + job);
+                    throw new FatalQueueError("Error #2");
+                }
+            }
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(200)
+                .maxTries(2)
+                .batchSize(4)
+                .consume("foo", "bar")
+                .build(consumer);
+
+        queue("foo", "0", "1", "2", "3", "4", "5", "6", "7", "8", "9");
+        queueWorker.start();
+        synchronized (jobs) {
+            while (jobs.size() != 11) {
+                jobs.wait();
+                System.out.println("jobs = " + jobs);
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(250, TimeUnit.MILLISECONDS);
+
+        System.out.println("transactions = " + transactions);
+        assertThat(jobs, contains("0,1,2,3,3,4,5,6,7,8,9".split(",")));
+        assertThat(transactions.subList(0, 4), everyItem(is(transactions.get(0))));
+        assertThat(transactions.get(4), not(transactions.get(0)));
+        assertThat(failedJobs(), contains("6".split(",")));
+        assertThat(queueRemainingJobs("foo"), empty());
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testDispatcher() throws Exception {
+        System.out.println("testDispatcher");
+        ArrayList<String> jobs = new ArrayList<>();
+        HashSet<String> threads = new HashSet<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+            synchronized (jobs) {
+                jobs.add(job);
+                threads.add(Thread.currentThread().getName());
+                jobs.notifyAll();
+                if (job.equals("3"))
+                    throw new NonFatalQueueError("Error #1");
+            }
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(200)
+                .maxTries(2)
+                .batchSize(2)
+                .dispatcher(1)
+                .consume("foo")
+                .build(3, consumer);
+
+        queue("foo", "0", "1", "2", "3", "4", "5", "6", "7", "8", "9");
+        queueWorker.start();
+        synchronized (jobs) {
+            while (jobs.size() != 11) { // job 3 is tried twice, then fails
+                jobs.wait();
+                System.out.println("jobs = " + jobs);
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(1, TimeUnit.SECONDS);
+
+        assertThat(jobs, containsInAnyOrder("0,1,2,3,3,4,5,6,7,8,9".split(",")));
+        assertThat(threads.size(), greaterThan(1));
+        assertThat(queueRemainingJobs("foo"), empty());
+        assertThat(failedJobs(), contains("3"));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testWindowSlowConsumer() throws Exception {
+        System.out.println("testWindowSlowConsumer");
+        ArrayList<String> jobs = new ArrayList<>();
+        AtomicLong maxWindow = new AtomicLong();
+        PrometheusRegistry registry = new PrometheusRegistry();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            if (job.equals("slow")) {
+                try {
+                    Thread.sleep(2_000);
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+            } else {
+                maxWindow.accumulateAndGet(gauge(registry, "window.foo"), Long::max);
+            }
+            synchronized (jobs) {
+                jobs.add(job);
+                jobs.notifyAll();
+            }
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(10)
+                .rescanEvery(1)
+                .window(100)
+                .maxWindow(10_000)
+                .consume("foo")
+                .metricRegistryIoPrometheus(registry)
+                .build(2, consumer);
+
+        queue("foo", "slow");
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement()) {
+            // Becoming ready one at a time, while the slow job is processed
+            stmt.executeUpdate("INSERT INTO queue(consumer, job, dequeueAfter)" +
+                               " SELECT 'foo', i::TEXT, clock_timestamp() + i * INTERVAL '50 milliseconds' FROM generate_series(1, 30) AS i");
+        }
+        queueWorker.start();
+        synchronized (jobs) {
+            while (jobs.size() != 31) {
+                jobs.wait();
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(1, TimeUnit.SECONDS);
+
+        // Without skipping jobs in flight, the slow job would be 1.5s behind the watermark
+        System.out.println("maxWindow = " + maxWindow);
+        assertThat(maxWindow.get(), lessThan(1_000L));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testRescanKeepsNoLock() throws Exception {
+        System.out.println("testRescanKeepsNoLock");
+        ArrayList<String> jobs = new ArrayList<>();
+        ArrayList<Integer> available = new ArrayList<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            // What another worker can take, while this job is in flight
+            try (Connection connection = PG.createConnection() ;
+                 Statement stmt = connection.createStatement()) {
+                connection.setAutoCommit(false);
+                try (ResultSet resultSet = stmt.executeQuery("SELECT count(*) FROM (SELECT job FROM queue WHERE consumer='foo'" +
+                                                             " AND dequeueAfter<=clock_timestamp() FOR UPDATE SKIP LOCKED) AS ready")) {
+                    resultSet.next();
+                    synchronized (jobs) {
+                        available.add(resultSet.getInt(1));
+                    }
+                }
+                connection.rollback();
+            } catch (SQLException ex) {
+                throw new RuntimeException(ex);
+            }
+            synchronized (jobs) {
+                jobs.add(job);
+                jobs.notifyAll();
+            }
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(10)
+                .rescanEvery(1) // Every dequeue is after a rescan read
+                .maxTries(1)
+                .consume("foo")
+                .build(1, consumer);
+
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement()) {
+            // Same dequeueAfter
+            stmt.executeUpdate("INSERT INTO queue(consumer, job) SELECT 'foo', i::TEXT FROM generate_series(1, 5) AS i");
+        }
+        queueWorker.start();
+        synchronized (jobs) {
+            while (jobs.size() != 5) {
+                jobs.wait();
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(1, TimeUnit.SECONDS);
+
+        // Only the job in flight is locked, never one behind it
+        assertThat(available, contains(4, 3, 2, 1, 0));
+        assertThat(failedJobs(), empty());
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testLease() throws Exception {
+        System.out.println("testLease");
+        ArrayList<String> jobs = new ArrayList<>();
+        ArrayList<String> keys = new ArrayList<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            try (Connection connection = PG.createConnection() ;
+                 PreparedStatement stmt = connection.prepareStatement("SELECT pk, leaseOwner, backend_xmin FROM queue, pg_stat_activity WHERE job = ? AND pid = ?")) {
+                stmt.setString(1, job);
+                stmt.setInt(2, c.unwrap(org.postgresql.PGConnection.class).getBackendPID());
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    assertThat(resultSet.next(), is(true)); // The lease is committed
+                    assertThat(resultSet.getString(2), notNullValue());
+                    assertThat(resultSet.getString(3), nullValue()); // Not holding back vacuum
+                    synchronized (jobs) {
+                        keys.add(resultSet.getString(1));
+                    }
+                }
+            } catch (SQLException ex) {
+                throw new RuntimeException(ex);
+            }
+            synchronized (jobs) {
+                jobs.add(job);
+                jobs.notifyAll();
+                if (job.equals("1") && metaData.getTries() == 1)
+                    throw new NonFatalQueueError("Error #1");
+                if (job.equals("3"))
+                    throw new FatalQueueError("Error #2");
+            }
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(200)
+                .maxTries(2)
+                .dequeueMode(DequeueMode.LEASE)
+                .batchSize(2)
+                .consume("foo")
+                .build(consumer);
+
+        queue("foo", "0", "1", "2", "3", "4");
+        queueWorker.start();
+        synchronized (jobs) {
+            while (jobs.size() != 6) {
+                jobs.wait();
+                System.out.println("jobs = " + jobs);
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(1, TimeUnit.SECONDS);
+
+        assertThat(jobs, containsInAnyOrder("0,1,1,2,3,4".split(",")));
+        assertThat(keys.get(jobs.lastIndexOf("1")), is(keys.get(jobs.indexOf("1")))); // Retried in place
+        assertThat(queueRemainingJobs("foo"), empty());
+        assertThat(failedJobs(), contains("3"));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testLeaseExpired() throws Exception {
+        System.out.println("testLeaseExpired");
+        ArrayList<String> jobs = new ArrayList<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            synchronized (jobs) {
+                jobs.add(job + "/" + metaData.getTries());
+                jobs.notifyAll();
+            }
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(200)
+                .dequeueMode(DequeueMode.LEASE)
+                .consume("foo")
+                .build(consumer);
+
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement()) {
+            // Only the expiry of the lease makes this available within the hour
+            stmt.executeUpdate("INSERT INTO queue(consumer, dequeueAfter, tries, leasedUntil, leaseOwner, job)" +
+                               " VALUES('foo', now() + INTERVAL '1 hour', 1, now() - INTERVAL '1 minute', 'gone', 'a')");
+        }
+        queueWorker.start();
+        synchronized (jobs) {
+            while (jobs.size() != 1) {
+                jobs.wait();
+                System.out.println("jobs = " + jobs);
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(1, TimeUnit.SECONDS);
+
+        assertThat(jobs, contains("a/2"));
+        assertThat(queueRemainingJobs("foo"), empty());
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testLeaseExpiredBeforeDeduplicate() throws Exception {
+        System.out.println("testLeaseExpiredBeforeDeduplicate");
+        ArrayList<String> jobs = new ArrayList<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            if (job.equals("a")) {
+                // While "b" waits in the batch, its lease expires, and a duplicate is queued
+                try (Connection connection = PG.createConnection() ;
+                     Statement stmt = connection.createStatement()) {
+                    stmt.executeUpdate("UPDATE queue SET leasedUntil=NULL, leaseOwner=NULL, dequeueAfter=clock_timestamp() WHERE job='b'");
+                    queue("foo", "b");
+                } catch (SQLException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+            synchronized (jobs) {
+                jobs.add(job);
+                jobs.notifyAll();
+            }
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(50)
+                .dequeueMode(DequeueMode.LEASE)
+                .batchSize(2)
+                .skipDuplicateJobs(DEDUPLICATE_ABSTRACTION)
+                .consume("foo")
+                .build(consumer);
+
+        queue("foo", "a", "b");
+        queueWorker.start();
+        synchronized (jobs) {
+            while (jobs.size() != 3) {
+                jobs.wait();
+                System.out.println("jobs = " + jobs);
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(1, TimeUnit.SECONDS);
+
+        // The job with the lost lease isn't processed, nor are its duplicates removed
+        assertThat(jobs, contains("a", "b", "b"));
+        assertThat(queueRemainingJobs("foo"), empty());
+        assertThat(failedJobs(), empty());
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testLeaseNoOpenTransaction() throws Exception {
+        System.out.println("testLeaseNoOpenTransaction");
+        ArrayList<Integer> pids = new ArrayList<>();
+        ArrayList<String> jobs = new ArrayList<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            try {
+                synchronized (pids) {
+                    pids.add(c.unwrap(org.postgresql.PGConnection.class).getBackendPID());
+                    pids.notifyAll();
+                }
+                Thread.sleep(500);
+            } catch (SQLException | InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+            synchronized (jobs) {
+                jobs.add(job);
+                jobs.notifyAll();
+            }
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(200)
+                .dequeueMode(DequeueMode.LEASE)
+                .skipDuplicateJobs(DEDUPLICATE_ABSTRACTION)
+                .consume("foo")
+                .build(1, consumer);
+
+        queue("foo", "a");
+        queueWorker.start();
+        int pid;
+        synchronized (pids) {
+            while (pids.isEmpty()) {
+                pids.wait();
+            }
+            pid = pids.get(0);
+        }
+        Thread.sleep(100);
+        try (Connection connection = PG.createConnection() ;
+             PreparedStatement stmt = connection.prepareStatement("SELECT state FROM pg_stat_activity WHERE pid = ?")) {
+            stmt.setInt(1, pid);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                assertThat(resultSet.next(), is(true));
+                assertThat(resultSet.getString(1), is("idle")); // Not "idle in transaction"
+            }
+        }
+        synchronized (jobs) {
+            while (jobs.isEmpty()) {
+                jobs.wait();
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(1, TimeUnit.SECONDS);
+
+        assertThat(queueRemainingJobs("foo"), empty());
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testInPlace() throws Exception {
+        System.out.println("testInPlace");
+        ArrayList<String> jobs = new ArrayList<>();
+        ArrayList<String> keys = new ArrayList<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            try (Connection connection = PG.createConnection() ;
+                 PreparedStatement stmt = connection.prepareStatement("SELECT pk FROM queue WHERE job = ? ORDER BY queued")) {
+                stmt.setString(1, job);
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    assertThat(resultSet.next(), is(true)); // Row is only locked
+                    synchronized (jobs) {
+                        keys.add(resultSet.getString(1));
+                    }
+                }
+            } catch (SQLException ex) {
+                throw new RuntimeException(ex);
+            }
+            synchronized (jobs) {
+                jobs.add(job);
+                jobs.notifyAll();
+                if (job.equals("1") && metaData.getTries() == 1)
+                    throw new NonFatalQueueError("Error #1");
+                if (job.equals("2") && metaData.getTries() == 1)
+                    throw new PostponedNonFatalQueueError("Error #2", 100);
+                if (job.equals("3"))
+                    throw new FatalQueueError("Error #3");
+            }
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(200)
+                .maxTries(2)
+                .dequeueMode(DequeueMode.IN_PLACE)
+                .batchSize(2)
+                .consume("foo")
+                .skipDuplicateJobs(DEDUPLICATE_ABSTRACTION)
+                .build(consumer);
+
+        queue("foo", "0", "1", "2", "3", "1");
+        queueWorker.start();
+        synchronized (jobs) {
+            while (jobs.size() != 6) {
+                jobs.wait();
+                System.out.println("jobs = " + jobs);
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(1, TimeUnit.SECONDS);
+
+        assertThat(jobs, containsInAnyOrder("0,1,1,2,2,3".split(",")));
+        assertThat(keys.get(jobs.lastIndexOf("1")), is(keys.get(jobs.indexOf("1")))); // Updated, not re-inserted
+        assertThat(keys.get(jobs.lastIndexOf("2")), is(keys.get(jobs.indexOf("2"))));
+        assertThat(queueRemainingJobs("foo"), empty());
+        assertThat(failedJobs(), contains("3"));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testPartitioned() throws Exception {
+        System.out.println("testPartitioned");
+        ArrayList<String> jobs = new ArrayList<>();
+
+        queue("foo", "0", "1");
+        queue("bar", "a");
+        DatabaseMigrator.partitionQueue(PG.datasource(), "foo");
+        DatabaseMigrator.partitionQueue(PG.datasource(), "foo"); // Idempotent
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement() ;
+             ResultSet resultSet = stmt.executeQuery("SELECT q.consumer, q.tableoid::REGCLASS, c.reloptions FROM queue q JOIN pg_class c ON c.oid = q.tableoid ORDER BY q.job")) {
+            assertThat(resultSet.next(), is(true));
+            assertThat(resultSet.getString(2), is("queue_foo"));
+            assertThat(resultSet.getString(3), containsString("autovacuum_vacuum_threshold"));
+            assertThat(resultSet.next(), is(true));
+            assertThat(resultSet.getString(2), is("queue_foo"));
+            assertThat(resultSet.next(), is(true));
+            assertThat(resultSet.getString(2), is("queue_default"));
+        }
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            synchronized (jobs) {
+                jobs.add(job);
+                jobs.notifyAll();
+                if (job.equals("1") && metaData.getTries() == 1)
+                    throw new NonFatalQueueError("Error #1");
+            }
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(200)
+                .maxTries(2)
+                .batchSize(2)
+                .consume("foo", "bar")
+                .skipDuplicateJobs(DEDUPLICATE_ABSTRACTION)
+                .build(consumer);
+
+        queue("foo", "2", "2");
+        queue("bar", "b");
+        queueWorker.start();
+        synchronized (jobs) {
+            while (jobs.size() != 6) {
+                jobs.wait();
+                System.out.println("jobs = " + jobs);
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(1, TimeUnit.SECONDS);
+
+        assertThat(jobs, containsInAnyOrder("0,1,1,2,a,b".split(",")));
+        assertThat(queueRemainingJobs("foo"), empty());
+        assertThat(queueRemainingJobs("bar"), empty());
+
+        queue("foo", "x", "y");
+        queue("bar", "c");
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement()) {
+            stmt.execute("SELECT pgqueue_admin_truncate_queue('foo')");
+        }
+        assertThat(queueRemainingJobs("foo"), empty());
+        assertThat(queueRemainingJobs("bar"), contains("c"));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testErrorRetention() throws Exception {
+        System.out.println("testErrorRetention");
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("INSERT INTO queue_error(consumer, queued, failedAt, diag, job) VALUES" +
+                               "('foo', now(), now() - INTERVAL '10 days', 'old', 'a')," +
+                               "('foo', now(), now() - INTERVAL '1 day', 'requeue me', 'b')," +
+                               "('foo', now(), now(), 'new', 'c')");
+        }
+        DatabaseMigrator.partitionQueueError(PG.datasource(), TimeUnit.DAYS.toMillis(1));
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement()) {
+            try (ResultSet resultSet = stmt.executeQuery("SELECT COUNT(*) FROM pgqueue_admin_queue_error_partitions()")) {
+                assertThat(resultSet.next(), is(true));
+                assertThat(resultSet.getInt(1), Matchers.greaterThanOrEqualTo(12));
+            }
+            try (ResultSet resultSet = stmt.executeQuery("SELECT indexdef FROM pg_indexes WHERE tablename = 'queue_error' AND indexname = 'queue_error_failedat'")) {
+                assertThat(resultSet.next(), is(true));
+                assertThat(resultSet.getString(1), containsString("brin"));
+            }
+            try (ResultSet resultSet = stmt.executeQuery("SELECT job FROM pgqueue_admin_requeue('foo', 'requeue%')")) {
+                assertThat(resultSet.next(), is(true));
+                assertThat(resultSet.getString(1), is("b"));
+                assertThat(resultSet.next(), is(false));
+            }
+        }
+        assertThat(queueRemainingJobs("foo"), contains("b"));
+        assertThat(failedJobs(), containsInAnyOrder("a", "c"));
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            throw new FatalQueueError("Error #1");
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(100)
+                .errorRetention(TimeUnit.DAYS.toMillis(3))
+                .consume("foo")
+                .build(consumer);
+        queueWorker.start();
+        while (!new HashSet<>(failedJobs()).equals(new HashSet<>(List.of("b", "c")))) {
+            Thread.sleep(50);
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(1, TimeUnit.SECONDS);
+
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement() ;
+             ResultSet resultSet = stmt.executeQuery("SELECT job FROM pgqueue_admin_discard('foo', '%') ORDER BY job")) {
+            assertThat(resultSet.next(), is(true));
+            assertThat(resultSet.getString(1), is("b"));
+            assertThat(resultSet.next(), is(true));
+            assertThat(resultSet.getString(1), is("c"));
+            assertThat(resultSet.next(), is(false));
+        }
+        assertThat(failedJobs(), empty());
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testVirtualThreads() throws Exception {
+        System.out.println("testVirtualThreads");
+        assumeTrue(Runtime.version().feature() >= 21, "Virtual threads requires Java 21+");
+        ArrayList<String> jobs = new ArrayList<>();
+        HashSet<String> threads = new HashSet<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            synchronized (jobs) {
+                jobs.add(job);
+                threads.add(Thread.currentThread().getName());
+                jobs.notifyAll();
+            }
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(200)
+                .maxTries(2)
+                .virtualThreads()
+                .consume("foo")
+                .build(4, consumer);
+
+        queue("foo", "0", "1", "2", "3", "4");
+        queueWorker.start();
+        synchronized (jobs) {
+            while (jobs.size() != 5) {
+                jobs.wait();
+                System.out.println("jobs = " + jobs);
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(250, TimeUnit.MILLISECONDS);
+
+        assertThat(jobs, containsInAnyOrder("0,1,2,3,4".split(",")));
+        assertThat(threads, everyItem(startsWith("pg-queue-")));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testNotify() throws Exception {
+        System.out.println("testNotify");
+        ArrayList<String> jobs = new ArrayList<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            synchronized (jobs) {
+                jobs.add(job);
+                jobs.notifyAll();
+            }
+        };
+        try (Connection connection = PG.createConnection();
+             Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("ALTER TABLE queue ENABLE TRIGGER queue_notify");
+        }
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(60_000) // Longer than test timeout
+                .listenForNotifications()
+                .maxTries(2)
+                .consume("foo", "bar")
+                .build(2, consumer);
+
+        queueWorker.start();
+        Thread.sleep(500); // Let workers go idle
+        queue("bar", "a", "b");
+        queue("foo", "0", "1", "2");
+        synchronized (jobs) {
+            while (jobs.size() != 5) {
+                jobs.wait();
+                System.out.println("jobs = " + jobs);
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(250, TimeUnit.MILLISECONDS);
+
+        assertThat(jobs, containsInAnyOrder("a,b,0,1,2".split(",")));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testNotifyNotPostgreSQL() throws Exception {
+        System.out.println("testNotifyNotPostgreSQL");
+        ArrayList<String> jobs = new ArrayList<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            synchronized (jobs) {
+                jobs.add(job);
+                jobs.notifyAll();
+            }
+        };
+        List<Thread> listenersBefore = listenerThreads();
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(new NotPostgreSQLDataSource(PG.datasource()))
+                .emptyQueueSleep(100)
+                .listenForNotifications()
+                .maxTries(2)
+                .consume("foo")
+                .build(1, consumer);
+
+        queueWorker.start();
+        List<Thread> listeners = listenerThreads();
+        listeners.removeAll(listenersBefore);
+        assertThat(listeners.size(), is(1));
+        listeners.get(0).join(); // Ends without reconnecting, though still running
+
+        queue("foo", "a"); // Found by polling
+        synchronized (jobs) {
+            while (jobs.isEmpty()) {
+                jobs.wait();
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(250, TimeUnit.MILLISECONDS);
+
+        assertThat(jobs, contains("a"));
+    }
+
+    private static List<Thread> listenerThreads() {
+        List<Thread> threads = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("pg-queue-listener") && thread.isAlive())
+                threads.add(thread);
+        }
+        return threads;
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testConsumerFailureThrottle() throws Exception {
+        System.out.println("testConsumerFailureThrottle");
+        ArrayList<String> jobs = new ArrayList<>();
+        ArrayList<Long> times = new ArrayList<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            synchronized (jobs) {
+                jobs.add(job);
+                times.add(System.nanoTime());
+                jobs.notifyAll();
+                if (job.equals("0")) {
+                    System.out.println("ERROR on: " + job);
+                    throw new FatalQueueError("Error #1");
+                }
+            }
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(200)
+                .consume("foo", "bar")
+                .failureThrottle("1/5s")
+                .failureThrottle("foo", "1/600ms")
+                .build(consumer);
+
+        queue("foo", "0", "1");
+        queue("bar", "a", "b", "c");
+        queueWorker.start();
+        synchronized (jobs) {
+            while (jobs.size() != 5) {
+                jobs.wait();
+                System.out.println("jobs = " + jobs);
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(250, TimeUnit.MILLISECONDS);
+
+        // foo is skipped while throttled, and the common throttle is untouched
+        assertThat(jobs, contains("0,a,b,c,1".split(",")));
+        assertThat(TimeUnit.NANOSECONDS.toMillis(times.get(3) - times.get(0)), lessThan(500L));
+        assertThat(TimeUnit.NANOSECONDS.toMillis(times.get(4) - times.get(0)), greaterThanOrEqualTo(550L));
+        assertThat(failedJobs(), contains("0".split(",")));
+
+        assertThrows(IllegalArgumentException.class, () -> QueueWorker.builder(STORAGE_ABSTRACTION)
+                     .dataSource(PG.datasource())
+                     .consume("foo")
+                     .failureThrottle("bar", "1/s")
+                     .build(consumer));
+    }
+
+    @Test
+    public void testPerQueueEnv() throws Exception {
+        System.out.println("testPerQueueEnv");
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+        };
+        Harvester<?> harvester = (Harvester<?>) QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .consume("slow-external", "foo")
+                .fromEnvWithDefaults(Map.of("FAILURE_THROTTLE_SLOW_EXTERNAL", "1/s",
+                                            "FAILURE_THROTTLE_OTHER", "1/s", // For another worker
+                                            "RATE_LIMITS", "slow-external=1/m,other=1/s",
+                                            "MAX_CONCURRENCY", "SLOW_EXTERNAL=1 other=2"))
+                .build(1, consumer);
+
+        assertThat(harvester.settings.consumerFailureThrottles.keySet(), contains("slow-external"));
+        assertThat(harvester.settings.maxConcurrency, is(Map.of("slow-external", 1)));
+        assertThat(harvester.settings.rateLimits.acquire("slow-external", 5), is(1));
+        assertThat(harvester.settings.rateLimits.acquire("foo", 5), is(5));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testRateLimit() throws Exception {
+        System.out.println("testRateLimit");
+        ArrayList<Long> processed = new ArrayList<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            synchronized (processed) {
+                processed.add(System.nanoTime());
+                processed.notifyAll();
+            }
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(200)
+                .batchSize(2)
+                .consume("foo", "bar")
+                .rateLimit("foo", "20/s")
+                .build(consumer, consumer);
+
+        queue("foo", "1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11", "12");
+        queueWorker.start();
+        synchronized (processed) {
+            while (processed.size() != 12) {
+                processed.wait();
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(250, TimeUnit.MILLISECONDS);
+
+        // A burst of 2, and then 10 at 50ms intervals
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(processed.get(11) - processed.get(0));
+        System.out.println("elapsed = " + elapsed);
+        assertThat(elapsed, greaterThanOrEqualTo(450L));
+
+        assertThrows(IllegalArgumentException.class, () -> QueueWorker.builder(STORAGE_ABSTRACTION)
+                     .dataSource(PG.datasource())
+                     .consume("foo")
+                     .rateLimit("bar", "20/s")
+                     .build(consumer));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testRateLimitEmptyPoll() throws Exception {
+        System.out.println("testRateLimitEmptyPoll");
+        ArrayList<String> jobs = new ArrayList<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            synchronized (jobs) {
+                jobs.add(job);
+                jobs.notifyAll();
             }
         };
         QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
                 .dataSource(PG.datasource())
-                .emptyQueueSleep(200)
-                .maxTries(2)
-                .consume("foo", "bar")
+                .emptyQueueSleep(50)
+                .consume("foo")
+                .rateLimit("foo", "1/m")
                 .build(consumer);
 
-        queue("foo", "0", "1", "2", "3", "4");
         queueWorker.start();
+        Thread.sleep(500); // Poll the empty queue a number of times
+        long start = System.nanoTime();
+        queue("foo", "a");
         synchronized (jobs) {
-            while (jobs.size() != 6) {
+            while (jobs.isEmpty()) {
                 jobs.wait();
-                System.out.println("jobs = " + jobs);
             }
         }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
         queueWorker.stop();
         queueWorker.awaitTermination(250, TimeUnit.MILLISECONDS);
 
-        assertThat(jobs, contains("0,1,2,3,4,1".split(",")));
+        // The only token in a minute hasn't been used by the empty polls
+        System.out.println("elapsed = " + elapsed);
+        assertThat(elapsed, lessThan(5_000L));
+        assertThat(jobs, contains("a"));
     }
 
     @Test
     @Timeout(value = 10, unit = TimeUnit.SECONDS)
-    public void testMultiFail() throws Exception {
-        System.out.println("testMultiFail");
+    public void testQueueSample() throws Exception {
+        System.out.println("testQueueSample");
         ArrayList<String> jobs = new ArrayList<>();
 
         JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
-            System.out.println("job = " + job + "; meta = " + metaData);
             synchronized (jobs) {
                 jobs.add(job);
                 jobs.notifyAll();
-                if (job.equals("0")) {
-                    System.out.println("ERROR on: " + job);
-                    throw new NonFatalQueueError("Error #1");
+                while (!jobs.contains("release")) {
+                    try {
+                        jobs.wait();
+                    } catch (InterruptedException ex) {
+                        throw new RuntimeException(ex);
+                    }
                 }
             }
         };
+        PrometheusRegistry registry = new PrometheusRegistry();
         QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
                 .dataSource(PG.datasource())
-                .emptyQueueSleep(200)
-                .maxTries(2)
+                .emptyQueueSleep(100)
+                .sampleInterval(50)
                 .consume("foo", "bar")
-                .build(consumer);
+                .metricRegistryIoPrometheus(registry)
+                .build(1, consumer);
 
-        queue("foo", "0", "1");
+        queue("foo", "1", "2", "3");
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("UPDATE queue SET dequeueAfter=clock_timestamp() - INTERVAL '1 hour'");
+            stmt.executeUpdate("INSERT INTO queue(consumer, job, dequeueAfter) VALUES('bar', 'a', clock_timestamp() + INTERVAL '1 hour')");
+        }
         queueWorker.start();
         synchronized (jobs) {
-            while (jobs.size() != 3) {
+            while (jobs.isEmpty()) {
                 jobs.wait();
-                System.out.println("jobs = " + jobs);
             }
         }
+        // The first sample is taken before the first job is claimed
+        assertThat(gauge(registry, "queueReady.foo"), is(3L));
+        assertThat(gauge(registry, "queuePostponed.foo"), is(0L));
+        assertThat(gauge(registry, "queueOldestAge.foo"), allOf(greaterThanOrEqualTo(3_600_000L), lessThan(3_660_000L)));
+        assertThat(gauge(registry, "queueReady.bar"), is(0L));
+        assertThat(gauge(registry, "queuePostponed.bar"), is(1L));
+        assertThat(gauge(registry, "queueOldestAge.bar"), is(0L));
+
+        synchronized (jobs) {
+            jobs.add("release");
+            jobs.notifyAll();
+        }
+        // Sampled again, while idle
+        while (gauge(registry, "queueReady.foo") != 0L) {
+            Thread.sleep(50);
+        }
         queueWorker.stop();
         queueWorker.awaitTermination(250, TimeUnit.MILLISECONDS);
 
-        System.out.println("failedJobs = " + failedJobs());
-        assertThat(jobs, contains("0,0,1".split(",")));
-        assertThat(failedJobs(), contains("0".split(",")));
+        assertThat(gauge(registry, "queueOldestAge.foo"), is(0L));
+        assertThat(jobs, contains("1", "release", "2", "3"));
     }
 
     @Test
-    @Timeout(value = 10, unit = TimeUnit.SECONDS)
-    public void testFatal() throws Exception {
-        System.out.println("testFatal");
+    @Timeout(value = 20, unit = TimeUnit.SECONDS)
+    public void testElasticWorkers() throws Exception {
+        System.out.println("testElasticWorkers");
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        AtomicInteger consumers = new AtomicInteger();
         ArrayList<String> jobs = new ArrayList<>();
 
         JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
-            System.out.println("job = " + job + "; meta = " + metaData);
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Integer::max);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            } finally {
+                inFlight.decrementAndGet();
+            }
             synchronized (jobs) {
                 jobs.add(job);
                 jobs.notifyAll();
-                if (job.equals("0")) {
-                    System.out.println("ERROR on: " + job);
-                    throw new FatalQueueError("Error #1");
+            }
+        };
+        PrometheusRegistry registry = new PrometheusRegistry();
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(100)
+                .scaleUpLag(500)
+                .consume("foo")
+                .metricRegistryIoPrometheus(registry)
+                .build(1, 3, () -> {
+                    consumers.incrementAndGet();
+                    return consumer;
+                });
+        assertThat(gauge(registry, "workers"), is(1L));
+
+        String[] queued = new String[60];
+        for (int i = 0 ; i < queued.length ; i++) {
+            queued[i] = String.valueOf(i);
+        }
+        queue("foo", queued);
+        Thread.sleep(600); // Jobs are late already
+        queueWorker.start();
+        synchronized (jobs) {
+            while (jobs.size() != queued.length) {
+                jobs.wait();
+            }
+        }
+        assertThat(gauge(registry, "workers"), is(3L));
+
+        Thread.sleep(200); // A short pause doesn't retire workers
+        assertThat(counter(registry, "workerRetired"), is(0L));
+        queue("foo", "a", "b", "c", "d", "e", "f");
+        synchronized (jobs) {
+            while (jobs.size() != queued.length + 6) {
+                jobs.wait();
+            }
+        }
+        while (gauge(registry, "workers") != 1L) {
+            Thread.sleep(50);
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(250, TimeUnit.MILLISECONDS);
+
+        assertThat(consumers.get(), is(3));
+        assertThat(maxInFlight.get(), is(3));
+        assertThat(counter(registry, "workerSpawned"), is(2L));
+        assertThat(counter(registry, "workerRetired"), is(2L));
+
+        assertThrows(IllegalArgumentException.class, () -> QueueWorker.builder(STORAGE_ABSTRACTION)
+                     .dataSource(PG.datasource())
+                     .consume("foo")
+                     .dispatcher(1)
+                     .build(1, 2, () -> consumer));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testMaxConcurrency() throws Exception {
+        System.out.println("testMaxConcurrency");
+        AtomicInteger slowInFlight = new AtomicInteger();
+        AtomicInteger maxSlowInFlight = new AtomicInteger();
+        ArrayList<String> jobs = new ArrayList<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            if (metaData.getConsumer().equals("slow")) {
+                maxSlowInFlight.accumulateAndGet(slowInFlight.incrementAndGet(), Integer::max);
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                } finally {
+                    slowInFlight.decrementAndGet();
                 }
             }
+            synchronized (jobs) {
+                jobs.add(job);
+                jobs.notifyAll();
+            }
         };
         QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
                 .dataSource(PG.datasource())
                 .emptyQueueSleep(200)
-                .maxTries(2)
-                .consume("foo", "bar")
-                .build(consumer);
+                .batchSize(3)
+                .consume("slow", "fast")
+                .maxConcurrency("slow", 1)
+                .build(4, consumer);
 
-        queue("foo", "0", "1");
+        queue("slow", "s1", "s2", "s3", "s4");
+        queue("fast", "f1", "f2", "f3", "f4", "f5", "f6", "f7", "f8", "f9", "f10");
         queueWorker.start();
         synchronized (jobs) {
-            while (jobs.size() != 2) {
+            while (jobs.size() != 14) {
                 jobs.wait();
-                System.out.println("jobs = " + jobs);
             }
         }
         queueWorker.stop();
         queueWorker.awaitTermination(250, TimeUnit.MILLISECONDS);
 
-        assertThat(jobs, contains("0,1".split(",")));
-        assertThat(failedJobs(), contains("0".split(",")));
+        System.out.println("jobs = " + jobs);
+        assertThat(maxSlowInFlight.get(), is(1));
+        // The other workers has taken the fast queue, while the slow is processed
+        assertThat(jobs.subList(0, 10), everyItem(startsWith("f")));
+
+        assertThrows(IllegalArgumentException.class, () -> QueueWorker.builder(STORAGE_ABSTRACTION)
+                     .dataSource(PG.datasource())
+                     .consume("foo")
+                     .maxConcurrency("bar", 1)
+                     .build(consumer));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testMaxConcurrencyClaimFailure() throws Exception {
+        System.out.println("testMaxConcurrencyClaimFailure");
+        for (int batchSize : new int[] {1, 3}) {
+            System.out.println("batchSize = " + batchSize);
+            AtomicBoolean fail = new AtomicBoolean(true);
+            QueueStorageAbstraction<String> failOnce = new QueueStorageAbstraction<String>() {
+                @Override
+                public String[] columnList() {
+                    return STORAGE_ABSTRACTION.columnList();
+                }
+
+                @Override
+                public String createJob(ResultSet resultSet, int startColumn) throws SQLException {
+                    if (fail.getAndSet(false))
+                        throw new SQLException("Claim failed");
+                    return STORAGE_ABSTRACTION.createJob(resultSet, startColumn);
+                }
+
+                @Override
+                public void saveJob(String job, PreparedStatement stmt, int startColumn) throws SQLException {
+                    STORAGE_ABSTRACTION.saveJob(job, stmt, startColumn);
+                }
+            };
+            ArrayList<String> jobs = new ArrayList<>();
+
+            JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+                synchronized (jobs) {
+                    jobs.add(job);
+                    jobs.notifyAll();
+                }
+            };
+            QueueWorker queueWorker = QueueWorker.builder(failOnce)
+                    .dataSource(PG.datasource())
+                    .emptyQueueSleep(100)
+                    .batchSize(batchSize)
+                    .consume("foo")
+                    .maxConcurrency("foo", 1)
+                    .build(2, consumer);
+
+            queue("foo", "1", "2", "3");
+            queueWorker.start();
+            // The room reserved for the failed claim has been returned
+            synchronized (jobs) {
+                while (jobs.size() != 3) {
+                    jobs.wait();
+                }
+            }
+            queueWorker.stop();
+            queueWorker.awaitTermination(250, TimeUnit.MILLISECONDS);
+
+            assertThat(fail.get(), is(false));
+            assertThat(jobs, containsInAnyOrder("1", "2", "3"));
+        }
+    }
+
+    @Test
+    @Timeout(value = 30, unit = TimeUnit.SECONDS)
+    public void testAdaptiveConcurrency() throws Exception {
+        System.out.println("testAdaptiveConcurrency");
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        ArrayList<String> jobs = new ArrayList<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            int concurrent = inFlight.incrementAndGet();
+            if (started.incrementAndGet() > 30) // The limit has adapted to the slow jobs
+                maxInFlight.accumulateAndGet(concurrent, Integer::max);
+            try {
+                Thread.sleep(40);
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            synchronized (jobs) {
+                jobs.add(job);
+                jobs.notifyAll();
+            }
+        };
+        PrometheusRegistry registry = new PrometheusRegistry();
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(200)
+                .consume("foo")
+                .adaptiveConcurrency("10ms/1")
+                .metricRegistryIoPrometheus(registry)
+                .build(4, consumer);
+
+        String[] queued = new String[40];
+        for (int i = 0 ; i < queued.length ; i++) {
+            queued[i] = String.valueOf(i);
+        }
+        queue("foo", queued);
+        queueWorker.start();
+        synchronized (jobs) {
+            while (jobs.size() != queued.length) {
+                jobs.wait();
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(250, TimeUnit.MILLISECONDS);
+
+        assertThat(gauge(registry, "concurrencyLimit"), is(1L));
+        assertThat(maxInFlight.get(), is(1));
     }
 
     @Test
@@ -258,6 +1528,109 @@ public class HarvesterIT {
         assertThat(remainingJobs, contains("1,3".split(",")));
     }
 
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testDeduplicationHash() throws Exception {
+        System.out.println("testDeduplicationHash");
+        ArrayList<String> jobs = new ArrayList<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            synchronized (jobs) {
+                jobs.add(job);
+                jobs.notifyAll();
+            }
+            if (job.equals("2"))
+                throw new PostponedNonFatalQueueError("Later", 60_000);
+            if (job.equals("3"))
+                throw new FatalQueueError("Failed");
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(200)
+                .maxTries(2)
+                .consume("foo")
+                .skipDuplicateJobs(DEDUPLICATE_ABSTRACTION)
+                .deduplicateHash()
+                .build(consumer);
+
+        queueHashed("foo", "1", "1", "2", "3");
+        queue("foo", "1"); // No hash, not found as a duplicate
+        queueWorker.start();
+        synchronized (jobs) {
+            while (jobs.size() != 4) {
+                jobs.wait();
+                System.out.println("jobs = " + jobs);
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(250, TimeUnit.MILLISECONDS);
+
+        ArrayList<String> hashedJobs = new ArrayList<>();
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement()) {
+            stmt.executeQuery("SELECT pgqueue_admin_requeue('foo', '%')").close();
+            try (ResultSet resultSet = stmt.executeQuery("SELECT job FROM queue WHERE dedup_hash = hash_record_extended(ROW(job), 0)")) {
+                while (resultSet.next()) {
+                    hashedJobs.add(resultSet.getString(1));
+                }
+            }
+        }
+
+        assertThat(jobs, contains("1,2,3,1".split(",")));
+        assertThat(hashedJobs, containsInAnyOrder("2", "3")); // Postponed and requeued jobs kept their hash
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testDuplicateHint() throws Exception {
+        System.out.println("testDuplicateHint");
+        for (DequeueMode mode : DequeueMode.values()) {
+            ArrayList<String> jobs = new ArrayList<>();
+
+            JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+                System.out.println("job = " + job + "; meta = " + metaData);
+                synchronized (jobs) {
+                    jobs.add(job);
+                    jobs.notifyAll();
+                }
+            };
+            PrometheusRegistry registry = new PrometheusRegistry();
+            QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                    .dataSource(PG.datasource())
+                    .emptyQueueSleep(200)
+                    .maxTries(2)
+                    .dequeueMode(mode)
+                    .consume("foo")
+                    .skipDuplicateJobs(DEDUPLICATE_ABSTRACTION)
+                    .deduplicateHash()
+                    .duplicateHint()
+                    .metricRegistryIoPrometheus(registry)
+                    .build(consumer);
+
+            queueHashed("foo", "1", "2", "1", "3", "4");
+            queuePostponedHashed("foo", 60, "4"); // Not a duplicate, until it is due
+            queueWorker.start();
+            synchronized (jobs) {
+                while (jobs.size() != 4) {
+                    jobs.wait();
+                    System.out.println("jobs = " + jobs);
+                }
+            }
+            queueWorker.stop();
+            queueWorker.awaitTermination(250, TimeUnit.MILLISECONDS);
+
+            assertThat(mode.name(), jobs, contains("1,2,3,4".split(",")));
+            assertThat(mode.name(), queueRemainingJobs("foo"), contains("4"));
+            assertThat(mode.name(), counter(registry, "duplicateHintSkip"), is(3L));
+            assertThat(mode.name(), counter(registry, "duplicateHintMiss"), is(0L));
+            try (Connection connection = PG.createConnection() ;
+                 Statement stmt = connection.createStatement()) {
+                stmt.executeUpdate("TRUNCATE queue");
+            }
+        }
+    }
+
     @Test
     @Timeout(value = 10, unit = TimeUnit.SECONDS)
     public void testDeduplicationIncludePostponed() throws Exception {
@@ -394,6 +1767,46 @@ public class HarvesterIT {
         assertThat(remainingJobsBar, empty());
     }
 
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testDeduplicateAllQueuesInPlace() throws Exception {
+        System.out.println("testDeduplicateAllQueuesInPlace");
+        ArrayList<String> jobs = new ArrayList<>();
+
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            System.out.println("job = " + job + "; meta = " + metaData);
+            synchronized (jobs) {
+                jobs.add(job);
+                jobs.notifyAll();
+            }
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(200)
+                .maxTries(2)
+                .dequeueMode(DequeueMode.IN_PLACE)
+                .consume("foo", "bar")
+                .skipDuplicateJobs(DEDUPLICATE_ABSTRACTION, true, true)
+                .build(consumer);
+
+        queue("foo", "1", "1", "2", "2", "3");
+        queue("bar", "1", "2", "2", "3", "3");
+
+        queueWorker.start();
+        synchronized (jobs) {
+            while (jobs.size() != 3) {
+                jobs.wait();
+                System.out.println("jobs = " + jobs);
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(250, TimeUnit.MILLISECONDS);
+
+        assertThat(jobs, contains("1,2,3".split(",")));
+        assertThat(queueRemainingJobs("foo"), empty());
+        assertThat(queueRemainingJobs("bar"), empty());
+    }
+
     @Test
     @Timeout(value = 10, unit = TimeUnit.SECONDS)
     public void testOnEmptyDatabase() throws Exception {
@@ -438,6 +1851,36 @@ public class HarvesterIT {
         }
     }
 
+    private static long counter(PrometheusRegistry registry, String name) {
+        return registry.scrape().stream()
+                .filter(s -> s instanceof CounterSnapshot)
+                .filter(s -> s.getMetadata().getName().endsWith("." + name))
+                .flatMap(s -> ( (CounterSnapshot) s ).getDataPoints().stream())
+                .mapToLong(d -> (long) d.getValue())
+                .sum();
+    }
+
+    private static long gauge(PrometheusRegistry registry, String name) {
+        return registry.scrape().stream()
+                .filter(s -> s instanceof GaugeSnapshot)
+                .filter(s -> s.getMetadata().getName().endsWith("." + name))
+                .flatMap(s -> ( (GaugeSnapshot) s ).getDataPoints().stream())
+                .mapToLong(d -> (long) d.getValue())
+                .sum();
+    }
+
+    private void queueHashed(String queueName, String... jobs) throws SQLException {
+        try (Connection connection = PG.createConnection();
+             PreparedStatement stmt = connection.prepareStatement("INSERT INTO queue(consumer, job, dedup_hash) VALUES(?, ?, " + DeduplicateHash.expression(DEDUPLICATE_ABSTRACTION) + ")")) {
+            stmt.setString(1, queueName);
+            for (String job : jobs) {
+                stmt.setString(2, job);
+                DEDUPLICATE_ABSTRACTION.duplicateValues(job, stmt, 3);
+                stmt.executeUpdate();
+            }
+        }
+    }
+
     private void queuePostponed(String queueName, int timeout, String... jobs) throws SQLException {
         try (Connection connection = PG.createConnection();
              PreparedStatement stmt = connection.prepareStatement("INSERT INTO queue(consumer, dequeueAfter, job) VALUES(?, now() + ? * INTERVAL '1 seconds', ?)")) {
@@ -450,6 +1893,19 @@ public class HarvesterIT {
         }
     }
 
+    private void queuePostponedHashed(String queueName, int timeout, String... jobs) throws SQLException {
+        try (Connection connection = PG.createConnection();
+             PreparedStatement stmt = connection.prepareStatement("INSERT INTO queue(consumer, dequeueAfter, job, dedup_hash) VALUES(?, now() + ? * INTERVAL '1 seconds', ?, " + DeduplicateHash.expression(DEDUPLICATE_ABSTRACTION) + ")")) {
+            stmt.setString(1, queueName);
+            stmt.setInt(2, timeout);
+            for (String job : jobs) {
+                stmt.setString(3, job);
+                DEDUPLICATE_ABSTRACTION.duplicateValues(job, stmt, 4);
+                stmt.executeUpdate();
+            }
+        }
+    }
+
     private ArrayList<String> queueRemainingJobs(String queueName) throws SQLException {
         ArrayList<String> ret = new ArrayList<>();
         try (Connection connection = PG.createConnection();
@@ -464,6 +1920,16 @@ public class HarvesterIT {
         return ret;
     }
 
+    private static long transactionId(Connection connection) {
+        try (Statement stmt = connection.createStatement() ;
+             ResultSet resultSet = stmt.executeQuery("SELECT txid_current()")) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
     private List<String> failedJobs() throws SQLException {
         ArrayList<String> res = new ArrayList<>();
         try (Connection connection = PG.createConnection();
@@ -520,6 +1986,37 @@ public class HarvesterIT {
         return pg;
     }
 
+    /**
+     * DataSource with connections, that cannot be unwrapped to a
+     * PostgreSQL connection, like those of another driver
+     */
+    private static class NotPostgreSQLDataSource extends CountedDataSource {
+
+        public NotPostgreSQLDataSource(DataSource parent) {
+            super(parent);
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            Connection connection = super.getConnection();
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "isWrapperFor":
+                        return false;
+                    case "unwrap":
+                        throw new SQLException("Cannot unwrap to " + args[0]);
+                    default:
+                        break;
+                }
+                try {
+                    return method.invoke(connection, args);
+                } catch (InvocationTargetException ex) {
+                    throw ex.getCause();
+                }
+            });
+        }
+    }
+
     private static class CountedDataSource implements DataSource {
 
         private final DataSource parent;
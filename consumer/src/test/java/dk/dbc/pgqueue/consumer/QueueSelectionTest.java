@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-consumer
+ *
+ * pg-queue-consumer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-consumer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.consumer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class QueueSelectionTest {
+
+    private static final List<String> NAMES = Arrays.asList("a", "b", "c");
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testOrdered() throws Exception {
+        System.out.println("testOrdered");
+        QueueSelection selection = QueueSelection.of(QueueSelectionPolicy.ORDERED, NAMES, Arrays.asList(1, 1, 1));
+        assertThat(selection.order(), contains("a", "b", "c"));
+        assertThat(selection.order(), contains("a", "b", "c"));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testRoundRobin() throws Exception {
+        System.out.println("testRoundRobin");
+        QueueSelection selection = QueueSelection.of(QueueSelectionPolicy.ROUND_ROBIN, NAMES, Arrays.asList(1, 1, 1));
+        assertThat(selection.order(), contains("a", "b", "c"));
+        assertThat(selection.order(), contains("b", "c", "a"));
+        assertThat(selection.order(), contains("c", "a", "b"));
+        assertThat(selection.order(), contains("a", "b", "c"));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testWeighted() throws Exception {
+        System.out.println("testWeighted");
+        QueueSelection selection = QueueSelection.of(QueueSelectionPolicy.WEIGHTED, NAMES, Arrays.asList(10, 4, 2));
+        ArrayList<String> first = new ArrayList<>();
+        for (int i = 0 ; i < 8 ; i++) {
+            List<String> order = selection.order();
+            assertThat(order, containsInAnyOrder("a", "b", "c"));
+            first.add(order.get(0));
+        }
+        System.out.println("first = " + first);
+        // Weights are reduced to 5:2:1, and spread out
+        assertThat(first, contains("a", "b", "a", "a", "c", "a", "b", "a"));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testDeficitRoundRobin() throws Exception {
+        System.out.println("testDeficitRoundRobin");
+        QueueSelection selection = QueueSelection.of(QueueSelectionPolicy.DEFICIT_ROUND_ROBIN, NAMES, Arrays.asList(2, 1, 1));
+        assertThat(selection.order(), contains("a", "b", "c"));
+        selection.processed("a", 100);
+        assertThat(selection.order(), contains("b", "c", "a"));
+        selection.processed("b", 100);
+        selection.processed("c", 40);
+        assertThat(selection.order(), contains("c", "a", "b")); // a has weight 2
+        selection.processed("c", 20);
+        assertThat(selection.order(), contains("a", "c", "b"));
+        // An empty queue is caught up with the others, and doesn't build up credit
+        selection.empty("a");
+        assertThat(selection.order(), contains("a", "c", "b"));
+        selection.processed("b", 1000);
+        selection.processed("c", 1000);
+        selection.empty("a");
+        selection.processed("a", 1);
+        assertThat(selection.order(), contains("c", "a", "b"));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-consumer
+ *
+ * pg-queue-consumer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-consumer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.consumer;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class RateLimitsTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testRate() throws Exception {
+        System.out.println("testRate");
+        AtomicLong clock = new AtomicLong(1_000_000 * MS);
+        RateLimits limits = new RateLimits(Map.of("a", "10/s"), 1) {
+            @Override
+            long nanoTime() {
+                return clock.get();
+            }
+        };
+
+        assertThat(limits.acquire("a", 1), is(1));
+        assertThat(limits.acquire("a", 1), is(0));
+        assertThat(limits.nanosUntilAvailable("a"), is(100 * MS));
+        clock.addAndGet(99 * MS);
+        assertThat(limits.acquire("a", 1), is(0));
+        clock.addAndGet(MS);
+        assertThat(limits.acquire("a", 1), is(1));
+
+        // Unused tokens can be returned
+        limits.release("a", 1);
+        assertThat(limits.acquire("a", 1), is(1));
+
+        // Idle time doesn't accumulate tokens beyond the burst
+        clock.addAndGet(10_000 * MS);
+        assertThat(limits.acquire("a", 5), is(1));
+        assertThat(limits.acquire("a", 5), is(0));
+
+        // Other queues are not limited
+        assertThat(limits.acquire("b", 5), is(5));
+        assertThat(limits.nanosUntilAvailable("b"), is(0L));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testBurst() throws Exception {
+        System.out.println("testBurst");
+        AtomicLong clock = new AtomicLong(1_000_000 * MS);
+        RateLimits limits = new RateLimits(Map.of("a", "5/2m"), 3) {
+            @Override
+            long nanoTime() {
+                return clock.get();
+            }
+        };
+
+        assertThat(limits.acquire("a", 10), is(3));
+        assertThat(limits.acquire("a", 10), is(0));
+        clock.addAndGet(24_000 * MS);
+        assertThat(limits.acquire("a", 10), is(1));
+        clock.addAndGet(48_000 * MS);
+        assertThat(limits.acquire("a", 10), is(2));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testRelease() throws Exception {
+        System.out.println("testRelease");
+        AtomicLong clock = new AtomicLong(1_000_000 * MS);
+        RateLimits limits = new RateLimits(Map.of("a", "1/s"), 3) {
+            @Override
+            long nanoTime() {
+                return clock.get();
+            }
+        };
+
+        assertThat(limits.acquire("a", 3), is(3));
+        assertThat(limits.nanosUntilAvailable("a"), is(1_000 * MS));
+        assertThat(limits.acquire("a", 3), is(0));
+
+        // Tokens that weren't used are available again at once
+        limits.release("a", 2);
+        assertThat(limits.nanosUntilAvailable("a"), is(0L));
+        assertThat(limits.acquire("a", 3), is(2));
+        assertThat(limits.acquire("a", 3), is(0));
+
+        // Returning all tokens doesn't exceed the burst
+        limits.release("a", 2);
+        limits.release("a", 1);
+        assertThat(limits.acquire("a", 5), is(3));
+        clock.addAndGet(10_000 * MS);
+        limits.release("a", 3);
+        assertThat(limits.acquire("a", 5), is(3));
+        assertThat(limits.acquire("a", 5), is(0));
+
+        // Nothing to return to queues that are not limited
+        limits.release("b", 5);
+        assertThat(limits.nanosUntilAvailable("b"), is(0L));
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        System.out.println("testInvalid");
+        assertThrows(IllegalArgumentException.class, () -> new RateLimits(Map.of("a", "10"), 1));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimits(Map.of("a", "0/s"), 1));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimits(Map.of("a", "10/d"), 1));
+    }
+}
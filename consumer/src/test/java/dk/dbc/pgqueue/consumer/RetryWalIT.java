@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-consumer
+ *
+ * pg-queue-consumer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-consumer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.consumer;
+
+import dk.dbc.commons.testcontainers.postgres.DBCPostgreSQLContainer;
+import dk.dbc.pgqueue.common.DatabaseMigrator;
+import dk.dbc.pgqueue.common.QueueStorageAbstraction;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Compare the cost of retrying jobs, when the row is deleted and re-inserted
+ * and when it is updated in place
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class RetryWalIT {
+
+    private static final DBCPostgreSQLContainer PG = makePG();
+
+    private static final int JOBS = 50;
+    private static final int RETRIES = 10;
+    private static final String PAYLOAD = String.join("", Collections.nCopies(100, "0123456789"));
+
+    @Test
+    @Timeout(value = 60, unit = TimeUnit.SECONDS)
+    public void testRetryWal() throws Exception {
+        System.out.println("testRetryWal");
+        Stats delete = retry(DequeueMode.DELETE);
+        Stats inPlace = retry(DequeueMode.IN_PLACE);
+        System.out.println("DELETE:   " + delete);
+        System.out.println("IN_PLACE: " + inPlace);
+
+        assertThat(inPlace.walPerRetry(), lessThan(delete.walPerRetry()));
+        assertThat(inPlace.indexGrowth, lessThanOrEqualTo(delete.indexGrowth));
+    }
+
+    private Stats retry(DequeueMode mode) throws Exception {
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("DROP SCHEMA public CASCADE");
+            stmt.executeUpdate("CREATE SCHEMA public");
+            stmt.executeUpdate("CREATE TABLE queue ( job TEXT NOT NULL )");
+            stmt.executeUpdate("CREATE TABLE queue_error ( job TEXT NOT NULL )");
+        }
+        DatabaseMigrator.migrate(PG.datasource());
+        try (Connection connection = PG.createConnection() ;
+             PreparedStatement stmt = connection.prepareStatement("INSERT INTO queue(consumer, job) VALUES('foo', ?)")) {
+            for (int i = 0 ; i < JOBS ; i++) {
+                stmt.setString(1, i + PAYLOAD);
+                stmt.executeUpdate();
+            }
+        }
+
+        AtomicInteger attempts = new AtomicInteger();
+        JobConsumer<String> consumer = (JobConsumer<String>) (Connection c, String job, JobMetaData metaData) -> {
+            synchronized (attempts) {
+                attempts.incrementAndGet();
+                attempts.notifyAll();
+            }
+            throw new NonFatalQueueError("retry");
+        };
+        QueueWorker queueWorker = QueueWorker.builder(STORAGE_ABSTRACTION)
+                .dataSource(PG.datasource())
+                .emptyQueueSleep(200)
+                .maxTries(RETRIES + 10)
+                .dequeueMode(mode)
+                .consume("foo")
+                .build(consumer);
+
+        long indexSize = query("SELECT pg_indexes_size('queue')");
+        String lsn = queryString("SELECT pg_current_wal_insert_lsn()");
+        queueWorker.start();
+        synchronized (attempts) {
+            while (attempts.get() < JOBS * RETRIES) {
+                attempts.wait();
+            }
+        }
+        queueWorker.stop();
+        queueWorker.awaitTermination(1, TimeUnit.SECONDS);
+        long wal = query("SELECT pg_wal_lsn_diff(pg_current_wal_insert_lsn(), '" + lsn + "')");
+        long indexGrowth = query("SELECT pg_indexes_size('queue')") - indexSize;
+
+        // Statistics are sent when the worker connections are closed
+        long deadTuples = 0, hotUpdates = 0;
+        for (int i = 0 ; i < 50 ; i++) {
+            Thread.sleep(100);
+            if (query("SELECT n_tup_ins + n_tup_upd + n_tup_del FROM pg_stat_user_tables WHERE relname = 'queue'") > JOBS) {
+                deadTuples = query("SELECT n_dead_tup FROM pg_stat_user_tables WHERE relname = 'queue'");
+                hotUpdates = query("SELECT n_tup_hot_upd FROM pg_stat_user_tables WHERE relname = 'queue'");
+                break;
+            }
+        }
+        return new Stats(attempts.get(), wal, indexGrowth, deadTuples, hotUpdates);
+    }
+
+    private static long query(String sql) throws SQLException {
+        return Long.parseLong(queryString(sql));
+    }
+
+    private static String queryString(String sql) throws SQLException {
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement() ;
+             ResultSet resultSet = stmt.executeQuery(sql)) {
+            resultSet.next();
+            return resultSet.getString(1);
+        }
+    }
+
+    private static class Stats {
+
+        private final int retries;
+        private final long wal;
+        private final long indexGrowth;
+        private final long deadTuples;
+        private final long hotUpdates;
+
+        private Stats(int retries, long wal, long indexGrowth, long deadTuples, long hotUpdates) {
+            this.retries = retries;
+            this.wal = wal;
+            this.indexGrowth = indexGrowth;
+            this.deadTuples = deadTuples;
+            this.hotUpdates = hotUpdates;
+        }
+
+        private long walPerRetry() {
+            return wal / retries;
+        }
+
+        @Override
+        public String toString() {
+            return "retries=" + retries + ", wal/retry=" + walPerRetry() + "b, indexGrowth=" + indexGrowth +
+                   "b, deadTuples=" + deadTuples + ", hotUpdates=" + hotUpdates;
+        }
+    }
+
+    private static final QueueStorageAbstraction<String> STORAGE_ABSTRACTION = new QueueStorageAbstraction<String>() {
+        String[] COLUMNS = new String[] {"job"};
+
+        @Override
+        public String[] columnList() {
+            return COLUMNS;
+        }
+
+        @Override
+        public String createJob(ResultSet resultSet, int startColumn) throws SQLException {
+            return resultSet.getString(startColumn);
+        }
+
+        @Override
+        public void saveJob(String job, PreparedStatement stmt, int startColumn) throws SQLException {
+            stmt.setString(startColumn, job);
+        }
+    };
+
+    private static DBCPostgreSQLContainer makePG() {
+        DBCPostgreSQLContainer pg = new DBCPostgreSQLContainer();
+        pg.start();
+        return pg;
+    }
+}
@@ -81,6 +81,7 @@ public class ThrottleTest {
                 long expectedDelay = action.get("delay").asLong();
                 boolean result = action.get("result").asBoolean();
 
+                assertThat("Expected delay for Test #" + ( 1 + i ), expectedDelay, is(throttle.delay()));
                 throttle.throttle();
                 assertThat("Expected wait for Test #" + ( 1 + i ), expectedDelay, is(sleep.get()));
                 throttle.register(result);
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-consumer
+ *
+ * pg-queue-consumer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-consumer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.consumer;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class WatermarksTest {
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testTick() throws Exception {
+        System.out.println("testTick");
+        Watermarks watermarks = new Watermarks(Arrays.asList("a"), 3, () -> {}, () -> {}, (q, b, a) -> {});
+        assertThat(watermarks.tick(3), is(false));
+        assertThat(watermarks.tick(3), is(false));
+        assertThat(watermarks.tick(2), is(true));
+        assertThat(watermarks.generation(), is(1L));
+        assertThat(watermarks.tick(2), is(false));
+        assertThat(watermarks.tick(2), is(true));
+        assertThat(watermarks.generation(), is(2L));
+
+        assertThat(watermarks.invalidate(1L), is(false)); // Someone else has rescanned
+        assertThat(watermarks.invalidate(2L), is(true));
+        assertThat(watermarks.generation(), is(3L));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testGetAndAdvance() throws Exception {
+        System.out.println("testGetAndAdvance");
+        AtomicInteger hits = new AtomicInteger();
+        AtomicInteger misses = new AtomicInteger();
+        AtomicInteger loads = new AtomicInteger();
+        Watermarks watermarks = new Watermarks(Arrays.asList("a", "b"), 100, hits::incrementAndGet, misses::incrementAndGet, (q, b, a) -> {});
+
+        assertThat(watermarks.get("a", q -> timestamp(100 + loads.incrementAndGet())), is(timestamp(101)));
+        assertThat(watermarks.get("a", q -> timestamp(100 + loads.incrementAndGet())), is(timestamp(101)));
+        watermarks.advance("a", timestamp(200));
+        watermarks.advance("a", timestamp(150)); // Never go back
+        assertThat(watermarks.get("a", q -> timestamp(100 + loads.incrementAndGet())), is(timestamp(200)));
+        assertThat(loads.get(), is(1));
+        assertThat(hits.get(), is(2));
+        assertThat(misses.get(), is(1));
+
+        // After a rescan, only one refreshes, the others use the old value
+        watermarks.invalidate(watermarks.generation());
+        Timestamp refreshed = watermarks.get("a", q -> {
+            loads.incrementAndGet();
+            assertThat(watermarks.get("a", q2 -> timestamp(-1)), is(timestamp(200)));
+            return timestamp(120);
+        });
+        assertThat(refreshed, is(timestamp(120)));
+        assertThat(watermarks.get("a", q -> timestamp(-1)), is(timestamp(120)));
+        assertThat(loads.get(), is(2));
+    }
+
+    private static Timestamp timestamp(long ms) {
+        return new Timestamp(ms);
+    }
+}
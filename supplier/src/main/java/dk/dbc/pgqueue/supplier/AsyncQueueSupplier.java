@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-supplier
+ *
+ * pg-queue-supplier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-supplier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.supplier;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Enqueue from many threads, with group commit
+ * <p>
+ * Jobs are put into a bounded buffer, and background flusher threads write
+ * them in batches, with one commit per batch. The returned future completes
+ * when the job has been committed (or exceptionally when the batch failed).
+ * <p>
+ * If the buffer is full, enqueue blocks until there's room.
+ * <p>
+ * Every returned future is completed, also when the supplier is closed while
+ * jobs are being enqueued.
+ * <p>
+ * Each flusher keeps its connection and prepared statements between batches.
+ * They are replaced when a batch fails.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ * @param <T> Job type
+ */
+public class AsyncQueueSupplier<T> implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncQueueSupplier.class);
+
+    private final QueueSupplier<T> supplier;
+    private final DataSource dataSource;
+    private final int maxBatchSize;
+    private final long maxLatencyNanos;
+    private final FlushListener listener;
+    private final BlockingQueue<Entry<T>> buffer;
+    private final List<Thread> flushers;
+    private final ReadWriteLock closeLock;
+
+    private volatile boolean running;
+
+    /**
+     * Callback for monitoring
+     */
+    @FunctionalInterface
+    public interface FlushListener {
+
+        /**
+         * Called after each batch has been committed or failed
+         *
+         * @param batchSize  number of jobs in the batch
+         * @param flushNanos how long it took to write and commit the batch
+         * @param success    if the batch has been committed
+         */
+        void flushed(int batchSize, long flushNanos, boolean success);
+    }
+
+    AsyncQueueSupplier(QueueSupplier<T> supplier, DataSource dataSource, int maxBatchSize, long maxLatency, int bufferSize, int flusherCount, FlushListener listener) {
+        this.supplier = supplier;
+        this.dataSource = dataSource;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatency);
+        this.listener = listener;
+        this.buffer = new ArrayBlockingQueue<>(bufferSize);
+        this.flushers = new ArrayList<>(flusherCount);
+        this.closeLock = new ReentrantReadWriteLock();
+        this.running = true;
+        for (int i = 0 ; i < flusherCount ; i++) {
+            Thread thread = new Thread(this::flusher, "pg-queue-flusher-" + i);
+            flushers.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * enqueue a job
+     *
+     * @param queue name of queue
+     * @param job   the job to queue
+     * @return future that completes when the job is committed
+     * @throws InterruptedException if interrupted while waiting for room in
+     *                              the buffer
+     */
+    public CompletableFuture<Void> enqueue(String queue, T job) throws InterruptedException {
+        return add(new Entry<>(queue, job, -1));
+    }
+
+    /**
+     * enqueue a job for delayed dequeuing
+     *
+     * @param queue     name of queue
+     * @param job       the job to queue
+     * @param postponed in how many milliseconds (from the time it is
+     *                  written)
+     * @return future that completes when the job is committed
+     * @throws InterruptedException if interrupted while waiting for room in
+     *                              the buffer
+     */
+    public CompletableFuture<Void> enqueue(String queue, T job, long postponed) throws InterruptedException {
+        if (postponed < 0)
+            throw new IllegalArgumentException("postponed cannot be negative");
+        return add(new Entry<>(queue, job, postponed));
+    }
+
+    /**
+     * Put a job into the buffer
+     * <p>
+     * This holds the read lock, so close cannot stop the flushers while a job
+     * is on its way into the buffer
+     * <p>
+     * If no flusher is alive, there will never be room in the buffer, and
+     * this gives up
+     *
+     * @param entry the job
+     * @return future that completes when the job is committed
+     * @throws InterruptedException if interrupted while waiting for room in
+     *                              the buffer
+     */
+    private CompletableFuture<Void> add(Entry<T> entry) throws InterruptedException {
+        closeLock.readLock().lockInterruptibly();
+        try {
+            if (!running)
+                throw new IllegalStateException("AsyncQueueSupplier has been closed");
+            while (!buffer.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+                if (flushers.stream().noneMatch(Thread::isAlive))
+                    throw new IllegalStateException("AsyncQueueSupplier has no running flushers");
+            }
+            return entry.future;
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stop accepting jobs, and let the flushers write the buffered jobs and
+     * stop
+     * <p>
+     * Jobs that are being enqueued (also those waiting for room in the buffer)
+     * are written, before the flushers stop
+     * <p>
+     * This doesn't wait for the flushers, see
+     * {@link #awaitTermination(long, java.util.concurrent.TimeUnit)}
+     */
+    public void shutdown() {
+        closeLock.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Wait for the flushers to stop, after {@link #shutdown()}
+     * <p>
+     * When the flushers have stopped, futures of jobs that haven't been
+     * written are completed exceptionally
+     *
+     * @param timeout how long to wait
+     * @param unit    unit of timeout
+     * @return if the flushers have stopped
+     * @throws InterruptedException if interrupted while waiting for the
+     *                              flushers
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread flusher : flushers) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (millis > 0)
+                flusher.join(millis);
+            if (flusher.isAlive())
+                return false;
+        }
+        failBuffered();
+        return true;
+    }
+
+    /**
+     * Stop accepting jobs, write the buffered jobs and stop the flushers
+     * <p>
+     * Jobs that are being enqueued (also those waiting for room in the buffer)
+     * are written, before the flushers stop
+     * <p>
+     * If interrupted, the flushers are interrupted, the futures of the jobs
+     * that haven't been written are completed exceptionally, and the
+     * interrupt flag is set upon return
+     */
+    @Override
+    public void close() {
+        shutdown();
+        boolean interrupted = false;
+        for (Thread flusher : flushers) {
+            while (flusher.isAlive()) {
+                try {
+                    flusher.join();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                    flushers.forEach(Thread::interrupt);
+                }
+            }
+        }
+        failBuffered();
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void failBuffered() {
+        IllegalStateException closed = new IllegalStateException("AsyncQueueSupplier has been closed");
+        for (Entry<T> entry = buffer.poll() ; entry != null ; entry = buffer.poll()) {
+            entry.future.completeExceptionally(closed);
+        }
+    }
+
+    private void flusher() {
+        Writer writer = new Writer();
+        ArrayList<Entry<T>> batch = new ArrayList<>(maxBatchSize);
+        try {
+            while (running || !buffer.isEmpty()) {
+                Entry<T> first = buffer.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                long deadline = first.created + maxLatencyNanos;
+                while (batch.size() < maxBatchSize) {
+                    Entry<T> entry = buffer.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (entry == null)
+                        break;
+                    batch.add(entry);
+                }
+                writer.flush(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException ex) {
+            log.error("Flusher interrupted: {}", ex.getMessage());
+            log.debug("Flusher interrupted:", ex);
+            batch.forEach(e -> e.future.completeExceptionally(ex));
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * A flushers connection, and a batch supplier on it
+     * <p>
+     * The batch supplier is kept for the lifetime of the connection, so the
+     * prepared statements are reused across batches
+     */
+    private class Writer {
+
+        private Connection connection;
+        private BatchQueueSupplier<T> batchSupplier;
+
+        /**
+         * Write and commit a batch, and complete the futures
+         * <p>
+         * If it fails the connection is closed, and a new one is opened for
+         * the next batch
+         *
+         * @param batch jobs to write
+         */
+        private void flush(List<Entry<T>> batch) {
+            long start = System.nanoTime();
+            try {
+                if (connection == null) {
+                    connection = dataSource.getConnection();
+                    connection.setAutoCommit(false);
+                    batchSupplier = supplier.batchSupplier(connection);
+                }
+                for (Entry<T> entry : batch) {
+                    if (entry.postponed < 0)
+                        batchSupplier.enqueue(entry.queue, entry.job);
+                    else
+                        batchSupplier.enqueue(entry.queue, entry.job, entry.postponed);
+                }
+                batchSupplier.flush();
+                connection.commit();
+                batch.forEach(e -> e.future.complete(null));
+                report(batch.size(), System.nanoTime() - start, true);
+            } catch (SQLException | RuntimeException ex) {
+                log.error("Error enqueuing batch of {}: {}", batch.size(), ex.getMessage());
+                log.debug("Error enqueuing batch of {}:", batch.size(), ex);
+                batch.forEach(e -> e.future.completeExceptionally(ex));
+                rollback(connection);
+                close();
+                report(batch.size(), System.nanoTime() - start, false);
+            }
+        }
+
+        private void close() {
+            if (batchSupplier != null) {
+                try {
+                    batchSupplier.abort();
+                } catch (SQLException ex) {
+                    log.error("Error closing statements: {}", ex.getMessage());
+                    log.debug("Error closing statements:", ex);
+                }
+                batchSupplier = null;
+            }
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (SQLException ex) {
+                    log.error("Error closing connection: {}", ex.getMessage());
+                    log.debug("Error closing connection:", ex);
+                }
+                connection = null;
+            }
+        }
+    }
+
+    private void report(int batchSize, long flushNanos, boolean success) {
+        try {
+            listener.flushed(batchSize, flushNanos, success);
+        } catch (RuntimeException ex) {
+            log.error("Error in flush listener: {}", ex.getMessage());
+            log.debug("Error in flush listener:", ex);
+        }
+    }
+
+    private static void rollback(Connection connection) {
+        if (connection == null)
+            return;
+        try {
+            connection.rollback();
+        } catch (SQLException ex) {
+            log.error("Error rolling back: {}", ex.getMessage());
+            log.debug("Error rolling back:", ex);
+        }
+    }
+
+    private static class Entry<T> {
+
+        private final String queue;
+        private final T job;
+        private final long postponed;
+        private final long created;
+        private final CompletableFuture<Void> future;
+
+        private Entry(String queue, T job, long postponed) {
+            this.queue = queue;
+            this.job = job;
+            this.postponed = postponed;
+            this.created = System.nanoTime();
+            this.future = new CompletableFuture<>();
+        }
+    }
+
+    /**
+     * Builder for {@link AsyncQueueSupplier}
+     *
+     * @param <T> Job type
+     */
+    public static class Builder<T> {
+
+        private final QueueSupplier<T> supplier;
+        private final DataSource dataSource;
+        private Integer maxBatchSize;
+        private Long maxLatency;
+        private Integer bufferSize;
+        private Integer flushers;
+        private FlushListener listener;
+
+        Builder(QueueSupplier<T> supplier, DataSource dataSource) {
+            this.supplier = supplier;
+            this.dataSource = dataSource;
+            this.maxBatchSize = null;
+            this.maxLatency = null;
+            this.bufferSize = null;
+            this.flushers = null;
+            this.listener = null;
+        }
+
+        /**
+         * Set the largest number of jobs written in one transaction
+         *
+         * @param maxBatchSize number of jobs (default 500)
+         * @return self
+         */
+        public Builder<T> maxBatchSize(int maxBatchSize) {
+            if (maxBatchSize < 1)
+                throw new IllegalArgumentException("maxBatchSize should be positive");
+            this.maxBatchSize = setOrFail(this.maxBatchSize, maxBatchSize, "maxBatchSize");
+            return this;
+        }
+
+        /**
+         * Set how long a job can wait for more jobs to join its batch
+         *
+         * @param maxLatency number of milliseconds (default 10)
+         * @return self
+         */
+        public Builder<T> maxLatency(long maxLatency) {
+            if (maxLatency < 0)
+                throw new IllegalArgumentException("maxLatency cannot be negative");
+            this.maxLatency = setOrFail(this.maxLatency, maxLatency, "maxLatency");
+            return this;
+        }
+
+        /**
+         * Set how many jobs can be buffered, before enqueue blocks
+         *
+         * @param bufferSize number of jobs (default 10000)
+         * @return self
+         */
+        public Builder<T> bufferSize(int bufferSize) {
+            if (bufferSize < 1)
+                throw new IllegalArgumentException("bufferSize should be positive");
+            this.bufferSize = setOrFail(this.bufferSize, bufferSize, "bufferSize");
+            return this;
+        }
+
+        /**
+         * Set how many threads (and database connections) write batches
+         *
+         * @param flushers number of threads (default 1)
+         * @return self
+         */
+        public Builder<T> flushers(int flushers) {
+            if (flushers < 1)
+                throw new IllegalArgumentException("flushers should be positive");
+            this.flushers = setOrFail(this.flushers, flushers, "flushers");
+            return this;
+        }
+
+        /**
+         * Set a callback for batch size and flush latency metrics
+         *
+         * @param listener called after each batch
+         * @return self
+         */
+        public Builder<T> flushListener(FlushListener listener) {
+            this.listener = setOrFail(this.listener, listener, "flushListener");
+            return this;
+        }
+
+        /**
+         * Start the flushers
+         *
+         * @return supplier, that should be closed when done
+         */
+        public AsyncQueueSupplier<T> build() {
+            return new AsyncQueueSupplier<>(supplier, dataSource,
+                                            maxBatchSize == null ? 500 : maxBatchSize,
+                                            maxLatency == null ? 10L : maxLatency,
+                                            bufferSize == null ? 10_000 : bufferSize,
+                                            flushers == null ? 1 : flushers,
+                                            listener == null ? (batchSize, flushNanos, success) -> {} : listener);
+        }
+
+        private static <T> T setOrFail(T field, T value, String fieldName) {
+            if (field != null) {
+                throw new IllegalArgumentException(fieldName + " has already been set");
+            }
+            return value;
+        }
+    }
+}
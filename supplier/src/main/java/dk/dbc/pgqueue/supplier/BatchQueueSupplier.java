@@ -18,11 +18,13 @@
  */
 package dk.dbc.pgqueue.supplier;
 
+import dk.dbc.pgqueue.common.DeduplicateAbstraction;
 import dk.dbc.pgqueue.common.QueueStorageAbstraction;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Optional;
 import org.slf4j.Logger;
@@ -36,6 +38,7 @@ import org.slf4j.LoggerFactory;
 public class BatchQueueSupplier<T> implements AutoCloseable {
 
     private static final Logger log = LoggerFactory.getLogger(BatchQueueSupplier.class);
+    private static final long NOW = Long.MIN_VALUE; // Coalesced job, that isn't postponed
 
     private final QueueStorageAbstraction<T> abstraction;
     private final Connection connection;
@@ -44,10 +47,14 @@ public class BatchQueueSupplier<T> implements AutoCloseable {
     private PreparedStatement insertNowStmt;
     private PreparedStatement insertLaterStmt;
     private final int executeEvery;
+    private final EnqueueDeduplicator<T> deduplicator;
+    private final DeduplicateAbstraction<T> coalesceAbstraction;
+    private final LinkedHashMap<List<Object>, Coalesced<T>> coalesced;
+    private long coalescedCount;
     private int toGoNow;   // 0 in these ha magic meaning: nothing has been queues
     private int toGoLater; // since lase executeBatch(). ie. no need to executeBatch() upon close()
 
-    BatchQueueSupplier(QueueStorageAbstraction<T> abstraction, Connection connection, String insertNowSql, String insertLaterSql, int executeEvery) {
+    BatchQueueSupplier(QueueStorageAbstraction<T> abstraction, Connection connection, String insertNowSql, String insertLaterSql, int executeEvery, EnqueueDeduplicator<T> deduplicator, DeduplicateAbstraction<T> coalesceAbstraction) {
         this.abstraction = abstraction;
         this.connection = connection;
         this.insertNowSql = insertNowSql;
@@ -55,6 +62,10 @@ public class BatchQueueSupplier<T> implements AutoCloseable {
         this.insertNowStmt = null;
         this.insertLaterStmt = null;
         this.executeEvery = executeEvery;
+        this.deduplicator = deduplicator;
+        this.coalesceAbstraction = coalesceAbstraction;
+        this.coalesced = new LinkedHashMap<>();
+        this.coalescedCount = 0;
         this.toGoNow = 0;
         this.toGoLater = 0;
     }
@@ -64,12 +75,32 @@ public class BatchQueueSupplier<T> implements AutoCloseable {
      * <p>
      * This might send the job to the database, or be postponed to later
      * delivery by {@link BatchQueueSupplier#close()}
+     * <p>
+     * With deduplication, a merge into a queued duplicate is sent at once
+     * <p>
+     * When coalescing, the job is merged with a pending duplicate, if any
      *
      * @param queue name of queue
      * @param job   the job to queue
      * @throws SQLException in case of communicating with database errors
      */
     public void enqueue(String queue, T job) throws SQLException {
+        if (coalesceAbstraction != null) {
+            coalesce(queue, job, NOW);
+        } else {
+            send(queue, job);
+        }
+    }
+
+    private void send(String queue, T job) throws SQLException {
+        if (deduplicator != null) {
+            if (deduplicator.merge(queue, job, 0))
+                return;
+            if (deduplicator.isDebouncing()) {
+                enqueueLater(queue, job, deduplicator.postponed(0));
+                return;
+            }
+        }
         PreparedStatement stmt = getInsertNowStmt();
         int pos = 1;
         stmt.setString(pos++, queue);
@@ -88,6 +119,10 @@ public class BatchQueueSupplier<T> implements AutoCloseable {
      * <p>
      * This might send the job to the database, or be postponed to later
      * delivery by {@link BatchQueueSupplier#close()}
+     * <p>
+     * With deduplication, a merge into a queued duplicate is sent at once
+     * <p>
+     * When coalescing, the job is merged with a pending duplicate, if any
      *
      * @param queue     name of queue
      * @param job       the job to queue
@@ -95,6 +130,23 @@ public class BatchQueueSupplier<T> implements AutoCloseable {
      * @throws SQLException in case of communicating with database errors
      */
     public void enqueue(String queue, T job, long postponed) throws SQLException {
+        if (coalesceAbstraction != null) {
+            coalesce(queue, job, postponed);
+        } else {
+            send(queue, job, postponed);
+        }
+    }
+
+    private void send(String queue, T job, long postponed) throws SQLException {
+        if (deduplicator != null) {
+            if (deduplicator.merge(queue, job, postponed))
+                return;
+            postponed = deduplicator.postponed(postponed);
+        }
+        enqueueLater(queue, job, postponed);
+    }
+
+    private void enqueueLater(String queue, T job, long postponed) throws SQLException {
         PreparedStatement stmt = getInsertLaterStmt();
         int pos = 1;
         stmt.setString(pos++, queue);
@@ -109,6 +161,63 @@ public class BatchQueueSupplier<T> implements AutoCloseable {
         }
     }
 
+    /**
+     * Number of enqueues, that has been merged into pending jobs, and not sent
+     * to the database
+     *
+     * @return number of coalesced jobs (0 if not coalescing)
+     */
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * Keep the job until the batch is full, merging it with a pending
+     * duplicate
+     *
+     * @param queue     name of queue
+     * @param job       the job to queue
+     * @param postponed in how many milliseconds or {@link #NOW}
+     * @throws SQLException in case of communicating with database errors
+     */
+    private void coalesce(String queue, T job, long postponed) throws SQLException {
+        List<Object> key = DuplicateKey.of(queue, coalesceAbstraction, job);
+        Coalesced<T> pending = coalesced.get(key);
+        if (pending == null) {
+            coalesced.put(key, new Coalesced<>(queue, job, postponed));
+            if (coalesced.size() == executeEvery) {
+                sendCoalesced();
+                if (toGoNow != 0) {
+                    log.debug("Sending 'now' batch");
+                    insertNowStmt.executeBatch();
+                    toGoNow = 0;
+                }
+                if (toGoLater != 0) {
+                    log.debug("Sending 'later' batch");
+                    insertLaterStmt.executeBatch();
+                    toGoLater = 0;
+                }
+            }
+        } else {
+            pending.job = coalesceAbstraction.mergeJob(pending.job, job);
+            if (postponed < pending.postponed) // The merged job is due when the first is
+                pending.postponed = postponed;
+            coalescedCount++;
+        }
+    }
+
+    private void sendCoalesced() throws SQLException {
+        ArrayList<Coalesced<T>> jobs = new ArrayList<>(coalesced.values());
+        coalesced.clear();
+        for (Coalesced<T> pending : jobs) {
+            if (pending.postponed == NOW) {
+                send(pending.queue, pending.job);
+            } else {
+                send(pending.queue, pending.job, pending.postponed);
+            }
+        }
+    }
+
     private PreparedStatement getInsertNowStmt() throws SQLException {
         if (insertNowStmt == null) {
             insertNowStmt = connection.prepareStatement(insertNowSql);
@@ -123,6 +232,44 @@ public class BatchQueueSupplier<T> implements AutoCloseable {
         return insertLaterStmt;
     }
 
+    /**
+     * Send pending batches, but keep the statements prepared
+     * <p>
+     * This is for reusing the supplier across transactions on the same
+     * connection
+     *
+     * @throws SQLException in case of communicating with database errors
+     */
+    void flush() throws SQLException {
+        if (!coalesced.isEmpty()) {
+            sendCoalesced();
+        }
+        if (toGoNow != 0) {
+            toGoNow = 0;
+            log.debug("Sending 'now' batch");
+            insertNowStmt.executeBatch();
+        }
+        if (toGoLater != 0) {
+            toGoLater = 0;
+            log.debug("Sending 'later' batch");
+            insertLaterStmt.executeBatch();
+        }
+    }
+
+    /**
+     * Close statements without sending pending batches
+     * <p>
+     * This is for when the transaction has failed
+     *
+     * @throws SQLException The first encountered exception when trying to close
+     */
+    void abort() throws SQLException {
+        coalesced.clear();
+        toGoNow = 0;
+        toGoLater = 0;
+        close();
+    }
+
     /**
      * Close statements and send (last) batches
      *
@@ -131,7 +278,11 @@ public class BatchQueueSupplier<T> implements AutoCloseable {
      */
     @Override
     public void close() throws SQLException {
-        List<Optional<SQLException>> exceptions = new ArrayList<>(4);
+        List<Optional<SQLException>> exceptions = new ArrayList<>(7);
+
+        if (!coalesced.isEmpty()) {
+            exceptions.add(QueueSupplier.wrapSql("Enqueue coalesced jobs", this::sendCoalesced));
+        }
 
         if (insertNowStmt != null) {
             if (toGoNow != 0) {
@@ -147,6 +298,9 @@ public class BatchQueueSupplier<T> implements AutoCloseable {
             }
             exceptions.add(QueueSupplier.wrapSql("Close enqueue later statement", () -> insertLaterStmt.close()));
         }
+        if (deduplicator != null) {
+            exceptions.addAll(deduplicator.close());
+        }
         Optional<SQLException> firstException = exceptions.stream()
                 .filter(Optional::isPresent)
                 .map(Optional::get)
@@ -154,4 +308,17 @@ public class BatchQueueSupplier<T> implements AutoCloseable {
         if (firstException.isPresent())
             throw firstException.get();
     }
+
+    private static class Coalesced<T> {
+
+        private final String queue;
+        private T job;
+        private long postponed;
+
+        private Coalesced(String queue, T job, long postponed) {
+            this.queue = queue;
+            this.job = job;
+            this.postponed = postponed;
+        }
+    }
 }
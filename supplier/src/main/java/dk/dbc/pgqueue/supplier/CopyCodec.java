@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-supplier
+ *
+ * pg-queue-supplier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-supplier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.supplier;
+
+/**
+ * Conversion of a job into values for COPY
+ * <p>
+ * This is the {@link CopyQueueSupplier} counterpart of
+ * {@link dk.dbc.pgqueue.common.QueueStorageAbstraction#saveJob(java.lang.Object, java.sql.PreparedStatement, int)}
+ *
+ * @author DBC {@literal <dbc.dk>}
+ * @param <T> Job type
+ */
+@FunctionalInterface
+public interface CopyCodec<T> {
+
+    /**
+     * Convert a job into PostgreSQL text representations of its columns
+     *
+     * @param job the job to convert
+     * @return a value for each column in
+     *         {@link dk.dbc.pgqueue.common.QueueStorageAbstraction#columnList()}
+     *         (in that order), null for SQL NULL
+     */
+    String[] encode(T job);
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-supplier
+ *
+ * pg-queue-supplier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-supplier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.supplier;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bulk enqueue using COPY (CSV format)
+ * <p>
+ * Jobs are collected in chunks, and each chunk is sent as one COPY for
+ * immediate jobs and one for postponed jobs. The connection is only used while
+ * a chunk is sent, so other statements can be run between enqueues.
+ * <p>
+ * Postponed jobs are relative to the database clock when the chunk is sent,
+ * like the INSERT of {@link BatchQueueSupplier}.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ * @param <T> Job type
+ */
+public class CopyQueueSupplier<T> implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(CopyQueueSupplier.class);
+
+    private final CopyCodec<T> codec;
+    private final Connection connection;
+    private final String copyNowSql;
+    private final String copyLaterSql;
+    private final int columnCount;
+    private final int chunkSize;
+    private final StringBuilder nowRows;
+    private final List<LaterRow> laterRows;
+    private int pending;
+
+    CopyQueueSupplier(CopyCodec<T> codec, Connection connection, String copyNowSql, String copyLaterSql, int columnCount, int chunkSize) {
+        this.codec = codec;
+        this.connection = connection;
+        this.copyNowSql = copyNowSql;
+        this.copyLaterSql = copyLaterSql;
+        this.columnCount = columnCount;
+        this.chunkSize = chunkSize;
+        this.nowRows = new StringBuilder();
+        this.laterRows = new ArrayList<>();
+        this.pending = 0;
+    }
+
+    /**
+     * enqueue a job
+     * <p>
+     * This might send the chunk to the database, or be postponed to later
+     * delivery by {@link #flush()} or {@link #close()}
+     *
+     * @param queue name of queue
+     * @param job   the job to queue
+     * @throws SQLException in case of communicating with database errors
+     */
+    public void enqueue(String queue, T job) throws SQLException {
+        appendCsv(nowRows, queue);
+        appendColumns(nowRows, job);
+        nowRows.append('\n');
+        added();
+    }
+
+    /**
+     * enqueue a job for delayed dequeuing
+     * <p>
+     * This might send the chunk to the database, or be postponed to later
+     * delivery by {@link #flush()} or {@link #close()}
+     *
+     * @param queue     name of queue
+     * @param job       the job to queue
+     * @param postponed in how many milliseconds
+     * @throws SQLException in case of communicating with database errors
+     */
+    public void enqueue(String queue, T job, long postponed) throws SQLException {
+        StringBuilder columns = new StringBuilder();
+        appendColumns(columns, job);
+        laterRows.add(new LaterRow(queue, postponed, columns.toString()));
+        added();
+    }
+
+    /**
+     * Send all collected jobs to the database
+     *
+     * @throws SQLException in case of communicating with database errors
+     */
+    public void flush() throws SQLException {
+        if (nowRows.length() != 0) {
+            log.debug("Copying 'now' chunk");
+            copyIn(copyNowSql, nowRows.toString());
+            nowRows.setLength(0);
+        }
+        if (!laterRows.isEmpty()) {
+            log.debug("Copying 'later' chunk");
+            long now = databaseClock();
+            StringBuilder rows = new StringBuilder();
+            for (LaterRow row : laterRows) {
+                appendCsv(rows, row.queue);
+                rows.append(',');
+                appendCsv(rows, Instant.ofEpochMilli(now + row.postponed).toString());
+                rows.append(row.columns).append('\n');
+            }
+            copyIn(copyLaterSql, rows.toString());
+            laterRows.clear();
+        }
+        pending = 0;
+    }
+
+    /**
+     * Send the last chunk
+     *
+     * @throws SQLException in case of communicating with database errors
+     */
+    @Override
+    public void close() throws SQLException {
+        flush();
+    }
+
+    private void added() throws SQLException {
+        if (++pending == chunkSize)
+            flush();
+    }
+
+    private void appendColumns(StringBuilder sb, T job) {
+        String[] values = codec.encode(job);
+        if (values.length != columnCount)
+            throw new IllegalArgumentException("Expected " + columnCount + " values from codec, got " + values.length);
+        for (String value : values) {
+            sb.append(',');
+            appendCsv(sb, value);
+        }
+    }
+
+    private void copyIn(String sql, String rows) throws SQLException {
+        try {
+            CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+            long count = copyManager.copyIn(sql, new StringReader(rows));
+            log.debug("Copied {} rows", count);
+        } catch (IOException ex) {
+            throw new SQLException("Error sending COPY data", ex);
+        }
+    }
+
+    private long databaseClock() throws SQLException {
+        try (Statement stmt = connection.createStatement() ;
+             ResultSet resultSet = stmt.executeQuery("SELECT clock_timestamp()")) {
+            resultSet.next();
+            return resultSet.getTimestamp(1).getTime();
+        }
+    }
+
+    /**
+     * Append a value in CSV format, where an unquoted empty value is NULL
+     *
+     * @param sb    where to append
+     * @param value value or null
+     */
+    static void appendCsv(StringBuilder sb, String value) {
+        if (value == null)
+            return;
+        sb.append('"');
+        for (int i = 0 ; i < value.length() ; i++) {
+            char c = value.charAt(i);
+            if (c == '"')
+                sb.append('"');
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    private static class LaterRow {
+
+        private final String queue;
+        private final long postponed;
+        private final String columns;
+
+        private LaterRow(String queue, long postponed, String columns) {
+            this.queue = queue;
+            this.postponed = postponed;
+            this.columns = columns;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-supplier
+ *
+ * pg-queue-supplier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-supplier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.supplier;
+
+import dk.dbc.pgqueue.common.DeduplicateAbstraction;
+import dk.dbc.pgqueue.common.QueueStorageAbstraction;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Storage abstraction, that after the job columns binds the duplicate values,
+ * for the dedup_hash expression of the insert statements
+ *
+ * @author DBC {@literal <dbc.dk>}
+ * @param <T> Job type
+ */
+class DeduplicateHashStorage<T> implements QueueStorageAbstraction<T> {
+
+    private final QueueStorageAbstraction<T> abstraction;
+    private final DeduplicateAbstraction<T> hashAbstraction;
+    private final int columnCount;
+
+    DeduplicateHashStorage(QueueStorageAbstraction<T> abstraction, DeduplicateAbstraction<T> hashAbstraction) {
+        this.abstraction = abstraction;
+        this.hashAbstraction = hashAbstraction;
+        this.columnCount = abstraction.columnList().length;
+    }
+
+    @Override
+    public String[] columnList() {
+        return abstraction.columnList();
+    }
+
+    @Override
+    public T createJob(ResultSet resultSet, int startColumn) throws SQLException {
+        return abstraction.createJob(resultSet, startColumn);
+    }
+
+    @Override
+    public void saveJob(T job, PreparedStatement stmt, int startColumn) throws SQLException {
+        abstraction.saveJob(job, stmt, startColumn);
+        hashAbstraction.duplicateValues(job, stmt, startColumn + columnCount);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-supplier
+ *
+ * pg-queue-supplier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-supplier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.supplier;
+
+import dk.dbc.pgqueue.common.DeduplicateAbstraction;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The duplicate values of a job, as a map key
+ * <p>
+ * {@link DeduplicateAbstraction#duplicateValues(java.lang.Object, java.sql.PreparedStatement, int)}
+ * only knows how to put the values into a statement, so the values are
+ * captured from a statement proxy, that records the set*() calls.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+final class DuplicateKey {
+
+    private DuplicateKey() {
+    }
+
+    /**
+     * Make a key, that is equal for jobs, that are duplicates of each other
+     *
+     * @param <T>                    Job type
+     * @param queue                  name of queue
+     * @param deduplicateAbstraction the duplicate values provider
+     * @param job                    the job
+     * @return list of queue and duplicate values
+     * @throws SQLException if the abstraction fails
+     */
+    static <T> List<Object> of(String queue, DeduplicateAbstraction<T> deduplicateAbstraction, T job) throws SQLException {
+        int count = deduplicateAbstraction.duplicateDeleteColumnList().length;
+        ArrayList<Object> values = new ArrayList<>(count + 1);
+        for (int i = 0 ; i <= count ; i++) {
+            values.add(null);
+        }
+        values.set(0, queue);
+        PreparedStatement capture = (PreparedStatement) Proxy.newProxyInstance(
+                DuplicateKey.class.getClassLoader(),
+                new Class<?>[] {PreparedStatement.class},
+                (proxy, method, args) -> {
+            if (!method.getName().startsWith("set") || args == null || args.length < 2 || !( args[0] instanceof Integer ))
+                throw new UnsupportedOperationException("Cannot capture duplicate values from: " + method.getName());
+            int pos = (Integer) args[0];
+            if (pos < 1 || pos > count)
+                throw new IllegalArgumentException("Duplicate value position out of range: " + pos);
+            Object value = method.getName().equals("setNull") ? null : args[1];
+            values.set(pos, value instanceof byte[] ? ByteBuffer.wrap((byte[]) value) : value);
+            return null;
+        });
+        deduplicateAbstraction.duplicateValues(job, capture, 1);
+        return values;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2026 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of pg-queue-supplier
+ *
+ * pg-queue-supplier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * pg-queue-supplier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.pgqueue.supplier;
+
+import dk.dbc.pgqueue.common.DeduplicateAbstraction;
+import dk.dbc.pgqueue.common.QueueStorageAbstraction;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Enqueue-time deduplication
+ * <p>
+ * Before a job is inserted, a queued row with the same duplicate values is
+ * looked for. Rows that are locked (being processed or deduplicated by a
+ * consumer) or leased are skipped. If one is found, the jobs are merged using
+ * {@link DeduplicateAbstraction#mergeJob(java.lang.Object, java.lang.Object)}
+ * and the row is updated instead.
+ * <p>
+ * Without debounce, the merged job is due when the first of the jobs is due.
+ * With debounce, the job is (re)postponed by the debounce time, so a burst of
+ * jobs collapses into one, that is run when the burst is over.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ * @param <T> Job type
+ */
+class EnqueueDeduplicator<T> {
+
+    private final QueueStorageAbstraction<T> abstraction;
+    private final DeduplicateAbstraction<T> deduplicateAbstraction;
+    private final Connection connection;
+    private final String selectSql;
+    private final String updateSql;
+    private final long debounce;
+    private final int columnCount;
+    private final boolean hashed;
+    private PreparedStatement selectStmt;
+    private PreparedStatement updateStmt;
+
+    EnqueueDeduplicator(QueueStorageAbstraction<T> abstraction, DeduplicateAbstraction<T> deduplicateAbstraction, Connection connection, String selectSql, String updateSql, long debounce, boolean hashed) {
+        this.abstraction = abstraction;
+        this.deduplicateAbstraction = deduplicateAbstraction;
+        this.connection = connection;
+        this.selectSql = selectSql;
+        this.updateSql = updateSql;
+        this.debounce = debounce;
+        this.columnCount = abstraction.columnList().length;
+        this.hashed = hashed;
+        this.selectStmt = null;
+        this.updateStmt = null;
+    }
+
+    /**
+     * Merge a job into a queued duplicate
+     *
+     * @param queue     name of queue
+     * @param job       the job to queue
+     * @param postponed in how many milliseconds the job should be due
+     * @return if the job has been merged, and shouldn't be inserted
+     * @throws SQLException in case of communicating with database errors
+     */
+    boolean merge(String queue, T job, long postponed) throws SQLException {
+        PreparedStatement select = getSelectStmt();
+        select.setString(1, queue);
+        int column = 2;
+        if (hashed) {
+            deduplicateAbstraction.duplicateValues(job, select, column);
+            column += deduplicateAbstraction.duplicateDeleteColumnList().length;
+        }
+        deduplicateAbstraction.duplicateValues(job, select, column);
+        String ctid;
+        T merged;
+        try (ResultSet resultSet = select.executeQuery()) {
+            if (!resultSet.next())
+                return false;
+            ctid = resultSet.getString(1);
+            merged = deduplicateAbstraction.mergeJob(abstraction.createJob(resultSet, 2), job);
+        }
+        PreparedStatement update = getUpdateStmt();
+        abstraction.saveJob(merged, update, 1);
+        int pos = columnCount + 1;
+        update.setLong(pos++, postponed(postponed));
+        update.setString(pos++, queue);
+        update.setString(pos++, ctid);
+        update.executeUpdate();
+        return true;
+    }
+
+    /**
+     * When a new row should be due
+     *
+     * @param postponed in how many milliseconds the job should be due
+     * @return milliseconds including debounce
+     */
+    long postponed(long postponed) {
+        return postponed + debounce;
+    }
+
+    /**
+     * Should jobs that are due now be inserted as postponed
+     *
+     * @return if debounce is in effect
+     */
+    boolean isDebouncing() {
+        return debounce > 0;
+    }
+
+    private PreparedStatement getSelectStmt() throws SQLException {
+        if (selectStmt == null) {
+            selectStmt = connection.prepareStatement(selectSql);
+        }
+        return selectStmt;
+    }
+
+    private PreparedStatement getUpdateStmt() throws SQLException {
+        if (updateStmt == null) {
+            updateStmt = connection.prepareStatement(updateSql);
+        }
+        return updateStmt;
+    }
+
+    List<Optional<SQLException>> close() {
+        List<Optional<SQLException>> exceptions = new ArrayList<>(2);
+        if (selectStmt != null) {
+            exceptions.add(QueueSupplier.wrapSql("Close deduplicate select statement", () -> selectStmt.close()));
+        }
+        if (updateStmt != null) {
+            exceptions.add(QueueSupplier.wrapSql("Close deduplicate update statement", () -> updateStmt.close()));
+        }
+        return exceptions;
+    }
+}
@@ -39,14 +39,16 @@ public class PreparedQueueSupplier<T> implements AutoCloseable {
     private final String insertLaterSql;
     private PreparedStatement insertNowStmt;
     private PreparedStatement insertLaterStmt;
+    private final EnqueueDeduplicator<T> deduplicator;
 
-    PreparedQueueSupplier(QueueStorageAbstraction<T> abstraction, Connection connection, String insertNowSql, String insertLaterSql) {
+    PreparedQueueSupplier(QueueStorageAbstraction<T> abstraction, Connection connection, String insertNowSql, String insertLaterSql, EnqueueDeduplicator<T> deduplicator) {
         this.abstraction = abstraction;
         this.connection = connection;
         this.insertNowSql = insertNowSql;
         this.insertLaterSql = insertLaterSql;
         this.insertNowStmt = null;
         this.insertLaterStmt = null;
+        this.deduplicator = deduplicator;
     }
 
     /**
@@ -57,6 +59,14 @@ public class PreparedQueueSupplier<T> implements AutoCloseable {
      * @throws SQLException in case of communicating with database errors
      */
     public void enqueue(String queue, T job) throws SQLException {
+        if (deduplicator != null) {
+            if (deduplicator.merge(queue, job, 0))
+                return;
+            if (deduplicator.isDebouncing()) {
+                enqueueLater(queue, job, deduplicator.postponed(0));
+                return;
+            }
+        }
         PreparedStatement stmt = getInsertNowStmt();
         int pos = 1;
         stmt.setString(pos++, queue);
@@ -73,6 +83,15 @@ public class PreparedQueueSupplier<T> implements AutoCloseable {
      * @throws SQLException in case of communicating with database errors
      */
     public void enqueue(String queue, T job, long postponed) throws SQLException {
+        if (deduplicator != null) {
+            if (deduplicator.merge(queue, job, postponed))
+                return;
+            postponed = deduplicator.postponed(postponed);
+        }
+        enqueueLater(queue, job, postponed);
+    }
+
+    private void enqueueLater(String queue, T job, long postponed) throws SQLException {
         PreparedStatement stmt = getInsertLaterStmt();
         int pos = 1;
         stmt.setString(pos++, queue);
@@ -99,6 +118,10 @@ public class PreparedQueueSupplier<T> implements AutoCloseable {
     public void close() throws SQLException {
         List<Optional<SQLException>> exceptions = new ArrayList<>(4);
 
+        if (deduplicator != null) {
+            exceptions.addAll(deduplicator.close());
+        }
+
         if (insertNowStmt != null) {
             exceptions.add(QueueSupplier.wrapSql("Close enqueue now statement", () -> insertNowStmt.close()));
         }
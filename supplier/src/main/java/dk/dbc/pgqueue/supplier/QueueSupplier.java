@@ -18,11 +18,16 @@
  */
 package dk.dbc.pgqueue.supplier;
 
+import dk.dbc.pgqueue.common.DeduplicateAbstraction;
+import dk.dbc.pgqueue.common.DeduplicateHash;
 import dk.dbc.pgqueue.common.QueueStorageAbstraction;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Optional;
+import java.util.stream.Collectors;
+import javax.sql.DataSource;
 
 /**
  *
@@ -32,23 +37,139 @@ import java.util.Optional;
 public class QueueSupplier<T> {
 
     private final QueueStorageAbstraction<T> abstraction;
+    private final DeduplicateAbstraction<T> deduplicateAbstraction;
+    private final long debounce;
+    private final DeduplicateAbstraction<T> hashAbstraction;
+    private final boolean hashLookup;
+    private final QueueStorageAbstraction<T> insertAbstraction;
+    private final String deduplicateSelectSql;
+    private final String deduplicateUpdateSql;
     private final String insertNowSql;
     private final String insertLaterSql;
+    private final String copyNowSql;
+    private final String copyLaterSql;
 
     public QueueSupplier(QueueStorageAbstraction<T> storageAbstraction) {
+        this(storageAbstraction, null, 0);
+    }
+
+    /**
+     * Supplier that merges jobs into queued duplicates, instead of inserting
+     * new rows
+     * <p>
+     * The storage abstraction needs to be able to create jobs, to merge them
+     * <p>
+     * Remember to create an index on consumer and the duplicate columns
+     *
+     * @param storageAbstraction     database/job converter
+     * @param deduplicateAbstraction how to find and merge duplicates
+     */
+    public QueueSupplier(QueueStorageAbstraction<T> storageAbstraction, DeduplicateAbstraction<T> deduplicateAbstraction) {
+        this(storageAbstraction, deduplicateAbstraction, 0);
+    }
+
+    /**
+     * Supplier that merges jobs into queued duplicates, and debounces them
+     * <p>
+     * Every job is postponed by the debounce time, and when merged into a
+     * queued duplicate, that is postponed too. This way a burst of duplicates
+     * ends up as one job, that is run when the burst is over.
+     *
+     * @param storageAbstraction     database/job converter
+     * @param deduplicateAbstraction how to find and merge duplicates
+     * @param debounce               number of milliseconds to wait for more
+     *                               duplicates (0 for no debounce)
+     */
+    public QueueSupplier(QueueStorageAbstraction<T> storageAbstraction, DeduplicateAbstraction<T> deduplicateAbstraction, long debounce) {
+        this(storageAbstraction, deduplicateAbstraction, debounce, null, false);
+    }
+
+    private QueueSupplier(QueueStorageAbstraction<T> storageAbstraction, DeduplicateAbstraction<T> deduplicateAbstraction, long debounce, DeduplicateAbstraction<T> hashAbstraction, boolean hashLookup) {
+        if (debounce < 0)
+            throw new IllegalArgumentException("debounce cannot be negative");
         this.abstraction = storageAbstraction;
+        this.deduplicateAbstraction = deduplicateAbstraction;
+        this.debounce = debounce;
+        this.hashAbstraction = hashAbstraction;
+        this.hashLookup = hashLookup;
         String columns = String.join(", ", abstraction.columnList());
         String placeholders = String.join(", ", Collections.nCopies(abstraction.columnList().length, "?"));
+        String insertColumns = columns;
+        String insertPlaceholders = placeholders;
+        if (hashAbstraction == null) {
+            this.insertAbstraction = abstraction;
+        } else {
+            this.insertAbstraction = new DeduplicateHashStorage<>(abstraction, hashAbstraction);
+            insertColumns += ", " + DeduplicateHash.COLUMN;
+            insertPlaceholders += ", " + DeduplicateHash.expression(hashAbstraction);
+        }
         this.insertNowSql = "INSERT INTO queue(consumer, " +
-                            columns +
+                            insertColumns +
                             ") VALUES(?, " +
-                            placeholders +
+                            insertPlaceholders +
                             ")";
         this.insertLaterSql = "INSERT INTO queue(consumer, dequeueAfter, " +
-                              columns +
+                              insertColumns +
                               ") VALUES(?, clock_timestamp() + ? * INTERVAL '1 MILLISECONDS', " +
-                              placeholders +
+                              insertPlaceholders +
                               ")";
+        this.copyNowSql = "COPY queue(consumer, " +
+                          columns +
+                          ") FROM STDIN (FORMAT csv)";
+        this.copyLaterSql = "COPY queue(consumer, dequeueAfter, " +
+                            columns +
+                            ") FROM STDIN (FORMAT csv)";
+        if (deduplicateAbstraction == null) {
+            this.deduplicateSelectSql = null;
+            this.deduplicateUpdateSql = null;
+        } else {
+            this.deduplicateSelectSql = "SELECT ctid::TEXT, " +
+                                        columns +
+                                        " FROM queue WHERE consumer=? AND " +
+                                        ( hashLookup ? DeduplicateHash.COLUMN + "=" + DeduplicateHash.expression(hashAbstraction) + " AND " : "" ) +
+                                        Arrays.stream(deduplicateAbstraction.duplicateDeleteColumnList())
+                                                .map(c -> c + "=?")
+                                                .collect(Collectors.joining(" AND ")) +
+                                        " AND leasedUntil IS NULL LIMIT 1 FOR UPDATE SKIP LOCKED";
+            this.deduplicateUpdateSql = "UPDATE queue SET " +
+                                        Arrays.stream(abstraction.columnList())
+                                                .map(c -> c + "=?")
+                                                .collect(Collectors.joining(", ")) +
+                                        ", dequeueAfter=" + ( debounce > 0 ? "GREATEST" : "LEAST" ) +
+                                        "(dequeueAfter, clock_timestamp() + ? * INTERVAL '1 MILLISECONDS')" +
+                                        " WHERE consumer=? AND ctid=?::TID";
+        }
+    }
+
+    /**
+     * A supplier like this, that also sets the dedup_hash column of the jobs
+     * it enqueues
+     * <p>
+     * Consumers configured with the same abstraction and deduplicateHash() use
+     * it to look up duplicates by index. Duplicates this supplier merges are
+     * not looked up by hash, see {@link #withDeduplicateHash()}.
+     * <p>
+     * Jobs enqueued using COPY cannot have a hash.
+     *
+     * @param hashAbstraction definition of what a duplicate job is
+     * @return new supplier
+     */
+    public QueueSupplier<T> withDeduplicateHash(DeduplicateAbstraction<T> hashAbstraction) {
+        return new QueueSupplier<>(abstraction, deduplicateAbstraction, debounce, hashAbstraction, false);
+    }
+
+    /**
+     * A supplier like this, that sets the dedup_hash column from the
+     * abstraction it merges duplicates with, and looks up duplicates by hash
+     * <p>
+     * Jobs enqueued using COPY cannot have a hash.
+     *
+     * @return new supplier
+     */
+    public QueueSupplier<T> withDeduplicateHash() {
+        if (deduplicateAbstraction == null)
+            throw new IllegalStateException("Hash lookup requires a supplier, that merges duplicates");
+        return new QueueSupplier<>(abstraction, deduplicateAbstraction, debounce, deduplicateAbstraction, true);
     }
 
     /**
@@ -58,7 +179,7 @@ public class QueueSupplier<T> {
      * @return object with prepared statements placeholders
      */
     public PreparedQueueSupplier<T> preparedSupplier(Connection connection) {
-        return new PreparedQueueSupplier<>(abstraction, connection, insertNowSql, insertLaterSql);
+        return new PreparedQueueSupplier<>(insertAbstraction, connection, insertNowSql, insertLaterSql, deduplicator(connection));
     }
 
     /**
@@ -72,7 +193,7 @@ public class QueueSupplier<T> {
      * @return object with prepared statements placeholders
      */
     public BatchQueueSupplier<T> batchSupplier(Connection connection, int batchSize) {
-        return new BatchQueueSupplier<>(abstraction, connection, insertNowSql, insertLaterSql, batchSize);
+        return new BatchQueueSupplier<>(insertAbstraction, connection, insertNowSql, insertLaterSql, batchSize, deduplicator(connection), null);
     }
 
     /**
@@ -84,7 +205,84 @@ public class QueueSupplier<T> {
      * @return object with prepared statements placeholders
      */
     public BatchQueueSupplier<T> batchSupplier(Connection connection) {
-        return new BatchQueueSupplier<>(abstraction, connection, insertNowSql, insertLaterSql, -1);
+        return new BatchQueueSupplier<>(insertAbstraction, connection, insertNowSql, insertLaterSql, -1, deduplicator(connection), null);
+    }
+
+    /**
+     * Create a supplier with (lazy) prepares statements, and batching, where
+     * duplicates within the batch are merged before it is sent
+     * <p>
+     * Jobs are kept in memory until there are batchSize different jobs, or
+     * the supplier is closed. See
+     * {@link BatchQueueSupplier#getCoalescedCount()} for the number of merged
+     * jobs.
+     *
+     * @param connection             database connection to enqueue upon
+     * @param deduplicateAbstraction how to find and merge duplicates
+     * @param batchSize              execute every n different jobs
+     * @return object with prepared statements placeholders
+     */
+    public BatchQueueSupplier<T> coalescingBatchSupplier(Connection connection, DeduplicateAbstraction<T> deduplicateAbstraction, int batchSize) {
+        return new BatchQueueSupplier<>(insertAbstraction, connection, insertNowSql, insertLaterSql, batchSize, deduplicator(connection), deduplicateAbstraction);
+    }
+
+    /**
+     * Create a supplier with (lazy) prepares statements, and batching, where
+     * duplicates are merged before they are sent
+     * <p>
+     * The batch is sent when this is closed
+     *
+     * @param connection             database connection to enqueue upon
+     * @param deduplicateAbstraction how to find and merge duplicates
+     * @return object with prepared statements placeholders
+     */
+    public BatchQueueSupplier<T> coalescingBatchSupplier(Connection connection, DeduplicateAbstraction<T> deduplicateAbstraction) {
+        return new BatchQueueSupplier<>(insertAbstraction, connection, insertNowSql, insertLaterSql, -1, deduplicator(connection), deduplicateAbstraction);
+    }
+
+    /**
+     * Create a supplier, that uses COPY for bulk loading
+     * <p>
+     * The last chunk is sent when this is closed
+     *
+     * @param connection database connection to enqueue upon (a PostgreSQL
+     *                   connection, or a wrapper of one)
+     * @param codec      conversion of jobs into column values
+     * @param chunkSize  send every n enqueues
+     * @return object collecting jobs for COPY
+     */
+    public CopyQueueSupplier<T> copySupplier(Connection connection, CopyCodec<T> codec, int chunkSize) {
+        if (deduplicateAbstraction != null)
+            throw new IllegalStateException("COPY cannot merge duplicates, use a supplier without deduplication");
+        if (hashAbstraction != null)
+            throw new IllegalStateException("COPY cannot set the dedup_hash column, use a supplier without deduplicate hash");
+        return new CopyQueueSupplier<>(codec, connection, copyNowSql, copyLaterSql, abstraction.columnList().length, chunkSize);
+    }
+
+    /**
+     * Create a supplier, that uses COPY for bulk loading, in chunks of 10000
+     * jobs
+     * <p>
+     * The last chunk is sent when this is closed
+     *
+     * @param connection database connection to enqueue upon (a PostgreSQL
+     *                   connection, or a wrapper of one)
+     * @param codec      conversion of jobs into column values
+     * @return object collecting jobs for COPY
+     */
+    public CopyQueueSupplier<T> copySupplier(Connection connection, CopyCodec<T> codec) {
+        return copySupplier(connection, codec, 10_000);
+    }
+
+    /**
+     * Create a builder for a supplier, that enqueues from many threads, and
+     * writes the jobs in batches in the background
+     *
+     * @param dataSource where the flushers get their connections
+     * @return builder, to configure batching and start the flushers
+     */
+    public AsyncQueueSupplier.Builder<T> asyncSupplier(DataSource dataSource) {
+        return new AsyncQueueSupplier.Builder<>(this, dataSource);
     }
 
     /**
@@ -129,6 +327,12 @@ public class QueueSupplier<T> {
 
     }
 
+    private EnqueueDeduplicator<T> deduplicator(Connection connection) {
+        if (deduplicateAbstraction == null)
+            return null;
+        return new EnqueueDeduplicator<>(abstraction, deduplicateAbstraction, connection, deduplicateSelectSql, deduplicateUpdateSql, debounce, hashLookup);
+    }
+
     static Optional<SQLException> wrapSql(String errorMessage, VoidBlock block) {
         try {
             block.run();
@@ -19,6 +19,7 @@
 package dk.dbc.pgqueue.supplier;
 
 import dk.dbc.commons.testcontainers.postgres.DBCPostgreSQLContainer;
+import dk.dbc.pgqueue.common.DeduplicateAbstraction;
 import dk.dbc.pgqueue.common.QueueStorageAbstraction;
 import dk.dbc.pgqueue.common.DatabaseMigrator;
 import java.nio.charset.StandardCharsets;
@@ -28,6 +29,11 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
@@ -149,6 +155,440 @@ public class QueueSupplierIT {
         }
     }
 
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void copyEnqueue() throws Exception {
+        System.out.println("copyEnqueue");
+        try (Connection connection = PG.createConnection()) {
+            try (CopyQueueSupplier<String> supplier = new QueueSupplier<>(QUEUE_STORAGE_ABSTRACTION).copySupplier(connection, job -> new String[] {job}, 10)) {
+                for (int i = 0 ; i < 12 ; i++) {
+                    supplier.enqueue("a", "#" + i);
+                }
+                supplier.enqueue("b", "\"quoted\", with comma\nand newline", 1500);
+                supplier.enqueue("b", "", 1500);
+                try (Statement stmt = connection.createStatement() ;
+                     ResultSet resultSet = stmt.executeQuery("SELECT count(*) FROM queue")) {
+                    assertTrue(resultSet.next());
+                    assertEquals(10, resultSet.getInt(1));
+                }
+            }
+            try (Statement stmt = connection.createStatement()) {
+                try (ResultSet resultSet = stmt.executeQuery("SELECT count(*) FROM queue WHERE consumer = 'a' AND dequeueAfter <= clock_timestamp()")) {
+                    assertTrue(resultSet.next());
+                    assertEquals(12, resultSet.getInt(1));
+                }
+                try (ResultSet resultSet = stmt.executeQuery("SELECT job, dequeueAfter - clock_timestamp() > INTERVAL '1 second' FROM queue WHERE consumer = 'b' ORDER BY job")) {
+                    assertTrue(resultSet.next());
+                    assertEquals("", resultSet.getString(1));
+                    assertTrue(resultSet.getBoolean(2));
+                    assertTrue(resultSet.next());
+                    assertEquals("\"quoted\", with comma\nand newline", resultSet.getString(1));
+                    assertTrue(resultSet.getBoolean(2));
+                    assertFalse(resultSet.next());
+                }
+            }
+        }
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void asyncEnqueue() throws Exception {
+        System.out.println("asyncEnqueue");
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        CompletableFuture<Void> failed;
+        try (AsyncQueueSupplier<String> supplier = new QueueSupplier<>(QUEUE_STORAGE_ABSTRACTION)
+                .asyncSupplier(PG.datasource())
+                .maxBatchSize(5)
+                .maxLatency(50)
+                .bufferSize(10)
+                .flushers(2)
+                .flushListener((batchSize, flushNanos, success) -> {
+                    if (success)
+                        batchSizes.add(batchSize);
+                })
+                .build()) {
+            for (int i = 0 ; i < 23 ; i++) {
+                futures.add(supplier.enqueue("a", "#" + i));
+            }
+            futures.add(supplier.enqueue("b", "#postponed", 1500));
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get();
+            failed = supplier.enqueue("a", null); // job is NOT NULL
+        }
+        try {
+            failed.get();
+            fail("Expected enqueue of null job to fail");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof SQLException);
+        }
+        assertEquals(24, batchSizes.stream().mapToInt(i -> i).sum());
+        assertTrue(batchSizes.stream().allMatch(i -> i <= 5));
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement()) {
+            try (ResultSet resultSet = stmt.executeQuery("SELECT count(*) FROM queue WHERE consumer = 'a'")) {
+                assertTrue(resultSet.next());
+                assertEquals(23, resultSet.getInt(1));
+            }
+            try (ResultSet resultSet = stmt.executeQuery("SELECT dequeueAfter - queued > INTERVAL '1 second' FROM queue WHERE consumer = 'b'")) {
+                assertTrue(resultSet.next());
+                assertTrue(resultSet.getBoolean(1));
+            }
+        }
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void asyncEnqueueRuntimeException() throws Exception {
+        System.out.println("asyncEnqueueRuntimeException");
+        QueueStorageAbstraction<String> abstraction = new QueueStorageAbstraction<String>() {
+            @Override
+            public String[] columnList() {
+                return QUEUE_STORAGE_ABSTRACTION.columnList();
+            }
+
+            @Override
+            public String createJob(ResultSet resultSet, int startColumn) throws SQLException {
+                return QUEUE_STORAGE_ABSTRACTION.createJob(resultSet, startColumn);
+            }
+
+            @Override
+            public void saveJob(String job, PreparedStatement stmt, int startColumn) throws SQLException {
+                if (job.equals("#bad"))
+                    throw new IllegalArgumentException("Bad job");
+                QUEUE_STORAGE_ABSTRACTION.saveJob(job, stmt, startColumn);
+            }
+        };
+        List<Boolean> flushes = Collections.synchronizedList(new ArrayList<>());
+        try (AsyncQueueSupplier<String> supplier = new QueueSupplier<>(abstraction)
+                .asyncSupplier(PG.datasource())
+                .maxBatchSize(5)
+                .maxLatency(10)
+                .bufferSize(10)
+                .flushers(1)
+                .flushListener((batchSize, flushNanos, success) -> {
+                    flushes.add(success);
+                    if (!success)
+                        throw new IllegalStateException("Listener failed");
+                })
+                .build()) {
+            try {
+                supplier.enqueue("a", "#bad").get();
+                fail("Expected enqueue of bad job to fail");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof IllegalArgumentException);
+            }
+            supplier.enqueue("a", "#good").get();
+        }
+        assertEquals(List.of(false, true), flushes);
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement() ;
+             ResultSet resultSet = stmt.executeQuery("SELECT job FROM queue")) {
+            assertTrue(resultSet.next());
+            assertEquals("#good", resultSet.getString(1));
+            assertFalse(resultSet.next());
+        }
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void asyncShutdown() throws Exception {
+        System.out.println("asyncShutdown");
+        AsyncQueueSupplier<String> supplier = new QueueSupplier<>(QUEUE_STORAGE_ABSTRACTION)
+                .asyncSupplier(PG.datasource())
+                .maxBatchSize(2)
+                .maxLatency(1)
+                .build();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0 ; i < 5 ; i++) {
+            futures.add(supplier.enqueue("a", "#" + i));
+        }
+        supplier.shutdown();
+        assertTrue(supplier.awaitTermination(5, TimeUnit.SECONDS));
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get();
+        try {
+            supplier.enqueue("a", "#late");
+            fail("Expected enqueue after shutdown to fail");
+        } catch (IllegalStateException ex) {
+            // Closed
+        }
+        Thread.currentThread().interrupt();
+        supplier.close();
+        assertTrue(Thread.interrupted());
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement() ;
+             ResultSet resultSet = stmt.executeQuery("SELECT count(*) FROM queue")) {
+            assertTrue(resultSet.next());
+            assertEquals(5, resultSet.getInt(1));
+        }
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void asyncEnqueueNoFlushers() throws Exception {
+        System.out.println("asyncEnqueueNoFlushers");
+        AsyncQueueSupplier<String> supplier = new QueueSupplier<>(QUEUE_STORAGE_ABSTRACTION)
+                .asyncSupplier(PG.datasource())
+                .bufferSize(1)
+                .flushers(1)
+                .build();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("pg-queue-flusher-0")) {
+                thread.interrupt();
+                thread.join();
+            }
+        }
+        CompletableFuture<Void> buffered = supplier.enqueue("a", "#0");
+        try {
+            supplier.enqueue("a", "#1"); // The buffer is full, and nothing empties it
+            fail("Expected enqueue without flushers to fail");
+        } catch (IllegalStateException ex) {
+            // No flushers
+        }
+        supplier.close();
+        try {
+            buffered.get();
+            fail("Expected buffered job to fail");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    @Timeout(value = 30, unit = TimeUnit.SECONDS)
+    public void asyncEnqueueWhileClosing() throws Exception {
+        System.out.println("asyncEnqueueWhileClosing");
+        for (int round = 0 ; round < 5 ; round++) {
+            List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+            AsyncQueueSupplier<String> supplier = new QueueSupplier<>(QUEUE_STORAGE_ABSTRACTION)
+                    .asyncSupplier(PG.datasource())
+                    .maxBatchSize(2)
+                    .maxLatency(1)
+                    .bufferSize(2)
+                    .flushers(1)
+                    .build();
+            List<Thread> producers = new ArrayList<>();
+            for (int p = 0 ; p < 4 ; p++) {
+                String queue = "p" + p;
+                Thread producer = new Thread(() -> {
+                    try {
+                        for (int i = 0 ; ; i++) {
+                            futures.add(supplier.enqueue(queue, "#" + i));
+                        }
+                    } catch (IllegalStateException | InterruptedException ex) {
+                        // Closed
+                    }
+                });
+                producers.add(producer);
+                producer.start();
+            }
+            Thread.sleep(50);
+            supplier.close();
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            assertFalse(futures.isEmpty());
+            for (CompletableFuture<Void> future : futures) {
+                try {
+                    future.get(5, TimeUnit.SECONDS);
+                } catch (ExecutionException ex) {
+                    // Failed is fine, hanging is not
+                }
+            }
+            try (Connection connection = PG.createConnection() ;
+                 Statement stmt = connection.createStatement()) {
+                stmt.executeUpdate("TRUNCATE queue");
+            }
+        }
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void deduplicateEnqueue() throws Exception {
+        System.out.println("deduplicateEnqueue");
+        try (Connection connection = PG.createConnection() ;
+             Connection locker = PG.createConnection() ;
+             Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("ALTER TABLE queue ADD COLUMN trace TEXT");
+            try {
+                QueueSupplier<String> supplier = new QueueSupplier<>(TRACE_STORAGE_ABSTRACTION, TRACE_DEDUPLICATE_ABSTRACTION);
+                try (PreparedQueueSupplier<String> prepared = supplier.preparedSupplier(connection)) {
+                    prepared.enqueue("a", "x:1");
+                    prepared.enqueue("a", "x:2");
+                    prepared.enqueue("a", "y:1");
+                    prepared.enqueue("b", "x:1");
+                    prepared.enqueue("a", "w:1", 60_000);
+                    prepared.enqueue("a", "w:2"); // Makes the merged job due now
+                }
+                assertEquals("a/w/1,2/true a/x/1,2/true a/y/1/true b/x/1/true", queueContent(stmt));
+
+                // Rows that are being processed are not merged into
+                locker.setAutoCommit(false);
+                try (Statement lock = locker.createStatement()) {
+                    lock.executeQuery("SELECT * FROM queue WHERE job = 'x' AND consumer = 'a' FOR UPDATE").close();
+                    try (BatchQueueSupplier<String> batch = supplier.batchSupplier(connection)) {
+                        batch.enqueue("a", "x:3");
+                        batch.enqueue("a", "y:2");
+                    }
+                    locker.rollback();
+                }
+                assertEquals("a/w/1,2/true a/x/1,2/true a/x/3/true a/y/1,2/true b/x/1/true", queueContent(stmt));
+
+                stmt.executeUpdate("TRUNCATE queue");
+                QueueSupplier<String> debouncing = new QueueSupplier<>(TRACE_STORAGE_ABSTRACTION, TRACE_DEDUPLICATE_ABSTRACTION, 60_000);
+                Timestamp first;
+                try (PreparedQueueSupplier<String> prepared = debouncing.preparedSupplier(connection)) {
+                    prepared.enqueue("a", "x:1");
+                    first = dequeueAfter(stmt);
+                    prepared.enqueue("a", "x:2");
+                }
+                assertEquals("a/x/1,2/false", queueContent(stmt));
+                assertTrue(dequeueAfter(stmt).after(first));
+            } finally {
+                stmt.executeUpdate("TRUNCATE queue");
+                stmt.executeUpdate("ALTER TABLE queue DROP COLUMN trace");
+            }
+        }
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void deduplicateHashEnqueue() throws Exception {
+        System.out.println("deduplicateHashEnqueue");
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("ALTER TABLE queue ADD COLUMN trace TEXT");
+            try {
+                QueueSupplier<String> supplier = new QueueSupplier<>(TRACE_STORAGE_ABSTRACTION, TRACE_DEDUPLICATE_ABSTRACTION)
+                        .withDeduplicateHash();
+                try (PreparedQueueSupplier<String> prepared = supplier.preparedSupplier(connection)) {
+                    prepared.enqueue("a", "x:1");
+                    prepared.enqueue("a", "x:2");
+                    prepared.enqueue("a", "y:1", 60_000);
+                }
+                try (BatchQueueSupplier<String> batch = supplier.batchSupplier(connection)) {
+                    batch.enqueue("a", "y:2");
+                    batch.enqueue("b", "x:1");
+                }
+                // Rows without a hash are not found
+                stmt.executeUpdate("INSERT INTO queue(consumer, job, trace) VALUES('b', 'y', '1')");
+                supplier.enqueue(connection, "b", "y:2");
+                assertEquals("a/x/1,2/true a/y/1,2/true b/x/1/true b/y/1/true b/y/2/true", queueContent(stmt));
+                try (ResultSet resultSet = stmt.executeQuery("SELECT COUNT(*) FROM queue WHERE dedup_hash = hash_record_extended(ROW(job), 0)")) {
+                    assertTrue(resultSet.next());
+                    assertEquals(4, resultSet.getInt(1));
+                }
+                assertThrows(IllegalStateException.class, () -> new QueueSupplier<>(TRACE_STORAGE_ABSTRACTION)
+                             .withDeduplicateHash(TRACE_DEDUPLICATE_ABSTRACTION)
+                             .copySupplier(connection, job -> job.split(":", 2)));
+                assertThrows(IllegalStateException.class, () -> new QueueSupplier<>(TRACE_STORAGE_ABSTRACTION)
+                             .withDeduplicateHash());
+            } finally {
+                stmt.executeUpdate("TRUNCATE queue");
+                stmt.executeUpdate("ALTER TABLE queue DROP COLUMN trace");
+            }
+        }
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void deduplicateHashSessionSettings() throws Exception {
+        System.out.println("deduplicateHashSessionSettings");
+        DeduplicateAbstraction<String> timestampAbstraction = new DeduplicateAbstraction<String>() {
+            @Override
+            public String[] duplicateDeleteColumnList() {
+                return new String[] {"at", "value"};
+            }
+
+            @Override
+            public void duplicateValues(String job, PreparedStatement stmt, int startColumn) throws SQLException {
+                stmt.setTimestamp(startColumn, new Timestamp(1_700_000_000_123L));
+                stmt.setDouble(startColumn + 1, 0.1 + 0.2);
+            }
+
+            @Override
+            public String mergeJob(String originalJob, String skippedJob) {
+                return originalJob;
+            }
+        };
+        QueueSupplier<String> supplier = new QueueSupplier<>(QUEUE_STORAGE_ABSTRACTION)
+                .withDeduplicateHash(timestampAbstraction);
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("ALTER TABLE queue ADD COLUMN at TIMESTAMPTZ, ADD COLUMN value FLOAT8");
+            try {
+                stmt.execute("SET TimeZone = 'UTC'");
+                stmt.execute("SET extra_float_digits = 1");
+                supplier.enqueue(connection, "a", "1");
+                stmt.execute("SET TimeZone = 'Asia/Tokyo'");
+                stmt.execute("SET DateStyle = 'ISO, DMY'");
+                stmt.execute("SET extra_float_digits = -3");
+                supplier.enqueue(connection, "a", "2");
+                stmt.execute("UPDATE queue SET at = to_timestamp(1700000000.123), value = 0.1::FLOAT8 + 0.2::FLOAT8");
+                try (ResultSet resultSet = stmt.executeQuery("SELECT COUNT(DISTINCT dedup_hash), BOOL_AND(dedup_hash = hash_record_extended(ROW(at, value), 0)) FROM queue")) {
+                    assertTrue(resultSet.next());
+                    assertEquals(1, resultSet.getInt(1));
+                    assertTrue(resultSet.getBoolean(2));
+                }
+            } finally {
+                stmt.executeUpdate("TRUNCATE queue");
+                stmt.executeUpdate("ALTER TABLE queue DROP COLUMN at, DROP COLUMN value");
+            }
+        }
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void coalescingBatchEnqueue() throws Exception {
+        System.out.println("coalescingBatchEnqueue");
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("ALTER TABLE queue ADD COLUMN trace TEXT");
+            try {
+                QueueSupplier<String> supplier = new QueueSupplier<>(TRACE_STORAGE_ABSTRACTION);
+                BatchQueueSupplier<String> batch = supplier.coalescingBatchSupplier(connection, TRACE_DEDUPLICATE_ABSTRACTION, 3);
+                try (batch) {
+                    batch.enqueue("a", "x:1");
+                    batch.enqueue("a", "x:2");
+                    batch.enqueue("b", "x:1");
+                    assertEquals("", queueContent(stmt));
+                    batch.enqueue("a", "y:1", 60_000); // Batch of 3 different jobs is sent
+                    assertEquals("a/x/1,2/true a/y/1/false b/x/1/true", queueContent(stmt));
+                    batch.enqueue("a", "y:2", 60_000);
+                    batch.enqueue("a", "y:3", 60_000);
+                    batch.enqueue("a", "x:3", 60_000);
+                    batch.enqueue("a", "x:4"); // Makes the merged job due now
+                }
+                assertEquals(3, batch.getCoalescedCount());
+                assertEquals("a/x/1,2/true a/x/3,4/true a/y/1/false a/y/2,3/false b/x/1/true", queueContent(stmt));
+            } finally {
+                stmt.executeUpdate("TRUNCATE queue");
+                stmt.executeUpdate("ALTER TABLE queue DROP COLUMN trace");
+            }
+        }
+    }
+
+    private static String queueContent(Statement stmt) throws SQLException {
+        StringBuilder sb = new StringBuilder();
+        try (ResultSet resultSet = stmt.executeQuery("SELECT consumer, job, trace, dequeueAfter <= clock_timestamp() FROM queue ORDER BY consumer, job, trace")) {
+            while (resultSet.next()) {
+                if (sb.length() != 0)
+                    sb.append(' ');
+                sb.append(resultSet.getString(1)).append('/')
+                        .append(resultSet.getString(2)).append('/')
+                        .append(resultSet.getString(3)).append('/')
+                        .append(resultSet.getBoolean(4));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static Timestamp dequeueAfter(Statement stmt) throws SQLException {
+        try (ResultSet resultSet = stmt.executeQuery("SELECT dequeueAfter FROM queue")) {
+            assertTrue(resultSet.next());
+            return resultSet.getTimestamp(1);
+        }
+    }
+
     private static final QueueStorageAbstraction<String> QUEUE_STORAGE_ABSTRACTION = new QueueStorageAbstraction<String>() {
         String[] COLUMN_LIST = new String[] {"job"};
 
@@ -168,4 +608,44 @@ public class QueueSupplierIT {
         }
     };
 
+
+    private static final QueueStorageAbstraction<String> TRACE_STORAGE_ABSTRACTION = new QueueStorageAbstraction<String>() {
+        String[] COLUMN_LIST = new String[] {"job", "trace"};
+
+        @Override
+        public String[] columnList() {
+            return COLUMN_LIST;
+        }
+
+        @Override
+        public String createJob(ResultSet resultSet, int startColumn) throws SQLException {
+            return resultSet.getString(startColumn) + ":" + resultSet.getString(startColumn + 1);
+        }
+
+        @Override
+        public void saveJob(String job, PreparedStatement stmt, int startColumn) throws SQLException {
+            String[] parts = job.split(":", 2);
+            stmt.setString(startColumn, parts[0]);
+            stmt.setString(startColumn + 1, parts[1]);
+        }
+    };
+
+    private static final DeduplicateAbstraction<String> TRACE_DEDUPLICATE_ABSTRACTION = new DeduplicateAbstraction<String>() {
+        String[] COLUMN_LIST = new String[] {"job"};
+
+        @Override
+        public String[] duplicateDeleteColumnList() {
+            return COLUMN_LIST;
+        }
+
+        @Override
+        public void duplicateValues(String job, PreparedStatement stmt, int startColumn) throws SQLException {
+            stmt.setString(startColumn, job.split(":", 2)[0]);
+        }
+
+        @Override
+        public String mergeJob(String originalJob, String skippedJob) {
+            return originalJob + "," + skippedJob.split(":", 2)[1];
+        }
+    };
 }